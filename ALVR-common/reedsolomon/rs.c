@@ -41,6 +41,21 @@
 #include <assert.h>
 #include "rs.h"
 
+/*
+ * SIMD kernels for multiply-accumulate by constant use split nibble tables:
+ * c*x = c*(x & 0x0f) ^ c*(x & 0xf0), and both halves are looked up from 16 entry tables
+ * with byte shuffle (pshufb / tbl).
+ * x86: SSSE3 and AVX2 are selected at runtime (GCC/Clang only, MSVC uses scalar).
+ * ARM: NEON is mandatory on arm64 and assumed on armeabi-v7a, as NDK builds it with NEON by default.
+ */
+#if defined(__GNUC__) && (defined(__x86_64__) || defined(__i386__))
+#define RS_SIMD_X86
+#include <immintrin.h>
+#elif defined(__aarch64__) || defined(__ARM_NEON) || defined(__ARM_NEON__)
+#define RS_SIMD_NEON
+#include <arm_neon.h>
+#endif
+
 #ifdef _MSC_VER
 #define alloca(x) _alloca(x)
 #endif
@@ -80,6 +95,17 @@ static gf __declspec(align (256)) gf_mul_table[(GF_SIZE + 1)*(GF_SIZE + 1)];
 static gf gf_mul_table[(GF_SIZE + 1)*(GF_SIZE + 1)] __attribute__((aligned (256)));
 #endif
 
+/*
+ * gf_mul_lo[c][x] = c * x, gf_mul_hi[c][x] = c * (x << 4) for x < 16.
+ */
+#ifdef _MSC_VER
+static gf __declspec(align (32)) gf_mul_lo[(GF_SIZE + 1) * 16];
+static gf __declspec(align (32)) gf_mul_hi[(GF_SIZE + 1) * 16];
+#else
+static gf gf_mul_lo[(GF_SIZE + 1) * 16] __attribute__((aligned (32)));
+static gf gf_mul_hi[(GF_SIZE + 1) * 16] __attribute__((aligned (32)));
+#endif
+
 /*
  * modnn(x) computes x % GF_SIZE, where GF_SIZE is 2**GF_BITS - 1,
  * without a slow divide.
@@ -92,28 +118,116 @@ static inline gf modnn(int x) {
     return x;
 }
 
-static void addmul(gf *dst1, gf *src1, gf c, int sz) {
+static void addmul_scalar(gf *dst1, gf *src1, gf c, int sz) {
     USE_GF_MULC;
-    if (c != 0) {
-        register gf *dst = dst1, *src = src1;
-        gf *lim = &dst[sz];
+    register gf *dst = dst1, *src = src1;
+    gf *lim = &dst[sz];
+
+    GF_MULC0(c);
+    for (; dst < lim; dst++, src++)
+        GF_ADDMULC(*dst, *src);
+}
+
+static void mul_scalar(gf *dst1, gf *src1, gf c, int sz) {
+    USE_GF_MULC;
+    register gf *dst = dst1, *src = src1;
+    gf *lim = &dst[sz];
+
+    GF_MULC0(c);
+    for (; dst < lim; dst++, src++)
+        GF_MULC(*dst, *src);
+}
+
+#ifdef RS_SIMD_X86
+__attribute__((target("ssse3")))
+static int mul_ssse3(gf *dst, gf *src, gf c, int sz, int add) {
+    const __m128i lo = _mm_load_si128((const __m128i *) &gf_mul_lo[c << 4]);
+    const __m128i hi = _mm_load_si128((const __m128i *) &gf_mul_hi[c << 4]);
+    const __m128i mask = _mm_set1_epi8(0x0f);
+    int i;
+
+    for (i = 0; i + 16 <= sz; i += 16) {
+        __m128i x = _mm_loadu_si128((const __m128i *) &src[i]);
+        __m128i p = _mm_xor_si128(_mm_shuffle_epi8(lo, _mm_and_si128(x, mask)),
+                                  _mm_shuffle_epi8(hi, _mm_and_si128(_mm_srli_epi64(x, 4), mask)));
+        if (add)
+            p = _mm_xor_si128(p, _mm_loadu_si128((const __m128i *) &dst[i]));
+        _mm_storeu_si128((__m128i *) &dst[i], p);
+    }
+    return i;
+}
+
+__attribute__((target("avx2")))
+static int mul_avx2(gf *dst, gf *src, gf c, int sz, int add) {
+    const __m256i lo = _mm256_broadcastsi128_si256(_mm_load_si128((const __m128i *) &gf_mul_lo[c << 4]));
+    const __m256i hi = _mm256_broadcastsi128_si256(_mm_load_si128((const __m128i *) &gf_mul_hi[c << 4]));
+    const __m256i mask = _mm256_set1_epi8(0x0f);
+    int i;
+
+    for (i = 0; i + 32 <= sz; i += 32) {
+        __m256i x = _mm256_loadu_si256((const __m256i *) &src[i]);
+        __m256i p = _mm256_xor_si256(_mm256_shuffle_epi8(lo, _mm256_and_si256(x, mask)),
+                                     _mm256_shuffle_epi8(hi, _mm256_and_si256(_mm256_srli_epi64(x, 4), mask)));
+        if (add)
+            p = _mm256_xor_si256(p, _mm256_loadu_si256((const __m256i *) &dst[i]));
+        _mm256_storeu_si256((__m256i *) &dst[i], p);
+    }
+    return i;
+}
+#endif
+
+#ifdef RS_SIMD_NEON
+static inline uint8x16_t tbl16(uint8x16_t table, uint8x16_t index) {
+#ifdef __aarch64__
+    return vqtbl1q_u8(table, index);
+#else
+    uint8x8x2_t t;
+    t.val[0] = vget_low_u8(table);
+    t.val[1] = vget_high_u8(table);
+    return vcombine_u8(vtbl2_u8(t, vget_low_u8(index)), vtbl2_u8(t, vget_high_u8(index)));
+#endif
+}
+
+static int mul_neon(gf *dst, gf *src, gf c, int sz, int add) {
+    const uint8x16_t lo = vld1q_u8(&gf_mul_lo[c << 4]);
+    const uint8x16_t hi = vld1q_u8(&gf_mul_hi[c << 4]);
+    const uint8x16_t mask = vdupq_n_u8(0x0f);
+    int i;
+
+    for (i = 0; i + 16 <= sz; i += 16) {
+        uint8x16_t x = vld1q_u8(&src[i]);
+        uint8x16_t p = veorq_u8(tbl16(lo, vandq_u8(x, mask)), tbl16(hi, vshrq_n_u8(x, 4)));
+        if (add)
+            p = veorq_u8(p, vld1q_u8(&dst[i]));
+        vst1q_u8(&dst[i], p);
+    }
+    return i;
+}
+#endif
+
+/*
+ * Multiplies (add == 0) or multiply-accumulates (add != 0) the largest vector sized prefix.
+ * Returns number of bytes processed. Rest is done by scalar kernel.
+ */
+static int mul_none(gf *dst, gf *src, gf c, int sz, int add) {
+    return 0;
+}
 
-        GF_MULC0(c);
-        for (; dst < lim; dst++, src++)
-            GF_ADDMULC(*dst, *src);
+static int (*mul_simd)(gf *dst, gf *src, gf c, int sz, int add) = mul_none;
+
+static void addmul(gf *dst1, gf *src1, gf c, int sz) {
+    if (c != 0) {
+        int done = mul_simd(dst1, src1, c, sz, 1);
+        addmul_scalar(dst1 + done, src1 + done, c, sz - done);
     }
 }
 
 static void mul(gf *dst1, gf *src1, gf c, int sz) {
-    USE_GF_MULC;
     if (c != 0) {
-        register gf *dst = dst1, *src = src1;
-        gf *lim = &dst[sz];
-        GF_MULC0(c);
-        for (; dst < lim; dst++, src++)
-            GF_MULC(*dst , *src);
+        int done = mul_simd(dst1, src1, c, sz, 0);
+        mul_scalar(dst1 + done, src1 + done, c, sz - done);
     } else
-        memset(dst1, 0, c);
+        memset(dst1, 0, sz);
 }
 
 /* y = a.dot(b) */
@@ -148,6 +262,12 @@ static void init_mul_table(void) {
 
     for (j=0; j< GF_SIZE+1; j++)
         gf_mul_table[j] = gf_mul_table[j<<8] = 0;
+
+    for (i=0; i< GF_SIZE+1; i++)
+    for (j=0; j< 16; j++) {
+        gf_mul_lo[(i<<4)+j] = gf_mul_table[(i<<8)+j];
+        gf_mul_hi[(i<<4)+j] = gf_mul_table[(i<<8)+(j<<4)];
+    }
 }
 
 /*
@@ -372,6 +492,28 @@ static inline int code_some_shards(gf* matrixRows, gf** inputs, gf** outputs, in
 void reed_solomon_init(void) {
     generate_gf();
     init_mul_table();
+    reed_solomon_select_kernel(1);
+}
+
+const char* reed_solomon_select_kernel(int simd) {
+    mul_simd = mul_none;
+    if (!simd)
+        return "scalar";
+#if defined(RS_SIMD_X86)
+    __builtin_cpu_init();
+    if (__builtin_cpu_supports("avx2")) {
+        mul_simd = mul_avx2;
+        return "avx2";
+    }
+    if (__builtin_cpu_supports("ssse3")) {
+        mul_simd = mul_ssse3;
+        return "ssse3";
+    }
+#elif defined(RS_SIMD_NEON)
+    mul_simd = mul_neon;
+    return "neon";
+#endif
+    return "scalar";
 }
 
 reed_solomon* reed_solomon_new(int data_shards, int parity_shards) {
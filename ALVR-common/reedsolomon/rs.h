@@ -21,6 +21,13 @@ extern "C" {
 	 * */
 	void reed_solomon_init(void);
 
+	/**
+	 * select GF(256) multiply kernels. called by reed_solomon_init with simd=1.
+	 * simd: 0 forces scalar kernels, otherwise best kernels supported by cpu are used
+	 * return: name of selected kernels
+	 * */
+	const char* reed_solomon_select_kernel(int simd);
+
 	reed_solomon* reed_solomon_new(int data_shards, int parity_shards);
 	void reed_solomon_release(reed_solomon* rs);
 
@@ -183,7 +183,8 @@ public class GvrActivity extends BaseActivity {
 
     private UdpReceiverThread.Callback mUdpReceiverCallback = new UdpReceiverThread.Callback() {
         @Override
-        public void onConnected(final int width, final int height, final int codec, final int frameQueueSize, final int refreshRate) {
+        public void onConnected(final int width, final int height, final int codec, final int frameQueueSize, final int refreshRate,
+                                final int bufferSize) {
             // We must wait completion of notifyGeometryChange
             // to ensure the first video frame arrives after notifyGeometryChange.
             runOnUiThread(new Runnable() {
@@ -193,7 +194,7 @@ public class GvrActivity extends BaseActivity {
 
                     //mRenderer.setFrameGeometry(width, height);
                     if(mDecoderThread != null) {
-                        mDecoderThread.onConnect(codec, frameQueueSize);
+                        mDecoderThread.onConnect(codec, frameQueueSize, bufferSize);
                     }
                 }
             });
@@ -201,6 +202,9 @@ public class GvrActivity extends BaseActivity {
 
         @Override
         public void onChangeSettings(int suspend, int frameQueueSize) {
+            if(mDecoderThread != null) {
+                mDecoderThread.onChangeSettings(frameQueueSize);
+            }
         }
 
         @Override
@@ -249,5 +253,17 @@ public class GvrActivity extends BaseActivity {
         public void onFrameDecoded() {
             mRenderer.onFrameDecoded();
         }
+
+        @Override
+        public void onRequestIDR() {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if(mReceiverThread != null) {
+                        mReceiverThread.requestIDR();
+                    }
+                }
+            });
+        }
     };
 }
\ No newline at end of file
@@ -48,6 +48,16 @@ public class OvrContext {
         renderLoadingNative(handle);
     }
 
+    // Returns predicted display time of next frame in System.nanoTime() base, or 0 if not in VR mode.
+    public long getPredictedDisplayTime() {
+        return getPredictedDisplayTimeNative(handle);
+    }
+
+    // Returns time since tracking info of frameIndex was sent in us, or -1 if unknown.
+    public long getFrameAge(long frameIndex) {
+        return getFrameAgeNative(handle, frameIndex);
+    }
+
     public void fetchTrackingInfo(UdpReceiverThread udpReceiverThread, float[] position, float[] orientation) {
         fetchTrackingInfoNative(handle, udpReceiverThread, position, orientation);
     }
@@ -103,6 +113,8 @@ public class OvrContext {
     private native void onSurfaceDestroyedNative(long handle);
     private native void renderNative(long handle, long renderedFrameIndex);
     private native void renderLoadingNative(long handle);
+    private native long getPredictedDisplayTimeNative(long handle);
+    private native long getFrameAgeNative(long handle, long frameIndex);
     private native void fetchTrackingInfoNative(long handle, UdpReceiverThread udpReceiverThread, float[] position, float[] orientation);
 
     private native void onChangeSettingsNative(long handle, int suspend);
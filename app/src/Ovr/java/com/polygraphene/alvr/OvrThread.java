@@ -35,9 +35,15 @@ class OvrThread {
 
     private boolean mVrMode = false;
     private boolean mDecoderPrepared = false;
-    private int mRefreshRate = 60;
 
-    private long mPreviousRender = 0;
+    // Wakes render on frame arrival, aligned to vsync.
+    private RenderScheduler mRenderScheduler = new RenderScheduler();
+    private static final long STATISTICS_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+    private long mLastStatisticsReport = 0;
+
+    // Frames which waited longer than this since tracking are skipped if newer frame is decoded.
+    private static final OutputFrameQueue.StaleFramePolicy STALE_FRAME_POLICY = OutputFrameQueue.StaleFramePolicy.MAX_AGE;
+    private static final long MAX_FRAME_AGE_NS = TimeUnit.MILLISECONDS.toNanos(100);
 
     public OvrThread(Activity activity) {
         this.mActivity = activity;
@@ -88,13 +94,14 @@ class OvrThread {
             mSurfaceTexture.updateTexImage();
 
             mDecoderThread = new DecoderThread(mSurface, mActivity, mDecoderCallback);
+            mDecoderThread.setStaleFramePolicy(STALE_FRAME_POLICY, MAX_FRAME_AGE_NS, mFrameAgeSource);
 
             try {
                 mDecoderThread.start();
 
                 DeviceDescriptor deviceDescriptor = new DeviceDescriptor();
                 mOvrContext.getDeviceDescriptor(deviceDescriptor);
-                mRefreshRate = deviceDescriptor.mRefreshRates[0];
+                mRenderScheduler.setRefreshRate(deviceDescriptor.mRefreshRates[0]);
                 if (!mReceiverThread.start(mEGLContext, mActivity, deviceDescriptor, mOvrContext.getCameraTexture(), mDecoderThread)) {
                     Utils.loge(TAG, () -> "FATAL: Initialization of ReceiverThread failed.");
                     return;
@@ -131,8 +138,9 @@ class OvrThread {
         });
     }
 
-    private Runnable mRenderRunnable = () -> render();
+    private Runnable mRenderRunnable = () -> renderFrame();
     private Runnable mIdleRenderRunnable = () -> render();
+    private Runnable mFrameAvailableRunnable = () -> scheduleRender();
 
     // Called from onDestroy
     public void quit() {
@@ -153,8 +161,7 @@ class OvrThread {
         mSurfaceTexture.setOnFrameAvailableListener(surfaceTexture -> {
             Utils.log(TAG, () -> "OvrThread: waitFrame: onFrameAvailable is called.");
             mDecoderThread.onFrameAvailable();
-            mHandler.removeCallbacks(mIdleRenderRunnable);
-            mHandler.post(mRenderRunnable);
+            mHandler.post(mFrameAvailableRunnable);
         }, new Handler(Looper.getMainLooper()));
         mSurface = new Surface(mSurfaceTexture);
 
@@ -164,85 +171,141 @@ class OvrThread {
         mEGLContext = EGL14.eglGetCurrentContext();
     }
 
-    private void render() {
-        if (mReceiverThread.isConnected() && mReceiverThread.getErrorMessage() == null) {
-            /*if (mDecoderThread.discartStaleFrames(mSurfaceTexture)) {
-                Utils.log(TAG, () ->  "Discard stale frame. Wait next onFrameAvailable.");
-                mHandler.removeCallbacks(mIdleRenderRunnable);
-                mHandler.postDelayed(mIdleRenderRunnable, 50);
-                return;
-            }*/
-            long next = checkRenderTiming();
-            if(next > 0) {
-                mHandler.postDelayed(mRenderRunnable, next);
-                return;
-            }
-            long renderedFrameIndex = mDecoderThread.clearAvailable(mSurfaceTexture);
-            if (renderedFrameIndex != -1) {
-                mOvrContext.render(renderedFrameIndex);
-                mPreviousRender = System.nanoTime();
+    private boolean isStreaming() {
+        return mReceiverThread.isConnected() && mReceiverThread.getErrorMessage() == null;
+    }
 
-                mHandler.postDelayed(mRenderRunnable, 5);
-            } else {
-                mHandler.removeCallbacks(mIdleRenderRunnable);
-                mHandler.postDelayed(mIdleRenderRunnable, 50);
-            }
+    // Called on frame arrival. Render thread sleeps until the latest time the frame can make next vsync.
+    private void scheduleRender() {
+        if (!isStreaming() || !mOvrContext.isVrMode()) {
+            // Loading screen loop is running.
+            return;
+        }
+        // Loading screen loop stops once streaming frames arrive.
+        mHandler.removeCallbacks(mIdleRenderRunnable);
+
+        long now = System.nanoTime();
+        mRenderScheduler.setPredictedDisplayTime(mOvrContext.getPredictedDisplayTime());
+        long wakeTime = mRenderScheduler.schedule(now);
+        if (wakeTime < 0) {
+            // Already scheduled for this frame.
+            return;
+        }
+        // Handler has millisecond resolution. Round down to wake early rather than miss vsync.
+        long delayMs = TimeUnit.NANOSECONDS.toMillis(Math.max(wakeTime - now, 0));
+        if (delayMs == 0) {
+            mHandler.post(mRenderRunnable);
         } else {
-            if (!mOvrContext.isVrMode()) {
-                return;
-            }
-            if (mReceiverThread.getErrorMessage() != null) {
-                mLoadingTexture.drawMessage(Utils.getVersionName(mActivity) + "\n \n!!! Error on ARCore initialization !!!\n" + mReceiverThread.getErrorMessage());
-            } else {
-                if (mReceiverThread.isConnected()) {
-                    mLoadingTexture.drawMessage(Utils.getVersionName(mActivity) + "\n \nConnected!\nStreaming will begin soon!");
-                } else if(mLauncherSocket != null && mLauncherSocket.isConnected()) {
-                    mLoadingTexture.drawMessage(Utils.getVersionName(mActivity) + "\n \nConnected!\nPress Trigger\nto start SteamVR.");
-                    if (mOvrContext.getButtonDown()) {
-                        mLauncherSocket.sendCommand("StartServer");
-                    }
-                } else {
-                    mLoadingTexture.drawMessage(Utils.getVersionName(mActivity) + "\n \nPress CONNECT button\non ALVR server.");
+            mHandler.postDelayed(mRenderRunnable, delayMs);
+        }
+    }
+
+    private void renderFrame() {
+        if (!isStreaming()) {
+            mRenderScheduler.cancel();
+            render();
+            return;
+        }
+        mRenderScheduler.onWake(System.nanoTime());
+        if (mDecoderThread.discardStaleFrames(mSurfaceTexture)) {
+            // Newer frame is released to surface. Its onFrameAvailable schedules render.
+            mRenderScheduler.onNoFrame();
+            return;
+        }
+        long renderedFrameIndex = mDecoderThread.clearAvailable(mSurfaceTexture);
+        if (renderedFrameIndex != -1) {
+            mOvrContext.render(renderedFrameIndex);
+            mRenderScheduler.onRendered(System.nanoTime());
+        } else {
+            // Next onFrameAvailable schedules render again. Nothing runs until then.
+            mRenderScheduler.onNoFrame();
+        }
+        reportStatistics();
+    }
+
+    // Renders loading screen while not streaming.
+    private void render() {
+        if (isStreaming()) {
+            // Frames are rendered by renderFrame() scheduled on onFrameAvailable.
+            return;
+        }
+        if (!mOvrContext.isVrMode()) {
+            return;
+        }
+        if (mReceiverThread.getErrorMessage() != null) {
+            mLoadingTexture.drawMessage(Utils.getVersionName(mActivity) + "\n \n!!! Error on ARCore initialization !!!\n" + mReceiverThread.getErrorMessage());
+        } else {
+            if (mReceiverThread.isConnected()) {
+                mLoadingTexture.drawMessage(Utils.getVersionName(mActivity) + "\n \nConnected!\nStreaming will begin soon!");
+            } else if(mLauncherSocket != null && mLauncherSocket.isConnected()) {
+                mLoadingTexture.drawMessage(Utils.getVersionName(mActivity) + "\n \nConnected!\nPress Trigger\nto start SteamVR.");
+                if (mOvrContext.getButtonDown()) {
+                    mLauncherSocket.sendCommand("StartServer");
                 }
+            } else {
+                mLoadingTexture.drawMessage(Utils.getVersionName(mActivity) + "\n \nPress CONNECT button\non ALVR server.");
             }
-            mOvrContext.renderLoading();
-            mHandler.removeCallbacks(mIdleRenderRunnable);
-            mHandler.postDelayed(mIdleRenderRunnable, 100);
         }
+        mOvrContext.renderLoading();
+        mHandler.removeCallbacks(mIdleRenderRunnable);
+        mHandler.postDelayed(mIdleRenderRunnable, 100);
     }
 
-    private long checkRenderTiming() {
-        long current = System.nanoTime();
-        long threashold = TimeUnit.SECONDS.toNanos(1) / mRefreshRate -
-                TimeUnit.MILLISECONDS.toNanos(5);
-        return TimeUnit.NANOSECONDS.toMillis(threashold - (current - mPreviousRender));
+    private void reportStatistics() {
+        if (!Utils.sEnableLog) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - mLastStatisticsReport < STATISTICS_INTERVAL_NS) {
+            return;
+        }
+        mLastStatisticsReport = now;
+        Utils.log(TAG, () -> "RenderScheduler: " + mRenderScheduler.getStatisticsString());
+        DecoderStatistics statistics = mDecoderThread.getStatistics();
+        Utils.log(TAG, () -> "FrameAge: Rendered=" + statistics.getRenderedFrameCount()
+                + " (avg " + statistics.getAverageRenderedFrameAgeNs() / 1000
+                + " us max " + statistics.getMaxRenderedFrameAgeNs() / 1000 + " us)"
+                + " Stale=" + statistics.getStaleFrameCount()
+                + " (avg " + statistics.getAverageStaleFrameAgeNs() / 1000
+                + " us max " + statistics.getMaxStaleFrameAgeNs() / 1000 + " us)");
     }
 
+    // Runs on OvrThread with lock of OutputFrameQueue.
+    private OutputFrameQueue.FrameAgeSource mFrameAgeSource = frameIndex -> {
+        long age = mOvrContext.getFrameAge(frameIndex);
+        return age < 0 ? -1 : TimeUnit.MICROSECONDS.toNanos(age);
+    };
+
     // Called on OvrThread.
     public void onVrModeChanged(boolean enter) {
         mVrMode = enter;
         Utils.logi(TAG, () -> "onVrModeChanged. mVrMode=" + mVrMode + " mDecoderPrepared=" + mDecoderPrepared);
         mReceiverThread.setSinkPrepared(mVrMode && mDecoderPrepared);
         if (mVrMode) {
-            mHandler.post(mRenderRunnable);
+            mHandler.post(mIdleRenderRunnable);
+            // Frame may have arrived before entering VR mode.
+            mHandler.post(mFrameAvailableRunnable);
         }
     }
 
     private UdpReceiverThread.Callback mUdpReceiverCallback = new UdpReceiverThread.Callback() {
         @Override
-        public void onConnected(final int width, final int height, final int codec, final int frameQueueSize, final int refreshRate) {
+        public void onConnected(final int width, final int height, final int codec, final int frameQueueSize, final int refreshRate,
+                                final int bufferSize) {
             // We must wait completion of notifyGeometryChange
             // to ensure the first video frame arrives after notifyGeometryChange.
             mHandler.post(() -> {
                 mOvrContext.setRefreshRate(refreshRate);
+                mRenderScheduler.setRefreshRate(refreshRate);
                 mOvrContext.setFrameGeometry(width, height);
-                mDecoderThread.onConnect(codec, frameQueueSize);
+                mDecoderThread.onConnect(codec, frameQueueSize, bufferSize);
             });
         }
 
         @Override
         public void onChangeSettings(int suspend, int frameQueueSize) {
             mOvrContext.onChangeSettings(suspend);
+            mDecoderThread.onChangeSettings(frameQueueSize);
         }
 
         @Override
@@ -254,6 +317,14 @@ class OvrThread {
         @Override
         public void onDisconnect() {
             mDecoderThread.onDisconnect();
+            mHandler.post(() -> {
+                Utils.logi(TAG, () -> "RenderScheduler: " + mRenderScheduler.getStatisticsString());
+                // Back to loading screen.
+                mHandler.removeCallbacks(mRenderRunnable);
+                mRenderScheduler.cancel();
+                mHandler.removeCallbacks(mIdleRenderRunnable);
+                mHandler.post(mIdleRenderRunnable);
+            });
         }
 
         @Override
@@ -292,6 +363,11 @@ class OvrThread {
         public void onFrameDecoded() {
             mDecoderThread.releaseBuffer();
         }
+
+        @Override
+        public void onRequestIDR() {
+            mReceiverThread.requestIDR();
+        }
     };
 
     private LauncherSocket.LauncherSocketCallback mLauncherSocketCallback = new LauncherSocket.LauncherSocketCallback() {
@@ -0,0 +1,143 @@
+/// Annex-B parser
+// Finds NAL boundaries and types in H.264 / H.265 frames.
+////////////////////////////////////////////////////////////////////
+
+#include <string.h>
+#include "annexb.h"
+
+// H.264 nal_unit_type
+static const int H264_NAL_TYPE_IDR = 5;
+static const int H264_NAL_TYPE_SEI = 6;
+static const int H264_NAL_TYPE_SPS = 7;
+static const int H264_NAL_TYPE_PPS = 8;
+static const int H264_NAL_TYPE_AUD = 9;
+
+// H.265 nal_unit_type
+static const int H265_NAL_TYPE_BLA_W_LP = 16;
+static const int H265_NAL_TYPE_RSV_IRAP_23 = 23;
+static const int H265_NAL_TYPE_VPS = 32;
+static const int H265_NAL_TYPE_PPS = 34;
+static const int H265_NAL_TYPE_AUD = 35;
+static const int H265_NAL_TYPE_PREFIX_SEI = 39;
+static const int H265_NAL_TYPE_SUFFIX_SEI = 40;
+
+// Max NALs examined by classify().
+static const int MAX_HEADER_NALS = 16;
+
+static inline bool hasZeroByte(uint64_t x) {
+    return ((x - 0x0101010101010101ULL) & ~x & 0x8080808080808080ULL) != 0;
+}
+
+static inline int getNalType(int codec, uint8_t header) {
+    if (codec == AnnexB::CODEC_H264) {
+        return header & 0x1F;
+    }
+    return (header >> 1) & 0x3F;
+}
+
+// Offset of start code which ends right before payload.
+static inline int getStart(const uint8_t *buf, int payload) {
+    int start = payload - 3;
+    if (start > 0 && buf[start - 1] == 0) {
+        // 4-byte start code.
+        start--;
+    }
+    return start;
+}
+
+int AnnexB::findStartCode(const uint8_t *buf, int from, int end) {
+    // i is position of "01" of candidate start code.
+    int i = from + 2;
+    while (i < end) {
+        if (i + 8 <= end) {
+            uint64_t word;
+            memcpy(&word, buf + i, sizeof(word));
+            if (!hasZeroByte(word)) {
+                // No zero in buf[i..i+8), so only "01" at i can complete start code.
+                if (buf[i] == 1 && buf[i - 1] == 0 && buf[i - 2] == 0) {
+                    return i + 1;
+                }
+                i += 8;
+                continue;
+            }
+        }
+        if (buf[i] > 1) {
+            // buf[i] can't be part of start code ending at i, i + 1 or i + 2.
+            i += 3;
+        } else if (buf[i] == 1 && buf[i - 1] == 0 && buf[i - 2] == 0) {
+            return i + 1;
+        } else {
+            i++;
+        }
+    }
+    return -1;
+}
+
+int AnnexB::parse(const uint8_t *buf, int length, int codec, AnnexBNal *nals, int maxNals) {
+    int count = 0;
+    int payload = findStartCode(buf, 0, length);
+    while (payload >= 0 && payload < length && count < maxNals) {
+        AnnexBNal &nal = nals[count];
+        nal.payload = payload;
+        nal.start = getStart(buf, payload);
+        nal.type = getNalType(codec, buf[payload]);
+        if (count > 0) {
+            nals[count - 1].end = nal.start;
+        }
+        count++;
+
+        payload = findStartCode(buf, payload, length);
+    }
+    if (count > 0) {
+        nals[count - 1].end = length;
+    }
+    return count;
+}
+
+AnnexB::FrameType AnnexB::classify(const uint8_t *buf, int length, int codec, int *parameterSetsEnd) {
+    FrameType frameType = FRAME_UNKNOWN;
+    int end = -1;
+    int payload = findStartCode(buf, 0, length);
+    for (int i = 0; payload >= 0 && payload < length && i < MAX_HEADER_NALS; i++) {
+        int type = getNalType(codec, buf[payload]);
+        if (frameType == FRAME_CONFIG) {
+            if (!isParameterSet(codec, type)) {
+                end = getStart(buf, payload);
+                break;
+            }
+        } else if (isParameterSet(codec, type)) {
+            frameType = FRAME_CONFIG;
+        } else if (!isAuxiliary(codec, type)) {
+            // Slice. Rest of frame is not scanned.
+            frameType = isIRAP(codec, type) ? FRAME_IDR : FRAME_P;
+            break;
+        }
+        payload = findStartCode(buf, payload, length);
+    }
+    if (parameterSetsEnd != nullptr) {
+        *parameterSetsEnd = end;
+    }
+    return frameType;
+}
+
+bool AnnexB::isParameterSet(int codec, int type) {
+    if (codec == CODEC_H264) {
+        return type == H264_NAL_TYPE_SPS || type == H264_NAL_TYPE_PPS;
+    }
+    return type >= H265_NAL_TYPE_VPS && type <= H265_NAL_TYPE_PPS;
+}
+
+bool AnnexB::isIRAP(int codec, int type) {
+    if (codec == CODEC_H264) {
+        return type == H264_NAL_TYPE_IDR;
+    }
+    // BLA_W_LP, BLA_W_RADL, BLA_N_LP, IDR_W_RADL, IDR_N_LP, CRA_NUT and reserved IRAP types.
+    return type >= H265_NAL_TYPE_BLA_W_LP && type <= H265_NAL_TYPE_RSV_IRAP_23;
+}
+
+bool AnnexB::isAuxiliary(int codec, int type) {
+    if (codec == CODEC_H264) {
+        return type == H264_NAL_TYPE_AUD || type == H264_NAL_TYPE_SEI;
+    }
+    return type == H265_NAL_TYPE_AUD || type == H265_NAL_TYPE_PREFIX_SEI || type == H265_NAL_TYPE_SUFFIX_SEI;
+}
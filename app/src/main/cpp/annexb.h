@@ -0,0 +1,54 @@
+#ifndef ALVRCLIENT_ANNEXB_H
+#define ALVRCLIENT_ANNEXB_H
+
+#include <stdint.h>
+
+// Annex-B (start code delimited) bitstream parser for H.264 and H.265.
+// Start codes are searched a word at a time, and both 3-byte (00 00 01) and 4-byte (00 00 00 01)
+// start codes are recognized. Shared logic with AnnexBParser.java.
+
+struct AnnexBNal {
+    // Offset of start code.
+    int start;
+    // Offset of NAL header (first byte after start code).
+    int payload;
+    // Offset of next start code or end of buffer.
+    int end;
+    // nal_unit_type
+    int type;
+};
+
+class AnnexB {
+public:
+    // Same values as ALVR_CODEC_H264 / ALVR_CODEC_H265.
+    static const int CODEC_H264 = 0;
+    static const int CODEC_H265 = 1;
+
+    enum FrameType {
+        FRAME_UNKNOWN,
+        // Starts with (VPS + )SPS + PPS.
+        FRAME_CONFIG,
+        // First slice is IRAP (IDR, CRA, BLA).
+        FRAME_IDR,
+        FRAME_P
+    };
+
+    // Returns offset of the first byte after a start code found in [from, end), or -1.
+    static int findStartCode(const uint8_t *buf, int from, int end);
+
+    // Splits buf into NALs. Returns number of NALs stored (at most maxNals).
+    static int parse(const uint8_t *buf, int length, int codec, AnnexBNal *nals, int maxNals);
+
+    // Classify frame by its first NAL which is not AUD nor SEI.
+    // Start codes are searched only up to that NAL, or up to the end of leading parameter sets for FRAME_CONFIG,
+    // so slice data is not scanned. parameterSetsEnd (if given) receives offset where (VPS + )SPS + PPS end,
+    // or -1 if frame is not FRAME_CONFIG or no NAL follows them.
+    static FrameType classify(const uint8_t *buf, int length, int codec, int *parameterSetsEnd = nullptr);
+
+    static bool isParameterSet(int codec, int type);
+    static bool isIRAP(int codec, int type);
+    // AUD or SEI. Skipped when classifying frame.
+    static bool isAuxiliary(int codec, int type);
+};
+
+#endif //ALVRCLIENT_ANNEXB_H
@@ -7,9 +7,13 @@
 #include "utils.h"
 #include "udp.h"
 #include "latency_collector.h"
+#include "worker_pool.h"
 
 bool FECQueue::reed_solomon_initialized = false;
 
+// videoFrameIndex going back by more than this is treated as restart of stream, not as late packet.
+static const uint64_t FRAME_INDEX_RESTART_THRESHOLD = 64;
+
 FECQueue::FECQueue(UdpManager *udpManager) : mUdpManager(udpManager) {
     reset();
 
@@ -20,65 +24,117 @@ FECQueue::FECQueue(UdpManager *udpManager) : mUdpManager(udpManager) {
 }
 
 FECQueue::~FECQueue() {
-    if (m_rs != nullptr) {
-        reed_solomon_release(m_rs);
+    for (Frame &frame : m_frames) {
+        waitReconstruct(frame);
     }
 }
 
 void FECQueue::reset() {
     LOG("FECQueue: Reset.");
-    m_currentFrame.videoFrameIndex = UINT64_MAX;
-    m_recovered = true;
+    for (Frame &frame : m_frames) {
+        waitReconstruct(frame);
+        frame.active = false;
+    }
+    m_nextFrame = UINT64_MAX;
+    m_newestFrame = UINT64_MAX;
 
     mLastSuccessfulVideoFrame = -1;
     mIDRProcessed = false;
 }
 
+void FECQueue::setReorderWindow(int frames, uint64_t timeoutUs) {
+    m_reorderFrames = std::max(1, std::min(frames, MAX_FRAMES));
+    m_reorderTimeoutUs = timeoutUs;
+    LOGI("FECQueue: Reorder window. Frames=%d Timeout=%" PRIu64 " us", m_reorderFrames, m_reorderTimeoutUs);
+}
+
+void FECQueue::setOnFrame(FrameCallback onFrame) {
+    m_onFrame = onFrame;
+}
+
+void FECQueue::setWorkerPool(std::shared_ptr<WorkerPool> pool, int minColumns) {
+    m_workerPool = pool;
+    m_parallelMinColumns = std::max(minColumns, 1);
+}
+
 // Add packet to queue. packet must point to buffer whose size=ALVR_MAX_PACKET_SIZE.
 void FECQueue::addVideoPacket(const VideoFrame *packet, int packetSize) {
-    if (m_recovered && m_currentFrame.videoFrameIndex == packet->videoFrameIndex) {
-        // Ignore unused parity packets.
-        return;
+    uint64_t videoFrameIndex = packet->videoFrameIndex;
+    uint64_t now = getTimestampUs();
+
+    if (m_nextFrame != UINT64_MAX && videoFrameIndex < m_nextFrame) {
+        if (m_nextFrame - videoFrameIndex <= FRAME_INDEX_RESTART_THRESHOLD) {
+            // Late packet of delivered or lost frame, or unused parity.
+            return;
+        }
+        LOGI("FECQueue: videoFrameIndex went back. Restart. Expected=%" PRIu64 " Got=%" PRIu64, m_nextFrame,
+             videoFrameIndex);
+        for (Frame &frame : m_frames) {
+            frame.active = false;
+        }
+        m_nextFrame = UINT64_MAX;
+    }
+    if (m_nextFrame == UINT64_MAX) {
+        m_nextFrame = videoFrameIndex;
+        m_newestFrame = videoFrameIndex;
+    }
+    if (videoFrameIndex > m_newestFrame) {
+        m_newestFrame = videoFrameIndex;
+        // Finish frames which are pushed out of reorder window before their slot is reused.
+        processFrames(now);
     }
     //
     // Check new frame.
     //
-    if (m_currentFrame.videoFrameIndex != packet->videoFrameIndex) {
-        if (!m_recovered) {
-            frameLost(packet->videoFrameIndex, false);
-        }
-        if(m_currentFrame.videoFrameIndex != UINT64_MAX && m_currentFrame.videoFrameIndex + 1 != packet->videoFrameIndex) {
-            frameLost(packet->videoFrameIndex, true);
-        }
+    Frame &frame = m_frames[videoFrameIndex % MAX_FRAMES];
+    if (!frame.active || frame.header.videoFrameIndex != videoFrameIndex) {
         // Prepare FEC related variables.
-        newFrame(packet);
+        newFrame(frame, packet);
+        if (frame.rs == nullptr) {
+            LOGE("reed_solomon_new failed. videoFrameIndex=%" PRIu64, videoFrameIndex);
+            frame.active = false;
+            return;
+        }
     }
+    if (frame.recovered) {
+        // Ignore unused parity packets.
+        return;
+    }
+    frame.lastPacketTime = now;
     //
     // Process current packet.
     //
 
-    size_t shardIndex = packet->fecIndex / m_shardPackets;
-    size_t packetIndex = packet->fecIndex % m_shardPackets;
-    if (m_marks[packetIndex][shardIndex] == 0) {
+    size_t shardIndex = packet->fecIndex / frame.shardPackets;
+    size_t packetIndex = packet->fecIndex % frame.shardPackets;
+    if (shardIndex >= frame.totalShards) {
+        LOGE("Invalid fecIndex. videoFrameIndex=%" PRIu64 " fecIndex=%d", videoFrameIndex, packet->fecIndex);
+        return;
+    }
+    if (frame.marks[packetIndex][shardIndex] == 0) {
         // Duplicate packet.
         LOGI("Packet duplication. packetCounter=%d fecIndex=%d", packet->packetCounter,
              packet->fecIndex);
         return;
     }
+    if (frame.recoveredPacket[packetIndex]) {
+        // Column is already recovered. Ignore remaining parity.
+        return;
+    }
     LOG("[FEC]. videoFrameIndex=%" PRId64 " packetCounter=%d fecIndex=%d shardIndex=%zu packetIndex=%zu shardPackets=%zu", packet->videoFrameIndex, packet->packetCounter,
-         packet->fecIndex, shardIndex, packetIndex, m_shardPackets);
-    m_marks[packetIndex][shardIndex] = 0;
-    if (shardIndex < m_totalDataShards) {
-        m_receivedDataShards[packetIndex]++;
+         packet->fecIndex, shardIndex, packetIndex, frame.shardPackets);
+    frame.marks[packetIndex][shardIndex] = 0;
+    if (shardIndex < frame.totalDataShards) {
+        frame.receivedDataShards[packetIndex]++;
     } else {
-        m_receivedParityShards[packetIndex]++;
+        frame.receivedParityShards[packetIndex]++;
     }
 
     //
     // Copy packet buffer.
     //
 
-    char *p = &m_frameBuffer[packet->fecIndex * ALVR_MAX_VIDEO_BUFFER_SIZE];
+    char *p = &frame.frameBuffer[packet->fecIndex * ALVR_MAX_VIDEO_BUFFER_SIZE];
     char *payload = ((char *) packet) + sizeof(VideoFrame);
     int payloadSize = packetSize - sizeof(VideoFrame);
     memcpy(p, payload, payloadSize);
@@ -86,168 +142,261 @@ void FECQueue::addVideoPacket(const VideoFrame *packet, int packetSize) {
         // Fill padding
         memset(p + payloadSize, 0, ALVR_MAX_VIDEO_BUFFER_SIZE - payloadSize);
     }
+
+    if (frame.receivedDataShards[packetIndex] + frame.receivedParityShards[packetIndex] >= frame.totalDataShards) {
+        recoverPacket(frame, packetIndex);
+    }
+    if (frame.recoveredPackets == frame.shardPackets) {
+        waitReconstruct(frame);
+        frame.recovered = true;
+        bool isIDR = !mIDRProcessed;
+        mUdpManager->sendVideoFrameAck(true, isIDR, videoFrameIndex, videoFrameIndex);
+        FrameLog(frame.header.trackingFrameIndex, "[FEC] Frame was successfully recovered by FEC. VideoFrameIndex=%llu", videoFrameIndex);
+        processFrames(now);
+    }
 }
 
-bool FECQueue::reconstruct() {
-    if (m_recovered) {
-        return false;
+void FECQueue::checkTimeout() {
+    if (m_nextFrame == UINT64_MAX) {
+        return;
     }
+    processFrames(getTimestampUs());
+}
 
-    bool ret = true;
-    // On server side, we encoded all buffer in one call of reed_solomon_encode.
-    // But client side, we should split shards for more resilient recovery.
-    for (int packet = 0; packet < m_shardPackets; packet++) {
-        if (m_recoveredPacket[packet]) {
-            continue;
-        }
-        if (m_receivedDataShards[packet] == m_totalDataShards) {
-            // We've received a full packet with no need for FEC.
-            //FrameLog(m_currentFrame.frameIndex, "No need for FEC. packetIndex=%d", packet);
-            m_recoveredPacket[packet] = true;
-            continue;
-        }
-        m_rs->shards = m_receivedDataShards[packet] +
-                       m_receivedParityShards[packet]; //Don't let RS complain about missing parity packets
+bool FECQueue::hasPendingFrames() const {
+    return m_nextFrame != UINT64_MAX && m_nextFrame <= m_newestFrame;
+}
 
-        if (m_rs->shards < m_totalDataShards) {
-            // Not enough parity data
-            ret = false;
-            continue;
-        }
+// Recover one packet column as soon as enough shards have arrived, so that each packet is processed once
+// instead of rescanning all columns on every packet.
+void FECQueue::recoverPacket(Frame &frame, size_t packet) {
+    frame.recoveredPacket[packet] = true;
+    frame.recoveredPackets++;
 
-        FrameLog(m_currentFrame.trackingFrameIndex,
-                 "[FEC] Recovering. packetIndex=%d receivedDataShards=%d/%d receivedParityShards=%d/%d",
-                 packet, m_receivedDataShards[packet], m_totalDataShards,
-                 m_receivedParityShards[packet], m_totalParityShards);
+    if (frame.receivedDataShards[packet] == frame.totalDataShards) {
+        // We've received a full packet with no need for FEC.
+        return;
+    }
+    frame.reconstructPackets++;
+    if (m_workerPool != nullptr && frame.reconstructPackets >= static_cast<size_t>(m_parallelMinColumns)) {
+        // Many lossy columns (e.g. large IDR over bursty loss). Reconstruct in background so that receive
+        // thread keeps reading socket. Worker touches only this column, which receives no more packets.
+        frame.posted = true;
+        Frame *target = &frame;
+        m_workerPool->post([this, target, packet]() {
+            reconstructPacket(*target, packet);
+        });
+        return;
+    }
+    reconstructPacket(frame, packet);
+}
 
-        for (int i = 0; i < m_totalShards; i++) {
-            m_shards[i] = &m_frameBuffer[(i * m_shardPackets + packet) *
-                                         ALVR_MAX_VIDEO_BUFFER_SIZE];
-        }
+// May run on worker threads. Columns use disjoint parts of frameBuffer and rs is not modified.
+void FECQueue::reconstructPacket(Frame &frame, size_t packet) {
+    FrameLog(frame.header.trackingFrameIndex,
+             "[FEC] Recovering. packetIndex=%zu receivedDataShards=%d/%zu receivedParityShards=%d/%zu",
+             packet, frame.receivedDataShards[packet], frame.totalDataShards,
+             frame.receivedParityShards[packet], frame.totalParityShards);
 
-        int result = reed_solomon_reconstruct(m_rs, (unsigned char **) &m_shards[0],
-                                              &m_marks[packet][0],
-                                              m_totalShards, ALVR_MAX_VIDEO_BUFFER_SIZE);
-        m_recoveredPacket[packet] = true;
-        // We should always provide enough parity to recover the missing data successfully.
-        // If this fails, something is probably wrong with our FEC state.
-        if (result != 0) {
-            LOGE("reed_solomon_reconstruct failed.");
-            return false;
+    char *shards[ALVR_FEC_SHARDS_MAX];
+    for (size_t i = 0; i < frame.totalShards; i++) {
+        shards[i] = &frame.frameBuffer[(i * frame.shardPackets + packet) * ALVR_MAX_VIDEO_BUFFER_SIZE];
+    }
+
+    // rs is shared between frames and is not modified, so nr_shards is always rs->shards.
+    int result = reed_solomon_reconstruct(frame.rs.get(), (unsigned char **) shards,
+                                          &frame.marks[packet][0],
+                                          frame.totalShards, ALVR_MAX_VIDEO_BUFFER_SIZE);
+    // We should always provide enough parity to recover the missing data successfully.
+    // If this fails, something is probably wrong with our FEC state.
+    if (result != 0) {
+        LOGE("reed_solomon_reconstruct failed. packetIndex=%zu", packet);
+    }
+}
+
+// Wait for columns posted to worker pool before frame buffer is read or reused.
+void FECQueue::waitReconstruct(Frame &frame) {
+    if (frame.posted) {
+        m_workerPool->waitIdle();
+        frame.posted = false;
+    }
+}
+
+// Returns reed_solomon for the shard counts from LRU cache. reed_solomon_new builds encoding matrix,
+// which is expensive to do for every frame.
+std::shared_ptr<reed_solomon> FECQueue::getReedSolomon(int dataShards, int parityShards) {
+    for (auto it = m_rsCache.begin(); it != m_rsCache.end(); ++it) {
+        if (it->dataShards == dataShards && it->parityShards == parityShards) {
+            m_rsCache.splice(m_rsCache.begin(), m_rsCache, it);
+            return m_rsCache.front().rs;
         }
-        /*
-        for(int i = 0; i < m_totalShards * m_shardPackets; i++) {
-            char *p = &frameBuffer[ALVR_MAX_VIDEO_BUFFER_SIZE * i];
-            LOGI("Reconstructed packets. i=%d shardIndex=%d buffer=[%02X %02X %02X %02X %02X ...]", i, i / m_shardPackets, p[0], p[1], p[2], p[3], p[4]);
-        }*/
-    }
-    if (ret) {
-        m_recovered = true;
-        bool isIDR = !mIDRProcessed;
-        mUdpManager->sendVideoFrameAck(true, isIDR,
-                                       m_currentFrame.videoFrameIndex, m_currentFrame.videoFrameIndex);
-        mLastSuccessfulVideoFrame = m_currentFrame.videoFrameIndex;
-        FrameLog(m_currentFrame.trackingFrameIndex, "[FEC] Frame was successfully recovered by FEC. VideoFrameIndex=%llu", m_currentFrame.videoFrameIndex);
     }
-    return ret;
+    reed_solomon *rs = reed_solomon_new(dataShards, parityShards);
+    if (rs == nullptr) {
+        return nullptr;
+    }
+    LOGI("FECQueue: New reed_solomon. dataShards=%d parityShards=%d", dataShards, parityShards);
+    // Frames hold reference, so evicted instance is released when no frame uses it.
+    m_rsCache.push_front({dataShards, parityShards, std::shared_ptr<reed_solomon>(rs, reed_solomon_release)});
+    if (m_rsCache.size() > RS_CACHE_SIZE) {
+        m_rsCache.pop_back();
+    }
+    return m_rsCache.front().rs;
 }
 
-const char *FECQueue::getFrameBuffer() {
-    return &m_frameBuffer[0];
+FECQueue::Frame *FECQueue::findFrame(uint64_t videoFrameIndex) {
+    Frame &frame = m_frames[videoFrameIndex % MAX_FRAMES];
+    if (frame.active && frame.header.videoFrameIndex == videoFrameIndex) {
+        return &frame;
+    }
+    return nullptr;
 }
 
-int FECQueue::getFrameByteSize() {
-    return m_currentFrame.frameByteSize;
+// Deliver completed frames in order and declare lost the frames which can no longer be completed.
+void FECQueue::processFrames(uint64_t now) {
+    uint64_t lostStart = UINT64_MAX;
+    while (m_nextFrame <= m_newestFrame) {
+        Frame *frame = findFrame(m_nextFrame);
+        if (frame != nullptr && frame->recovered) {
+            if (lostStart != UINT64_MAX) {
+                frameLost(lostStart, m_nextFrame - 1);
+                lostStart = UINT64_MAX;
+            }
+            frame->active = false;
+            mLastSuccessfulVideoFrame = m_nextFrame;
+            m_nextFrame++;
+            if (m_onFrame) {
+                m_onFrame(frame->header, &frame->frameBuffer[0], frame->header.frameByteSize);
+            }
+            continue;
+        }
+
+        bool expired = m_nextFrame + m_reorderFrames <= m_newestFrame;
+        if (!expired) {
+            // No packet since the timeout. For wholly missing frame, count from last packet of a newer frame.
+            uint64_t lastPacketTime = 0;
+            if (frame != nullptr) {
+                lastPacketTime = frame->lastPacketTime;
+            } else {
+                for (uint64_t i = m_nextFrame + 1; i <= m_newestFrame; i++) {
+                    Frame *newer = findFrame(i);
+                    if (newer != nullptr) {
+                        lastPacketTime = newer->lastPacketTime;
+                        break;
+                    }
+                }
+            }
+            expired = lastPacketTime != 0 && lastPacketTime + m_reorderTimeoutUs <= now;
+        }
+        if (!expired) {
+            break;
+        }
+        if (frame != nullptr) {
+            FrameLog(frame->header.trackingFrameIndex,
+                     "[FEC] Frame cannot be recovered. videoFrame=%llu(%d bytes) shards=%u:%u"
+                     " fecPercentage=%d m_totalShards=%u m_shardPackets=%u m_blockSize=%u",
+                     frame->header.videoFrameIndex, frame->header.frameByteSize,
+                     frame->totalDataShards, frame->totalParityShards,
+                     frame->header.fecPercentage, frame->totalShards,
+                     frame->shardPackets, frame->blockSize);
+            for (size_t packet = 0; packet < frame->shardPackets; packet++) {
+                FrameLog(frame->header.trackingFrameIndex,
+                         "packetIndex=%d/%d, shards=%u:%u(%u/%u) Okay=%d",
+                         packet, frame->shardPackets, frame->receivedDataShards[packet],
+                         frame->receivedParityShards[packet],
+                         frame->receivedDataShards[packet] + frame->receivedParityShards[packet],
+                         frame->totalShards, (bool) frame->recoveredPacket[packet]);
+            }
+            frame->active = false;
+        }
+        if (lostStart == UINT64_MAX) {
+            lostStart = m_nextFrame;
+        }
+        m_nextFrame++;
+    }
+    if (lostStart != UINT64_MAX) {
+        frameLost(lostStart, m_nextFrame - 1);
+    }
 }
 
 void FECQueue::OnIDRProcessed() {
     mIDRProcessed = true;
 }
 
-void FECQueue::frameLost(uint64_t currentVideoFrame, bool wholeLost) {
-    FrameLog(m_currentFrame.trackingFrameIndex,
-             "[FEC] Frame cannot be recovered. videoFrame=%llu(%d bytes) shards=%u:%u frameByteSize=%d"
-             " fecPercentage=%d m_totalShards=%u m_shardPackets=%u m_blockSize=%u",
-             m_currentFrame.videoFrameIndex, m_currentFrame.frameByteSize,
-             m_totalDataShards, m_totalParityShards,
-             m_currentFrame.fecPercentage, m_totalShards,
-             m_shardPackets, m_blockSize);
-    for (int packet = 0; packet < m_shardPackets; packet++) {
-        FrameLog(m_currentFrame.trackingFrameIndex,
-                 "packetIndex=%d/%d, shards=%u:%u(%u/%u) Okay=%d",
-                 packet, m_shardPackets, m_receivedDataShards[packet], m_receivedParityShards[packet],
-                 m_receivedDataShards[packet] + m_receivedParityShards[packet],
-                 m_totalShards, m_receivedDataShards[packet] + m_receivedParityShards[packet] >= m_totalShards);
-    }
-
+void FECQueue::frameLost(uint64_t startFrame, uint64_t endFrame) {
     LatencyCollector::Instance().fecFailure();
 
     bool isIDR = !mIDRProcessed;
-    mUdpManager->sendVideoFrameAck(false, isIDR,
-                                   static_cast<uint64_t>(mLastSuccessfulVideoFrame + 1), currentVideoFrame - 1);
-    LOG("[FEC] VideoFrameFailed (%s lost): %" PRId64 " - %" PRId64 " IDR=%d Previous=%" PRId64 " Current=%" PRId64,
-        wholeLost ? "Whole" : "Partial", mLastSuccessfulVideoFrame + 1, currentVideoFrame - 1, isIDR, currentVideoFrame,
-        m_currentFrame.videoFrameIndex);
-
-    mLastSuccessfulVideoFrame = currentVideoFrame - 1;
+    mUdpManager->sendVideoFrameAck(false, isIDR, startFrame, endFrame);
+    LOG("[FEC] VideoFrameFailed: %" PRIu64 " - %" PRIu64 " IDR=%d Previous=%" PRId64 " Next=%" PRIu64 " Newest=%" PRIu64,
+        startFrame, endFrame, isIDR, mLastSuccessfulVideoFrame, m_nextFrame, m_newestFrame);
 }
 
-void FECQueue::newFrame(const VideoFrame *packet) {
-    m_currentFrame = *packet;
-    m_recovered = false;
-    if (m_rs != nullptr) {
-        reed_solomon_release(m_rs);
-    }
+void FECQueue::newFrame(Frame &frame, const VideoFrame *packet) {
+    waitReconstruct(frame);
+    frame.header = *packet;
+    frame.active = true;
+    frame.recovered = false;
 
     uint32_t fecDataPackets = (packet->frameByteSize + ALVR_MAX_VIDEO_BUFFER_SIZE - 1) /
                               ALVR_MAX_VIDEO_BUFFER_SIZE;
-    m_shardPackets = static_cast<size_t>(CalculateFECShardPackets(m_currentFrame.frameByteSize,
-                                                                  m_currentFrame.fecPercentage));
-    m_blockSize = m_shardPackets * ALVR_MAX_VIDEO_BUFFER_SIZE;
+    frame.shardPackets = static_cast<size_t>(CalculateFECShardPackets(frame.header.frameByteSize,
+                                                                      frame.header.fecPercentage));
+    frame.blockSize = frame.shardPackets * ALVR_MAX_VIDEO_BUFFER_SIZE;
 
-    m_totalDataShards = (m_currentFrame.frameByteSize + m_blockSize - 1) / m_blockSize;
-    m_totalParityShards = static_cast<size_t>(CalculateParityShards(m_totalDataShards,
-                                                                    m_currentFrame.fecPercentage));
-    m_totalShards = m_totalDataShards + m_totalParityShards;
+    frame.totalDataShards = (frame.header.frameByteSize + frame.blockSize - 1) / frame.blockSize;
+    frame.totalParityShards = static_cast<size_t>(CalculateParityShards(frame.totalDataShards,
+                                                                        frame.header.fecPercentage));
+    frame.totalShards = frame.totalDataShards + frame.totalParityShards;
 
-    m_recoveredPacket.clear();
-    m_recoveredPacket.resize(m_shardPackets);
+    frame.recoveredPacket.clear();
+    frame.recoveredPacket.resize(frame.shardPackets);
+    frame.recoveredPackets = 0;
 
-    m_receivedDataShards.clear();
-    m_receivedDataShards.resize(m_shardPackets);
-    m_receivedParityShards.clear();
-    m_receivedParityShards.resize(m_shardPackets);
+    frame.receivedDataShards.clear();
+    frame.receivedDataShards.resize(frame.shardPackets);
+    frame.receivedParityShards.clear();
+    frame.receivedParityShards.resize(frame.shardPackets);
 
-    m_shards.resize(m_totalShards);
+    frame.reconstructPackets = 0;
 
-    m_rs = reed_solomon_new(static_cast<int>(m_totalDataShards),
-                            static_cast<int>(m_totalParityShards));
-    if (m_rs == nullptr) {
+    frame.rs = getReedSolomon(static_cast<int>(frame.totalDataShards),
+                              static_cast<int>(frame.totalParityShards));
+    if (frame.rs == nullptr) {
         return;
     }
 
-    m_marks.resize(m_shardPackets);
-    for (int i = 0; i < m_shardPackets; i++) {
-        m_marks[i].resize(m_totalShards);
-        memset(&m_marks[i][0], 1, m_totalShards);
+    frame.marks.resize(frame.shardPackets);
+    for (size_t i = 0; i < frame.shardPackets; i++) {
+        frame.marks[i].resize(frame.totalShards);
+        memset(&frame.marks[i][0], 1, frame.totalShards);
     }
 
-    if (m_frameBuffer.size() < m_totalShards * m_blockSize) {
+    if (frame.frameBuffer.size() < frame.totalShards * frame.blockSize) {
         // Only expand buffer for performance reason.
-        m_frameBuffer.resize(m_totalShards * m_blockSize);
+        frame.frameBuffer.resize(frame.totalShards * frame.blockSize);
     }
-    memset(&m_frameBuffer[0], 0, m_totalShards * m_blockSize);
+    // Buffer is not cleared as a whole. Received packets overwrite their area (and zero short tail),
+    // missing data packets are fully written by reconstruction and missing parity is never read.
 
     // Padding packets are not sent, so we can fill bitmap by default.
-    size_t padding = (m_shardPackets - fecDataPackets % m_shardPackets) % m_shardPackets;
+    size_t padding = (frame.shardPackets - fecDataPackets % frame.shardPackets) % frame.shardPackets;
     for (size_t i = 0; i < padding; i++) {
-        m_marks[m_shardPackets - i - 1][m_totalDataShards - 1] = 0;
-        m_receivedDataShards[m_shardPackets - i - 1]++;
+        size_t packet = frame.shardPackets - i - 1;
+        // Padding is zero on encoder.
+        memset(&frame.frameBuffer[((frame.totalDataShards - 1) * frame.shardPackets + packet) *
+                                  ALVR_MAX_VIDEO_BUFFER_SIZE], 0, ALVR_MAX_VIDEO_BUFFER_SIZE);
+        frame.marks[packet][frame.totalDataShards - 1] = 0;
+        frame.receivedDataShards[packet]++;
+        if (frame.receivedDataShards[packet] >= frame.totalDataShards) {
+            // Single data shard frame. Padding column is complete without any packet.
+            recoverPacket(frame, packet);
+        }
     }
 
-    FrameLog(m_currentFrame.trackingFrameIndex,
+    FrameLog(frame.header.trackingFrameIndex,
              "Start new frame. videoFrame=%llu frameByteSize=%d fecPercentage=%d m_totalDataShards=%u m_totalParityShards=%u"
              " m_totalShards=%u m_shardPackets=%u m_blockSize=%u",
-             m_currentFrame.videoFrameIndex, m_currentFrame.frameByteSize, m_currentFrame.fecPercentage, m_totalDataShards,
-             m_totalParityShards, m_totalShards, m_shardPackets, m_blockSize);
+             frame.header.videoFrameIndex, frame.header.frameByteSize, frame.header.fecPercentage, frame.totalDataShards,
+             frame.totalParityShards, frame.totalShards, frame.shardPackets, frame.blockSize);
 }
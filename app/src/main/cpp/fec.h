@@ -3,48 +3,109 @@
 
 #include <list>
 #include <vector>
+#include <memory>
+#include <functional>
 #include "packet_types.h"
 #include "reedsolomon/rs.h"
 
 class UdpManager;
+class WorkerPool;
 
+// Reassembles video frames from FEC packets. Up to MAX_FRAMES frames are reassembled at the same time,
+// so that packets of consecutive frames may interleave or be reordered. Frames are delivered in order of
+// videoFrameIndex. A frame is declared lost when it falls out of reorder window or no packet arrived for
+// the timeout.
 class FECQueue {
 public:
+    static const int MAX_FRAMES = 4;
+    // Number of reed_solomon instances kept for reuse. Shard counts change only when frame size changes a lot.
+    static const size_t RS_CACHE_SIZE = 8;
+
     FECQueue(UdpManager *udpManager);
     ~FECQueue();
 
     void reset();
 
+    // frames: Number of frames in flight. 1 means first packet of next frame declares incomplete frame lost.
+    // timeoutUs: Incomplete frame is declared lost after no packet arrived for this duration.
+    void setReorderWindow(int frames, uint64_t timeoutUs);
+
+    // Called for each completed frame in order. buffer is valid only during the call.
+    typedef std::function<void(const VideoFrame &frame, const char *buffer, int size)> FrameCallback;
+    void setOnFrame(FrameCallback onFrame);
+
+    // Packet columns are reconstructed on pool from the minColumns-th column of a frame which needs
+    // reconstruction. Frames with fewer lossy columns are reconstructed inline. nullptr disables.
+    void setWorkerPool(std::shared_ptr<WorkerPool> pool, int minColumns);
+
     void addVideoPacket(const VideoFrame *packet, int packetSize);
-    bool reconstruct();
-    const char *getFrameBuffer();
-    int getFrameByteSize();
+    // Expire frames which have passed timeout. Called periodically from receive loop.
+    void checkTimeout();
+    // Returns true if some frame is waiting for packets or for earlier frames.
+    bool hasPendingFrames() const;
 
     void OnIDRProcessed();
 private:
+    struct Frame {
+        bool active = false;
+        bool recovered = false;
+        VideoFrame header;
+        uint64_t lastPacketTime = 0;
+
+        size_t shardPackets = 0;
+        size_t blockSize = 0;
+        size_t totalDataShards = 0;
+        size_t totalParityShards = 0;
+        size_t totalShards = 0;
+        std::vector<std::vector<unsigned char>> marks;
+        std::vector<char> frameBuffer;
+        std::vector<uint32_t> receivedDataShards;
+        std::vector<uint32_t> receivedParityShards;
+        // Packet columns which have all data shards (received or reconstructed).
+        std::vector<bool> recoveredPacket;
+        size_t recoveredPackets = 0;
+        // Number of columns which needed reconstruction.
+        size_t reconstructPackets = 0;
+        // Some columns were posted to worker pool and may be in progress.
+        bool posted = false;
+        std::shared_ptr<reed_solomon> rs;
+    };
+
+    struct CachedReedSolomon {
+        int dataShards;
+        int parityShards;
+        std::shared_ptr<reed_solomon> rs;
+    };
+
     UdpManager *mUdpManager;
+    FrameCallback m_onFrame;
+
+    std::shared_ptr<WorkerPool> m_workerPool;
+    int m_parallelMinColumns = 0;
+
+    Frame m_frames[MAX_FRAMES];
+    // Most recently used first.
+    std::list<CachedReedSolomon> m_rsCache;
+    // videoFrameIndex of next frame to be delivered. UINT64_MAX until first packet.
+    uint64_t m_nextFrame;
+    uint64_t m_newestFrame;
+
+    int m_reorderFrames = 1;
+    uint64_t m_reorderTimeoutUs = 0;
 
-    VideoFrame m_currentFrame;
-    size_t m_shardPackets;
-    size_t m_blockSize;
-    size_t m_totalDataShards;
-    size_t m_totalParityShards;
-    size_t m_totalShards;
-    std::vector<std::vector<unsigned char>> m_marks;
-    std::vector<char> m_frameBuffer;
-    std::vector<uint32_t> m_receivedDataShards;
-    std::vector<uint32_t> m_receivedParityShards;
-    std::vector<bool> m_recoveredPacket;
-    std::vector<char *> m_shards;
-    bool m_recovered;
-    reed_solomon *m_rs = nullptr;
     int64_t mLastSuccessfulVideoFrame;
     bool mIDRProcessed;
 
     static bool reed_solomon_initialized;
 
-    void newFrame(const VideoFrame *packet);
-    void frameLost(uint64_t currentVideoFrame, bool wholeLost);
+    std::shared_ptr<reed_solomon> getReedSolomon(int dataShards, int parityShards);
+    Frame *findFrame(uint64_t videoFrameIndex);
+    void newFrame(Frame &frame, const VideoFrame *packet);
+    void recoverPacket(Frame &frame, size_t packet);
+    void reconstructPacket(Frame &frame, size_t packet);
+    void waitReconstruct(Frame &frame);
+    void processFrames(uint64_t now);
+    void frameLost(uint64_t startFrame, uint64_t endFrame);
 };
 
 #endif //ALVRCLIENT_FEC_H
@@ -4,17 +4,18 @@
 
 #include <string>
 #include <stdlib.h>
+#include <inttypes.h>
 #include <android/log.h>
 #include <pthread.h>
 #include "nal.h"
 #include "packet_types.h"
+#include "udp.h"
+#include "annexb.h"
+#include "latency_collector.h"
 
-static const int NAL_TYPE_SPS = 7;
 
-static const int H265_NAL_TYPE_VPS = 32;
-
-
-NALParser::NALParser(JNIEnv *env, jobject udpManager, UdpManager *udpManager_C) : m_queue(udpManager_C) {
+NALParser::NALParser(JNIEnv *env, jobject udpManager, UdpManager *udpManager_C) : m_queue(udpManager_C),
+                                                                                   m_udpManager(udpManager_C) {
     LOGE("NALParser initialized %p", this);
 
     m_env = env;
@@ -24,12 +25,16 @@ NALParser::NALParser(JNIEnv *env, jobject udpManager, UdpManager *udpManager_C)
     NAL_length = env->GetFieldID(NAL_clazz, "length", "I");
     NAL_frameIndex = env->GetFieldID(NAL_clazz, "frameIndex", "J");
     NAL_buf = env->GetFieldID(NAL_clazz, "buf", "[B");
+    NAL_directBuf = env->GetFieldID(NAL_clazz, "directBuf", "Ljava/nio/ByteBuffer;");
     env->DeleteLocalRef(NAL_clazz);
 
     jclass udpManagerClazz = env->FindClass("com/polygraphene/alvr/UdpReceiverThread");
     mObtainNALMethodID = env->GetMethodID(udpManagerClazz, "obtainNAL", "(I)Lcom/polygraphene/alvr/NAL;");
     mPushNALMethodID = env->GetMethodID(udpManagerClazz, "pushNAL", "(Lcom/polygraphene/alvr/NAL;)V");
     env->DeleteLocalRef(udpManagerClazz);
+
+    m_queue.setOnFrame(std::bind(&NALParser::processFrame, this, std::placeholders::_1,
+                                 std::placeholders::_2, std::placeholders::_3));
 }
 
 NALParser::~NALParser() {
@@ -38,99 +43,138 @@ NALParser::~NALParser() {
 
 void NALParser::reset() {
     m_queue.reset();
+    mOverloaded = false;
 }
 
 void NALParser::setCodec(int codec) {
     m_codec = codec;
 }
 
-bool NALParser::processPacket(VideoFrame *packet, int packetSize) {
+void NALParser::setReorderWindow(int frames, uint64_t timeoutUs) {
+    m_queue.setReorderWindow(frames, timeoutUs);
+}
+
+void NALParser::setFecWorkerPool(std::shared_ptr<WorkerPool> pool, int minColumns) {
+    m_queue.setWorkerPool(pool, minColumns);
+}
+
+void NALParser::processPacket(VideoFrame *packet, int packetSize) {
     m_queue.addVideoPacket(packet, packetSize);
+}
 
-    bool result = m_queue.reconstruct();
-    if (!result) {
-        return false;
-    }
+void NALParser::checkTimeout() {
+    m_queue.checkTimeout();
+}
 
-    // Reconstructed
-    const char *frameBuffer = m_queue.getFrameBuffer();
-    int frameByteSize = m_queue.getFrameByteSize();
+bool NALParser::hasPendingFrames() const {
+    return m_queue.hasPendingFrames();
+}
 
-    int NALType;
-    if (m_codec == ALVR_CODEC_H264) {
-        NALType = frameBuffer[4] & 0x1F;
-    } else {
-        NALType = (frameBuffer[4] >> 1) & 0x3F;
-    }
+void NALParser::processFrame(const VideoFrame &header, const char *frameBuffer, int frameByteSize) {
+    const uint8_t *frame = reinterpret_cast<const uint8_t *>(frameBuffer);
+    int end = -1;
+    AnnexB::FrameType frameType = AnnexB::classify(frame, frameByteSize, m_codec, &end);
 
-    if ((m_codec == ALVR_CODEC_H264 && NALType == NAL_TYPE_SPS) ||
-        (m_codec == ALVR_CODEC_H265 && NALType == H265_NAL_TYPE_VPS)) {
+    if (frameType == AnnexB::FRAME_CONFIG) {
         // This frame contains (VPS + )SPS + PPS + IDR on NVENC H.264 (H.265) stream.
         // (VPS + )SPS + PPS has short size (8bytes + 28bytes in some environment), so we can assume SPS + PPS is contained in first fragment.
-
-        int end = findVPSSPS(frameBuffer, frameByteSize);
         if (end == -1) {
             // Invalid frame.
             LOG("Got invalid frame. Too large SPS or PPS?");
-            return false;
+            return;
+        }
+        LOGI("Got frame=%d %d, Codec=%d", frameType, end, m_codec);
+        if (!push(&frameBuffer[0], end, header.trackingFrameIndex) ||
+            !push(&frameBuffer[end], frameByteSize - end, header.trackingFrameIndex)) {
+            onOverload(header);
+            return;
         }
-        LOGI("Got frame=%d %d, Codec=%d", NALType, end, m_codec);
-        push(&frameBuffer[0], end, packet->trackingFrameIndex);
-        push(&frameBuffer[end], frameByteSize - end, packet->trackingFrameIndex);
 
         m_queue.OnIDRProcessed();
     } else {
-        push(&frameBuffer[0], frameByteSize, packet->trackingFrameIndex);
+        if (mOverloaded && frameType != AnnexB::FRAME_IDR) {
+            // Decoder has lost reference frame. Drop until next IRAP.
+            FrameLog(header.trackingFrameIndex, "Dropping P-Frame while NAL queue is overloaded.");
+            if (mLastKeyframeRequest + KEYFRAME_REQUEST_INTERVAL < getTimestampUs()) {
+                requestKeyframe(header.videoFrameIndex);
+            }
+            return;
+        }
+        if (!push(&frameBuffer[0], frameByteSize, header.trackingFrameIndex)) {
+            onOverload(header);
+            return;
+        }
     }
-    return true;
+
+    if (mOverloaded) {
+        // Any IRAP (IDR, CRA, BLA) ends overload, with or without in-band parameter sets.
+        // Decoder keeps last parameter sets, so it can decode from here.
+        mOverloaded = false;
+        uint64_t duration = getTimestampUs() - mOverloadStart;
+        mOverloadTotalUs += duration;
+        LOGI("NAL queue recovered from overload by keyframe. Duration=%" PRIu64 " us Count=%" PRIu64 " Total=%" PRIu64 " us",
+             duration, mOverloadCount, mOverloadTotalUs);
+    }
+    LatencyCollector::Instance().receivedLast(header.trackingFrameIndex);
+}
+
+void NALParser::onOverload(const VideoFrame &header) {
+    if (!mOverloaded) {
+        mOverloaded = true;
+        mOverloadStart = getTimestampUs();
+        mOverloadCount++;
+        LOGE("NAL Queue is full. Drop frames until next IDR. videoFrameIndex=%" PRIu64, header.videoFrameIndex);
+    }
+    requestKeyframe(header.videoFrameIndex);
 }
 
-void NALParser::push(const char *buffer, int length, uint64_t frameIndex) {
+void NALParser::requestKeyframe(uint64_t videoFrameIndex) {
+    // Report as lost IDR so that server produces keyframe instead of waiting.
+    m_udpManager->sendVideoFrameAck(false, true, videoFrameIndex, videoFrameIndex);
+    mLastKeyframeRequest = getTimestampUs();
+}
+
+bool NALParser::push(const char *buffer, int length, uint64_t frameIndex) {
     jobject nal;
-    jbyteArray buf;
 
     nal = m_env->CallObjectMethod(mUdpManager, mObtainNALMethodID, static_cast<jint>(length));
     if (nal == nullptr) {
-        LOGE("NAL Queue is full.");
-        return;
+        return false;
     }
 
     m_env->SetIntField(nal, NAL_length, length);
     m_env->SetLongField(nal, NAL_frameIndex, frameIndex);
 
-    buf = (jbyteArray) m_env->GetObjectField(nal, NAL_buf);
-    char *cbuf = (char *) m_env->GetByteArrayElements(buf, NULL);
+    jobject directBuf = m_env->GetObjectField(nal, NAL_directBuf);
+    if (directBuf != nullptr) {
+        // Single copy from FEC buffer into Java visible memory.
+        char *cbuf = (char *) m_env->GetDirectBufferAddress(directBuf);
+        m_env->DeleteLocalRef(directBuf);
+        if (cbuf == nullptr) {
+            // NAL is dropped. Report failure so that decoder waits next IDR instead of losing reference frame.
+            LOGE("GetDirectBufferAddress failed. Drop NAL.");
+            m_env->DeleteLocalRef(nal);
+            return false;
+        }
+        memcpy(cbuf, buffer, length);
+    } else {
+        // Fallback to byte[].
+        jbyteArray buf = (jbyteArray) m_env->GetObjectField(nal, NAL_buf);
+        char *cbuf = (char *) m_env->GetByteArrayElements(buf, NULL);
+        if (cbuf == nullptr) {
+            LOGE("GetByteArrayElements failed. Drop NAL.");
+            m_env->DeleteLocalRef(buf);
+            m_env->DeleteLocalRef(nal);
+            return false;
+        }
 
-    memcpy(cbuf, buffer, length);
-    m_env->ReleaseByteArrayElements(buf, (jbyte *) cbuf, 0);
-    m_env->DeleteLocalRef(buf);
+        memcpy(cbuf, buffer, length);
+        m_env->ReleaseByteArrayElements(buf, (jbyte *) cbuf, 0);
+        m_env->DeleteLocalRef(buf);
+    }
 
     m_env->CallVoidMethod(mUdpManager, mPushNALMethodID, nal);
 
     m_env->DeleteLocalRef(nal);
-}
-
-int NALParser::findVPSSPS(const char *frameBuffer, int frameByteSize) {
-    int zeroes = 0;
-    int foundNals = 0;
-    for (int i = 0; i < frameByteSize; i++) {
-        if (frameBuffer[i] == 0) {
-            zeroes++;
-        } else if (frameBuffer[i] == 1) {
-            if (zeroes == 3) {
-                foundNals++;
-                if (m_codec == ALVR_CODEC_H264 && foundNals >= 3) {
-                    // Find end of SPS+PPS on H.264.
-                    return i - 3;
-                } else if (m_codec == ALVR_CODEC_H265 && foundNals >= 4) {
-                    // Find end of VPS+SPS+PPS on H.264.
-                    return i - 3;
-                }
-            }
-            zeroes = 0;
-        } else {
-            zeroes = 0;
-        }
-    }
-    return -1;
+    return true;
 }
@@ -15,12 +15,25 @@ public:
     void reset();
 
     void setCodec(int codec);
-    bool processPacket(VideoFrame *packet, int packetSize);
+    void setReorderWindow(int frames, uint64_t timeoutUs);
+    void setFecWorkerPool(std::shared_ptr<WorkerPool> pool, int minColumns);
+    void processPacket(VideoFrame *packet, int packetSize);
+    // Called periodically from receive loop to expire incomplete frames.
+    void checkTimeout();
+    bool hasPendingFrames() const;
+    void requestKeyframe(uint64_t videoFrameIndex);
 private:
-    void push(const char *buffer, int length, uint64_t frameIndex);
-    int findVPSSPS(const char *frameBuffer, int frameByteSize);
+    // Interval of resending keyframe request while NAL queue is overloaded.
+    static const uint64_t KEYFRAME_REQUEST_INTERVAL = 500 * 1000;
+
+    bool push(const char *buffer, int length, uint64_t frameIndex);
+
+    // Called by m_queue for each completed frame in order.
+    void processFrame(const VideoFrame &header, const char *frameBuffer, int frameByteSize);
+    void onOverload(const VideoFrame &header);
 
     FECQueue m_queue;
+    UdpManager *m_udpManager;
 
     int m_codec = 1;
 
@@ -30,10 +43,18 @@ private:
     jfieldID NAL_length;
     jfieldID NAL_frameIndex;
     jfieldID NAL_buf;
+    jfieldID NAL_directBuf;
 
     jmethodID mObtainNALMethodID;
     jmethodID mPushNALMethodID;
 
     bool mIDRProcessed = false;
+
+    // NAL queue overflowed. Frames are dropped until next IRAP (IDR, CRA, BLA).
+    bool mOverloaded = false;
+    uint64_t mOverloadStart = 0;
+    uint64_t mLastKeyframeRequest = 0;
+    uint64_t mOverloadCount = 0;
+    uint64_t mOverloadTotalUs = 0;
 };
 #endif //ALVRCLIENT_NAL_H
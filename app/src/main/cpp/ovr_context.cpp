@@ -648,6 +648,24 @@ void OvrContext::renderLoading() {
     vrapi_SubmitFrame2(Ovr, &frameDesc);
 }
 
+uint64_t OvrContext::getPredictedDisplayTime() {
+    if (Ovr == nullptr) {
+        return 0;
+    }
+    double displayTime = vrapi_GetPredictedDisplayTime(Ovr, FrameIndex);
+    return static_cast<uint64_t>(displayTime * 1000 * 1000 * 1000);
+}
+
+int64_t OvrContext::getFrameAge(uint64_t frameIndex) {
+    MutexLock lock(trackingFrameMutex);
+
+    const auto it = trackingFrameMap.find(frameIndex);
+    if (it == trackingFrameMap.end()) {
+        return -1;
+    }
+    return static_cast<int64_t>(getTimestampUs() - it->second->fetchTime);
+}
+
 void OvrContext::setFrameGeometry(int width, int height) {
     int eye_width = width / 2;
     if (eye_width != FrameBufferWidth || height != FrameBufferHeight) {
@@ -1097,6 +1115,20 @@ Java_com_polygraphene_alvr_OvrContext_renderLoadingNative(JNIEnv *env, jobject i
     return ((OvrContext *) handle)->renderLoading();
 }
 
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_polygraphene_alvr_OvrContext_getPredictedDisplayTimeNative(JNIEnv *env, jobject instance,
+                                                                    jlong handle) {
+    return static_cast<jlong>(((OvrContext *) handle)->getPredictedDisplayTime());
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_polygraphene_alvr_OvrContext_getFrameAgeNative(JNIEnv *env, jobject instance, jlong handle,
+                                                        jlong frameIndex) {
+    return static_cast<jlong>(((OvrContext *) handle)->getFrameAge(static_cast<uint64_t>(frameIndex)));
+}
+
 // Called from TrackingThread
 extern "C"
 JNIEXPORT void JNICALL
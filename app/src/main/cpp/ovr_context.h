@@ -27,6 +27,10 @@ public:
 
     void render(uint64_t renderedFrameIndex);
     void renderLoading();
+    // Predicted display time of next frame in ns (CLOCK_MONOTONIC), or 0 if not in VR mode.
+    uint64_t getPredictedDisplayTime();
+    // Time since tracking info of frameIndex was sent in us, or -1 if it is not in trackingFrameMap.
+    int64_t getFrameAge(uint64_t frameIndex);
 
     void fetchTrackingInfo(JNIEnv *env_, jobject udpReceiverThread,
                            ovrVector3f *position, ovrQuatf *orientation);
@@ -8,7 +8,11 @@
 #include <endian.h>
 #include <algorithm>
 #include <errno.h>
+#include <inttypes.h>
 #include <sys/ioctl.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
+#include <sys/timerfd.h>
 #include "utils.h"
 #include "latency_collector.h"
 #include "udp.h"
@@ -64,6 +68,30 @@ void Socket::initialize(JNIEnv *env, int helloPort, int port, jobjectArray broad
         throw FormatException("bind error : %d %s", errno, strerror(errno));
     }
 
+    //
+    // Buffers for batched receive.
+    //
+
+#ifdef ALVR_HAVE_MMSG
+    m_recvBuffer.resize(RECV_BATCH_SIZE * MAX_PACKET_SIZE);
+    m_recvMessages.resize(RECV_BATCH_SIZE);
+    m_recvIovecs.resize(RECV_BATCH_SIZE);
+    m_recvAddrs.resize(RECV_BATCH_SIZE);
+    for (int i = 0; i < RECV_BATCH_SIZE; i++) {
+        m_recvIovecs[i].iov_base = &m_recvBuffer[i * MAX_PACKET_SIZE];
+        m_recvIovecs[i].iov_len = MAX_PACKET_SIZE;
+        memset(&m_recvMessages[i], 0, sizeof(m_recvMessages[i]));
+        m_recvMessages[i].msg_hdr.msg_iov = &m_recvIovecs[i];
+        m_recvMessages[i].msg_hdr.msg_iovlen = 1;
+        m_recvMessages[i].msg_hdr.msg_name = &m_recvAddrs[i];
+        m_recvMessages[i].msg_hdr.msg_namelen = sizeof(sockaddr_in);
+    }
+    m_recvBatched = true;
+
+    m_sendMessages.resize(SEND_BATCH_SIZE);
+    m_sendBatched = true;
+#endif
+
     //
     // Parse broadcast address list.
     //
@@ -101,12 +129,53 @@ int Socket::send(const void *buf, size_t len) {
                   sizeof(m_serverAddr));
 }
 
+int Socket::sendBatch(const iovec *packets, int count) {
+#ifdef ALVR_HAVE_MMSG
+    if (m_sendBatched) {
+        count = std::min(count, static_cast<int>(m_sendMessages.size()));
+        for (int i = 0; i < count; i++) {
+            memset(&m_sendMessages[i], 0, sizeof(m_sendMessages[i]));
+            m_sendMessages[i].msg_hdr.msg_iov = const_cast<iovec *>(&packets[i]);
+            m_sendMessages[i].msg_hdr.msg_iovlen = 1;
+            m_sendMessages[i].msg_hdr.msg_name = &m_serverAddr;
+            m_sendMessages[i].msg_hdr.msg_namelen = sizeof(m_serverAddr);
+        }
+        int ret = sendmmsg(m_sock, &m_sendMessages[0], static_cast<unsigned int>(count), 0);
+        if (ret >= 0 || (errno != ENOSYS && errno != EINVAL)) {
+            LOGSOCKET("sendmmsg. count=%d ret=%d", count, ret);
+            return ret;
+        }
+        LOGSOCKETI("sendmmsg is not supported. Fallback to sendto. errno=%d %s", errno, strerror(errno));
+        m_sendBatched = false;
+    }
+#endif
+    int sent = 0;
+    for (int i = 0; i < count; i++) {
+        if (send(packets[i].iov_base, packets[i].iov_len) < 0) {
+            return sent == 0 ? -1 : sent;
+        }
+        sent++;
+    }
+    return sent;
+}
+
 void Socket::recv() {
+#ifdef ALVR_HAVE_MMSG
+    if (m_recvBatched) {
+        recvBatched();
+        return;
+    }
+#endif
+    recvSingle();
+}
+
+void Socket::recvSingle() {
     char packet[MAX_PACKET_SIZE];
     sockaddr_in addr;
-    socklen_t socklen = sizeof(addr);
+    socklen_t socklen;
 
     while (true) {
+        socklen = sizeof(addr);
         int packetSize = static_cast<int>(recvfrom(m_sock, packet, MAX_PACKET_SIZE, 0, (sockaddr *) &addr,
                                                    &socklen));
         if (packetSize <= 0) {
@@ -115,11 +184,51 @@ void Socket::recv() {
             }
             return;
         }
+        onRecv(1);
         LOGSOCKET("recvfrom Ok. calling parse(). ret=%d", packetSize);
         parse(packet, packetSize, addr);
     }
 }
 
+// Receive up to RECV_BATCH_SIZE datagrams per syscall into preallocated buffers and parse them in order.
+void Socket::recvBatched() {
+#ifdef ALVR_HAVE_MMSG
+    while (true) {
+        for (int i = 0; i < RECV_BATCH_SIZE; i++) {
+            // Overwritten by kernel.
+            m_recvMessages[i].msg_hdr.msg_namelen = sizeof(sockaddr_in);
+        }
+        int packets = recvmmsg(m_sock, &m_recvMessages[0], RECV_BATCH_SIZE, 0, nullptr);
+        if (packets <= 0) {
+            if (packets < 0 && (errno == ENOSYS || errno == EINVAL)) {
+                LOGSOCKETI("recvmmsg is not supported. Fallback to recvfrom. errno=%d %s", errno, strerror(errno));
+                m_recvBatched = false;
+                recvSingle();
+            } else if (errno != EWOULDBLOCK) {
+                LOGSOCKET("Error on recvmmsg. errno=%d %s", errno, strerror(errno));
+            }
+            return;
+        }
+        onRecv(packets);
+        LOGSOCKET("recvmmsg Ok. packets=%d", packets);
+        for (int i = 0; i < packets; i++) {
+            parse(&m_recvBuffer[i * MAX_PACKET_SIZE], static_cast<int>(m_recvMessages[i].msg_len),
+                  m_recvAddrs[i]);
+        }
+        if (packets < RECV_BATCH_SIZE) {
+            // Socket is drained. epoll wakes us for next packet.
+            return;
+        }
+    }
+#endif
+}
+
+void Socket::onRecv(int packets) {
+    m_recvSyscalls++;
+    m_recvPackets += packets;
+    m_recvBatchMax = std::max(m_recvBatchMax, packets);
+}
+
 void Socket::disconnect() {
     m_connected = false;
     memset(&m_serverAddr, 0, sizeof(m_serverAddr));
@@ -213,17 +322,31 @@ void Socket::recoverConnection(std::string serverAddress, int serverPort) {
 }
 
 
+// Arms timerfd to expire after delayUs, then every intervalUs (0 for one-shot).
+static void armTimer(int fd, uint64_t delayUs, uint64_t intervalUs) {
+    itimerspec spec = {};
+    // Zero it_value disarms timer, so fire immediately with 1 ns.
+    spec.it_value.tv_sec = delayUs / (1000 * 1000);
+    spec.it_value.tv_nsec = delayUs == 0 ? 1 : (delayUs % (1000 * 1000)) * 1000;
+    spec.it_interval.tv_sec = intervalUs / (1000 * 1000);
+    spec.it_interval.tv_nsec = (intervalUs % (1000 * 1000)) * 1000;
+    timerfd_settime(fd, 0, &spec, nullptr);
+}
+
+// Consumes expiration count of timerfd or counter of eventfd.
+static void readCounter(int fd) {
+    uint64_t counter;
+    read(fd, &counter, sizeof(counter));
+}
+
 UdpManager::UdpManager() {
 }
 
 UdpManager::~UdpManager() {
-    if (m_notifyPipe[0] >= 0) {
-        close(m_notifyPipe[0]);
-        close(m_notifyPipe[1]);
-    }
+    closeEventFds();
 
     m_nalParser.reset();
-    m_sendQueue.clear();
+    m_fecWorkerPool.reset();
 }
 
 void UdpManager::initialize(JNIEnv *env, jobject instance, jint helloPort, jint port, jstring deviceName_,
@@ -236,8 +359,6 @@ void UdpManager::initialize(JNIEnv *env, jobject instance, jint helloPort, jint
 
     m_stopped = false;
     m_lastReceived = 0;
-    m_prevSentSync = 0;
-    m_prevSentBroadcast = 0;
     m_prevVideoSequence = 0;
     m_prevSoundSequence = 0;
     m_timeDiff = 0;
@@ -245,6 +366,16 @@ void UdpManager::initialize(JNIEnv *env, jobject instance, jint helloPort, jint
     initializeJNICallbacks(env, instance);
 
     m_nalParser = std::make_shared<NALParser>(env, instance, this);
+    setFecReorderWindow(FEC_DEFAULT_REFRESH_RATE);
+
+    std::vector<int> bigCores = WorkerPool::getBigCores();
+    int fecThreads = std::min(static_cast<int>(bigCores.size()) - 1, FEC_WORKER_THREADS_MAX);
+    if (fecThreads > 0) {
+        if (!m_fecWorkerPool) {
+            m_fecWorkerPool = std::make_shared<WorkerPool>(fecThreads, bigCores);
+        }
+        m_nalParser->setFecWorkerPool(m_fecWorkerPool, FEC_PARALLEL_MIN_COLUMNS);
+    }
 
     //
     // Fill hello message
@@ -295,12 +426,10 @@ void UdpManager::initialize(JNIEnv *env, jobject instance, jint helloPort, jint
     LOGI("SoundPlayer successfully initialize.");
 
     //
-    // Pipe used for send buffer notification.
+    // File descriptors of event loop.
     //
 
-    if (pipe2(m_notifyPipe, O_NONBLOCK) < 0) {
-        throw FormatException("pipe2 error : %d %s", errno, strerror(errno));
-    }
+    createEventFds();
 
     LOGI("UdpManager initialized.");
 }
@@ -337,41 +466,83 @@ void UdpManager::processSoundSequence(uint32_t sequence) {
     m_prevSoundSequence = sequence;
 }
 
-void UdpManager::processReadPipe(int pipefd) {
-    char buf[2000];
-    int len = 1;
-
-    int ret = static_cast<int>(read(pipefd, buf, len));
-    if (ret <= 0) {
-        return;
+void UdpManager::createEventFds() {
+    closeEventFds();
+
+    m_epoll = epoll_create1(EPOLL_CLOEXEC);
+    m_notifyEvent = eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+    m_timeSyncTimer = timerfd_create(CLOCK_MONOTONIC, TFD_NONBLOCK | TFD_CLOEXEC);
+    m_broadcastTimer = timerfd_create(CLOCK_MONOTONIC, TFD_NONBLOCK | TFD_CLOEXEC);
+    m_connectionTimer = timerfd_create(CLOCK_MONOTONIC, TFD_NONBLOCK | TFD_CLOEXEC);
+    m_fecTimer = timerfd_create(CLOCK_MONOTONIC, TFD_NONBLOCK | TFD_CLOEXEC);
+    m_fecTimerArmed = false;
+    if (m_epoll < 0 || m_notifyEvent < 0 || m_timeSyncTimer < 0 || m_broadcastTimer < 0 ||
+        m_connectionTimer < 0 || m_fecTimer < 0) {
+        throw FormatException("Failed to create event fds : %d %s", errno, strerror(errno));
     }
 
-    SendBuffer sendBuffer;
-    while (1) {
-        {
-            MutexLock lock(pipeMutex);
+    for (int fd : {m_socket.getSocket(), m_notifyEvent, m_timeSyncTimer, m_broadcastTimer, m_connectionTimer,
+                   m_fecTimer}) {
+        epoll_event event = {};
+        event.events = EPOLLIN;
+        event.data.fd = fd;
+        if (epoll_ctl(m_epoll, EPOLL_CTL_ADD, fd, &event) < 0) {
+            throw FormatException("epoll_ctl error : %d %s", errno, strerror(errno));
+        }
+    }
+}
 
-            if (m_sendQueue.empty()) {
-                break;
-            } else {
-                sendBuffer = m_sendQueue.front();
-                m_sendQueue.pop_front();
-            }
+void UdpManager::closeEventFds() {
+    for (int *fd : {&m_epoll, &m_notifyEvent, &m_timeSyncTimer, &m_broadcastTimer, &m_connectionTimer,
+                    &m_fecTimer}) {
+        if (*fd >= 0) {
+            close(*fd);
+            *fd = -1;
         }
-        if (m_stopped) {
+    }
+}
+
+void UdpManager::processNotify() {
+    readCounter(m_notifyEvent);
+    flushSendQueue();
+}
+
+// Send all queued packets, up to Socket::SEND_BATCH_SIZE per syscall. Slots are sent in place without copy.
+void UdpManager::flushSendQueue() {
+    iovec packets[Socket::SEND_BATCH_SIZE];
+    while (!m_stopped) {
+        uint32_t tail = m_sendTail.load(std::memory_order_relaxed);
+        // seq_cst: Pairs with producer which stores head and then loads tail to decide notification.
+        uint32_t head = m_sendHead.load();
+        if (tail == head) {
             return;
         }
-
-        //LOG("Sending tracking packet %d", sendBuffer.len);
-        m_socket.send(sendBuffer.buf, sendBuffer.len);
+        int count = static_cast<int>(std::min(head - tail, static_cast<uint32_t>(Socket::SEND_BATCH_SIZE)));
+        for (int i = 0; i < count; i++) {
+            SendSlot &slot = m_sendSlots[(tail + i) % SEND_QUEUE_SIZE];
+            packets[i].iov_base = slot.buf;
+            packets[i].iov_len = static_cast<size_t>(slot.len);
+        }
+        int sent = m_socket.sendBatch(packets, count);
+
+        uint64_t current = getTimestampUs();
+        m_sendSyscalls++;
+        for (int i = 0; i < count; i++) {
+            uint64_t latency = current - m_sendSlots[(tail + i) % SEND_QUEUE_SIZE].enqueueTime;
+            m_sendLatencyTotalUs += latency;
+            m_sendLatencyMaxUs = std::max(m_sendLatencyMaxUs, latency);
+        }
+        m_sendPackets += count;
+        if (sent < count) {
+            // UDP send rarely fails. Unsent tracking is stale soon, so drop instead of retrying.
+            LOGSOCKET("Failed to send %d of %d packets. errno=%d", count - std::max(sent, 0), count, errno);
+        }
+        m_sendTail.store(tail + count);
     }
-
-    return;
 }
 
 void UdpManager::sendTimeSyncLocked() {
-    time_t current = time(nullptr);
-    if (m_prevSentSync != current && m_socket.isConnected()) {
+    if (m_socket.isConnected()) {
         LOGI("Sending timesync.");
 
         TimeSync timeSync = {};
@@ -401,54 +572,97 @@ void UdpManager::sendTimeSyncLocked() {
         timeSync.fps = LatencyCollector::Instance().getFramesInSecond();
 
         m_socket.send(&timeSync, sizeof(timeSync));
+
+        logRecvStatistics();
+        logSendStatistics();
     }
-    m_prevSentSync = current;
+}
+
+void UdpManager::logRecvStatistics() {
+    uint64_t packets = m_socket.getRecvPackets() - m_prevRecvPackets;
+    uint64_t syscalls = m_socket.getRecvSyscalls() - m_prevRecvSyscalls;
+    m_prevRecvPackets = m_socket.getRecvPackets();
+    m_prevRecvSyscalls = m_socket.getRecvSyscalls();
+    LOGSOCKETI("Recv statistics. Batched=%d Packets=%" PRIu64 " Syscalls=%" PRIu64 " Packets/Syscall=%.2f MaxBatch=%d",
+               m_socket.isRecvBatched(), packets, syscalls, syscalls == 0 ? 0.0 : (double) packets / syscalls,
+               m_socket.takeRecvBatchMax());
+}
+
+// Enqueue to wire latency of tracking packets.
+void UdpManager::logSendStatistics() {
+    LOGSOCKETI("Send statistics. Packets=%" PRIu64 " Syscalls=%" PRIu64 " Latency avg=%" PRIu64 " us max=%" PRIu64
+               " us Dropped=%" PRIu64, m_sendPackets, m_sendSyscalls,
+               m_sendPackets == 0 ? 0 : m_sendLatencyTotalUs / m_sendPackets, m_sendLatencyMaxUs,
+               m_sendDropped.load());
+    m_sendPackets = 0;
+    m_sendSyscalls = 0;
+    m_sendLatencyTotalUs = 0;
+    m_sendLatencyMaxUs = 0;
 }
 
 void UdpManager::sendBroadcastLocked() {
-    time_t current = time(nullptr);
-    if (m_prevSentBroadcast != current) {
-        LOGI("Sending broadcast hello.");
-        m_socket.sendBroadcast(&mHelloMessage, sizeof(mHelloMessage));
+    LOGI("Sending broadcast hello.");
+    m_socket.sendBroadcast(&mHelloMessage, sizeof(mHelloMessage));
+}
+
+void UdpManager::checkFecTimeout() {
+    m_fecTimerArmed = false;
+    if (m_nalParser) {
+        m_nalParser->checkTimeout();
+    }
+    updateFecTimer();
+}
+
+// Arm FEC timer when a frame started waiting. Not re-armed on each packet, so that receive path has no extra syscall.
+void UdpManager::updateFecTimer() {
+    if (!m_fecTimerArmed && m_nalParser && m_nalParser->hasPendingFrames()) {
+        armTimer(m_fecTimer, m_fecReorderTimeoutUs, 0);
+        m_fecTimerArmed = true;
     }
-    m_prevSentBroadcast = current;
 }
 
-void UdpManager::doPeriodicWork() {
-    sendTimeSyncLocked();
-    sendBroadcastLocked();
-    checkConnection();
+void UdpManager::setFecReorderWindow(int refreshRate) {
+    if (refreshRate <= 0) {
+        refreshRate = FEC_DEFAULT_REFRESH_RATE;
+    }
+    m_fecReorderTimeoutUs = FEC_REORDER_FRAMES * 1000 * 1000 / refreshRate;
+    m_nalParser->setReorderWindow(FEC_REORDER_FRAMES, m_fecReorderTimeoutUs);
 }
 
 void UdpManager::recoverConnection(std::string serverAddress, int serverPort) {
     m_socket.recoverConnection(serverAddress, serverPort);
 }
 
+// Called from tracking thread through UdpReceiverThread.send. Must not be called concurrently.
 void UdpManager::send(const void *packet, int length) {
     if (m_stopped) {
         return;
     }
-    SendBuffer sendBuffer;
-
-    memcpy(sendBuffer.buf, packet, length);
-    sendBuffer.len = length;
-
-    {
-        MutexLock lock(pipeMutex);
-        m_sendQueue.push_back(sendBuffer);
+    if (length <= 0 || length > static_cast<int>(sizeof(SendSlot::buf))) {
+        LOGE("Invalid size of packet to send. length=%d", length);
+        return;
+    }
+    uint32_t head = m_sendHead.load(std::memory_order_relaxed);
+    if (head - m_sendTail.load(std::memory_order_acquire) >= SEND_QUEUE_SIZE) {
+        // Loop thread is stuck. Newer tracking will be sent later.
+        m_sendDropped++;
+        return;
+    }
+    SendSlot &slot = m_sendSlots[head % SEND_QUEUE_SIZE];
+    memcpy(slot.buf, packet, static_cast<size_t>(length));
+    slot.len = length;
+    slot.enqueueTime = getTimestampUs();
+    m_sendHead.store(head + 1);
+
+    // Notify enqueue to loop thread, only if it may have found the queue empty.
+    // seq_cst store and load: Either loop thread sees new head, or we see its last tail and notify.
+    if (m_sendTail.load() == head) {
+        uint64_t one = 1;
+        write(m_notifyEvent, &one, sizeof(one));
     }
-    // Notify enqueue to loop thread
-    write(m_notifyPipe[1], "", 1);
 }
 
 void UdpManager::runLoop(JNIEnv *env, jobject instance, jstring serverAddress, int serverPort) {
-    fd_set fds, fds_org;
-
-    FD_ZERO(&fds_org);
-    FD_SET(m_socket.getSocket(), &fds_org);
-    FD_SET(m_notifyPipe[0], &fds_org);
-    int nfds = std::max(m_socket.getSocket(), m_notifyPipe[0]) + 1;
-
     m_env = env;
     m_instance = instance;
 
@@ -456,32 +670,46 @@ void UdpManager::runLoop(JNIEnv *env, jobject instance, jstring serverAddress, i
         recoverConnection(GetStringFromJNIString(env, serverAddress), serverPort);
     }
 
-    while (!m_stopped) {
-        timeval timeout;
-        timeout.tv_sec = 0;
-        timeout.tv_usec = 10 * 1000;
-        memcpy(&fds, &fds_org, sizeof(fds));
-        int ret = select(nfds, &fds, NULL, NULL, &timeout);
-
-        if (ret == 0) {
-            doPeriodicWork();
+    armTimer(m_timeSyncTimer, TIME_SYNC_INTERVAL_US, TIME_SYNC_INTERVAL_US);
+    armTimer(m_broadcastTimer, 0, BROADCAST_INTERVAL_US);
+    armTimer(m_connectionTimer, CONNECTION_TIMEOUT, 0);
 
-            // timeout
+    static const int MAX_EVENTS = 8;
+    epoll_event events[MAX_EVENTS];
+    while (!m_stopped) {
+        int ret = epoll_wait(m_epoll, events, MAX_EVENTS, -1);
+        if (ret < 0) {
+            if (errno != EINTR) {
+                LOGE("epoll_wait error : %d %s", errno, strerror(errno));
+                break;
+            }
             continue;
         }
 
-        if (FD_ISSET(m_notifyPipe[0], &fds)) {
-            //LOG("select pipe");
-            processReadPipe(m_notifyPipe[0]);
-        }
-
-        if (FD_ISSET(m_socket.getSocket(), &fds)) {
-            m_socket.recv();
+        for (int i = 0; i < ret && !m_stopped; i++) {
+            int fd = events[i].data.fd;
+            if (fd == m_socket.getSocket()) {
+                m_socket.recv();
+                updateFecTimer();
+            } else if (fd == m_notifyEvent) {
+                processNotify();
+            } else if (fd == m_fecTimer) {
+                readCounter(fd);
+                checkFecTimeout();
+            } else if (fd == m_timeSyncTimer) {
+                readCounter(fd);
+                sendTimeSyncLocked();
+            } else if (fd == m_broadcastTimer) {
+                readCounter(fd);
+                sendBroadcastLocked();
+            } else if (fd == m_connectionTimer) {
+                readCounter(fd);
+                checkConnection();
+            }
         }
-        doPeriodicWork();
     }
 
-    LOGI("Exited select loop.");
+    LOGI("Exited event loop.");
 
     if (m_socket.isConnected()) {
         // Stop stream.
@@ -502,7 +730,8 @@ void UdpManager::interrupt() {
     m_stopped = true;
 
     // Notify stop to loop thread.
-    write(m_notifyPipe[1], "", 1);
+    uint64_t one = 1;
+    write(m_notifyEvent, &one, sizeof(one));
 }
 
 void UdpManager::setSinkPrepared(bool prepared) {
@@ -518,6 +747,10 @@ void UdpManager::setSinkPrepared(bool prepared) {
     }
 }
 
+void UdpManager::requestIDR() {
+    mIDRRequested = true;
+}
+
 bool UdpManager::isConnected() {
     return m_socket.isConnected();
 }
@@ -551,10 +784,12 @@ void UdpManager::onConnect(const ConnectionMessage &connectionMessage) {
     m_timeDiff = 0;
     LatencyCollector::Instance().resetAll();
     m_nalParser->setCodec(m_connectionMessage.codec);
+    setFecReorderWindow(m_connectionMessage.refreshRate);
 
     m_env->CallVoidMethod(m_instance, mOnConnectMethodID, m_connectionMessage.videoWidth
             , m_connectionMessage.videoHeight, m_connectionMessage.codec
-            , m_connectionMessage.frameQueueSize, m_connectionMessage.refreshRate);
+            , m_connectionMessage.frameQueueSize, m_connectionMessage.refreshRate
+            , static_cast<jint>(m_connectionMessage.bufferSize));
 
     if (mSinkPrepared) {
         m_nalParser->reset();
@@ -589,10 +824,12 @@ void UdpManager::onPacketRecv(const char *packet, size_t packetSize) {
 
         processVideoSequence(header->packetCounter);
 
-        bool ret2 = m_nalParser->processPacket(header, packetSize);
-        if (ret2) {
-            LatencyCollector::Instance().receivedLast(header->trackingFrameIndex);
+        if (mIDRRequested.exchange(false)) {
+            LOGI("Requesting IDR for decoder recovery. videoFrameIndex=%" PRIu64, header->videoFrameIndex);
+            m_nalParser->requestKeyframe(header->videoFrameIndex);
         }
+
+        m_nalParser->processPacket(header, packetSize);
     } else if (type == ALVR_PACKET_TYPE_TIME_SYNC) {
         // Time sync packet
         if (packetSize < sizeof(TimeSync)) {
@@ -660,9 +897,13 @@ void UdpManager::onPacketRecv(const char *packet, size_t packetSize) {
     }
 }
 
+// Called on connection timer. Timer is re-armed to expire exactly CONNECTION_TIMEOUT after last packet,
+// instead of being re-armed on every packet.
 void UdpManager::checkConnection() {
+    uint64_t delay = CONNECTION_TIMEOUT;
     if (m_socket.isConnected()) {
-        if (m_lastReceived + CONNECTION_TIMEOUT < getTimestampUs()) {
+        uint64_t current = getTimestampUs();
+        if (m_lastReceived + CONNECTION_TIMEOUT < current) {
             // Timeout
             LOGE("Connection timeout.");
             m_socket.disconnect();
@@ -672,8 +913,11 @@ void UdpManager::checkConnection() {
             if (m_soundPlayer) {
                 m_soundPlayer->Stop();
             }
+        } else {
+            delay = m_lastReceived + CONNECTION_TIMEOUT - current + 1;
         }
     }
+    armTimer(m_connectionTimer, delay, 0);
 }
 
 void UdpManager::updateTimeout() {
@@ -711,7 +955,7 @@ void UdpManager::sendStreamStartPacket() {
 void UdpManager::initializeJNICallbacks(JNIEnv *env, jobject instance) {
     jclass clazz = env->GetObjectClass(instance);
 
-    mOnConnectMethodID = env->GetMethodID(clazz, "onConnected", "(IIIII)V");
+    mOnConnectMethodID = env->GetMethodID(clazz, "onConnected", "(IIIIII)V");
     mOnChangeSettingsMethodID = env->GetMethodID(clazz, "onChangeSettings", "(JII)V");
     mOnDisconnectedMethodID = env->GetMethodID(clazz, "onDisconnected", "()V");
     mOnHapticsFeedbackID = env->GetMethodID(clazz, "onHapticsFeedback", "(JFFFZ)V");
@@ -790,3 +1034,9 @@ JNIEXPORT void JNICALL
 Java_com_polygraphene_alvr_UdpReceiverThread_setSinkPreparedNative(JNIEnv *env, jobject instance, jlong nativeHandle, jboolean prepared) {
     reinterpret_cast<UdpManager *>(nativeHandle)->setSinkPrepared(static_cast<bool>(prepared));
 }
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_polygraphene_alvr_UdpReceiverThread_requestIDRNative(JNIEnv *env, jobject instance, jlong nativeHandle) {
+    reinterpret_cast<UdpManager *>(nativeHandle)->requestIDR();
+}
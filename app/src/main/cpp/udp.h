@@ -4,7 +4,9 @@
 #include <functional>
 #include <list>
 #include <string>
+#include <vector>
 #include <memory>
+#include <atomic>
 #include <jni.h>
 #include <sys/socket.h>
 #include <arpa/inet.h>
@@ -12,13 +14,22 @@
 
 #include "packet_types.h"
 #include "nal.h"
+#include "worker_pool.h"
 #include "sound.h"
 
 // Maximum UDP packet size
 static const int MAX_PACKET_SIZE = 2000;
 
+// recvmmsg and sendmmsg are available on Android API 21+.
+#if !defined(__ANDROID_API__) || __ANDROID_API__ >= 21
+#define ALVR_HAVE_MMSG
+#endif
+
 class Socket {
 public:
+    // Maximum packets sent by one sendBatch.
+    static const int SEND_BATCH_SIZE = 8;
+
     Socket();
     ~Socket();
 
@@ -27,6 +38,8 @@ public:
 
     void sendBroadcast(const void *buf, size_t len);
     int send(const void *buf, size_t len);
+    // Sends packets to server with one syscall. Returns number of packets sent, or -1 on error.
+    int sendBatch(const iovec *packets, int count);
     void recv();
 
     void recoverConnection(std::string serverAddress, int serverPort);
@@ -57,7 +70,27 @@ public:
     jstring getServerAddress(JNIEnv *env);
     int getServerPort();
     int getSocket();
+
+    // Receive statistics. Packets / syscalls is average number of datagrams per receive syscall.
+    uint64_t getRecvPackets() const {
+        return m_recvPackets;
+    }
+    uint64_t getRecvSyscalls() const {
+        return m_recvSyscalls;
+    }
+    // Returns largest batch since last call.
+    int takeRecvBatchMax() {
+        int max = m_recvBatchMax;
+        m_recvBatchMax = 0;
+        return max;
+    }
+    bool isRecvBatched() const {
+        return m_recvBatched;
+    }
 private:
+    // Maximum datagrams received by one recvmmsg.
+    static const int RECV_BATCH_SIZE = 32;
+
     int m_sock = -1;
     bool m_connected = false;
 
@@ -70,6 +103,24 @@ private:
     std::function<void()> m_onBroadcastRequest;
     std::function<void(const char *buf, size_t len)> m_onPacketRecv;
 
+    // Set to false when recvmmsg is not supported by kernel.
+    bool m_recvBatched = false;
+    bool m_sendBatched = false;
+#ifdef ALVR_HAVE_MMSG
+    std::vector<mmsghdr> m_sendMessages;
+    std::vector<char> m_recvBuffer;
+    std::vector<mmsghdr> m_recvMessages;
+    std::vector<iovec> m_recvIovecs;
+    std::vector<sockaddr_in> m_recvAddrs;
+#endif
+
+    uint64_t m_recvPackets = 0;
+    uint64_t m_recvSyscalls = 0;
+    int m_recvBatchMax = 0;
+
+    void recvSingle();
+    void recvBatched();
+    void onRecv(int packets);
     void parse(char *packet, int packetSize, const sockaddr_in &addr);
 
     void setBroadcastAddrList(JNIEnv *env, int helloPort, int port, jobjectArray broadcastAddrList_);
@@ -93,6 +144,8 @@ public:
     void runLoop(JNIEnv *env, jobject instance, jstring serverAddress, int serverPort);
     void interrupt();
     void setSinkPrepared(bool prepared);
+    // Called from decoder thread. Keyframe request is sent on loop thread with next video packet.
+    void requestIDR();
 
     bool isConnected();
 
@@ -103,17 +156,35 @@ public:
 private:
 // Connection has lost when elapsed 3 seconds from last packet.
     static const uint64_t CONNECTION_TIMEOUT = 3 * 1000 * 1000;
+    static const uint64_t TIME_SYNC_INTERVAL_US = 1000 * 1000;
+    static const uint64_t BROADCAST_INTERVAL_US = 1000 * 1000;
+    // Number of video frames reassembled at the same time.
+    static const int FEC_REORDER_FRAMES = 2;
+    // Incomplete frame is given up when no packet of it has arrived for FEC_REORDER_FRAMES frame intervals.
+    // Then it is given up at about the same time whether or not newer frames keep arriving (FEC_REORDER_FRAMES).
+    // Wi-Fi delivers packets in bursts (aggregation, retries, power save), and gaps of several ms within a frame
+    // are normal, so a fixed few ms timeout dropped frames which were still arriving.
+    // Refresh rate used until server tells the actual one on connect.
+    static const int FEC_DEFAULT_REFRESH_RATE = 60;
+    // FEC reconstruction runs on worker pool when a frame has at least this many packet columns to reconstruct.
+    static const int FEC_PARALLEL_MIN_COLUMNS = 4;
+    // Upper limit of FEC worker threads.
+    static const int FEC_WORKER_THREADS_MAX = 3;
 
     bool m_stopped = false;
 
     // Turned true when decoder thread is prepared.
     bool mSinkPrepared = false;
+    // Set by requestIDR() when decoder has recovered from stall and needs IDR.
+    std::atomic<bool> mIDRRequested{false};
 
     Socket m_socket;
-    time_t m_prevSentSync = 0;
-    time_t m_prevSentBroadcast = 0;
     int64_t m_timeDiff = 0;
     uint64_t timeSyncSequence = (uint64_t) -1;
+
+    // Socket receive counters at previous time sync, for per second statistics.
+    uint64_t m_prevRecvPackets = 0;
+    uint64_t m_prevRecvSyscalls = 0;
     uint64_t m_lastReceived = 0;
     uint64_t m_lastFrameIndex = 0;
     ConnectionMessage m_connectionMessage = {};
@@ -122,6 +193,7 @@ private:
     uint32_t m_prevSoundSequence = 0;
     std::shared_ptr<SoundPlayer> m_soundPlayer;
     std::shared_ptr<NALParser> m_nalParser;
+    std::shared_ptr<WorkerPool> m_fecWorkerPool;
 
     HelloMessage mHelloMessage;
 
@@ -133,16 +205,33 @@ private:
     jmethodID mOnHapticsFeedbackID;
 
     //
-    // Send buffer
+    // Send queue. Lock-free ring with single producer (UdpReceiverThread.send, which is serialized in Java)
+    // and single consumer (loop thread).
     //
-    struct SendBuffer {
-        char buf[MAX_PACKET_SIZE];
+    static const uint32_t SEND_QUEUE_SIZE = 16;
+    struct SendSlot {
+        uint64_t enqueueTime;
         int len;
+        // Only TrackingInfo is sent through the queue.
+        char buf[sizeof(TrackingInfo)];
     };
-
-    int m_notifyPipe[2] = {-1, -1};
-    Mutex pipeMutex;
-    std::list<SendBuffer> m_sendQueue;
+    SendSlot m_sendSlots[SEND_QUEUE_SIZE];
+    // Next slot to be written. Stored by producer.
+    std::atomic<uint32_t> m_sendHead{0};
+    // Keeps head and tail on separate cache lines.
+    char m_sendPadding[64];
+    // Next slot to be sent. Stored by consumer.
+    std::atomic<uint32_t> m_sendTail{0};
+    std::atomic<uint64_t> m_sendDropped{0};
+
+    // Send statistics since last log. Loop thread only.
+    uint64_t m_sendPackets = 0;
+    uint64_t m_sendSyscalls = 0;
+    uint64_t m_sendLatencyTotalUs = 0;
+    uint64_t m_sendLatencyMaxUs = 0;
+
+    // Wakes loop thread on enqueue to empty queue and on interrupt.
+    int m_notifyEvent = -1;
 
     void initializeJNICallbacks(JNIEnv *env, jobject instance);
 
@@ -151,11 +240,31 @@ private:
     void processVideoSequence(uint32_t sequence);
     void processSoundSequence(uint32_t sequence);
 
-    void processReadPipe(int pipefd);
+    //
+    // Event loop. Each periodic task has its own timerfd, so timeouts do not depend on traffic.
+    //
+    int m_epoll = -1;
+    int m_timeSyncTimer = -1;
+    int m_broadcastTimer = -1;
+    int m_connectionTimer = -1;
+    // Armed only while FEC queue has incomplete frame.
+    int m_fecTimer = -1;
+    bool m_fecTimerArmed = false;
+    // Derived from refresh rate by setFecReorderWindow().
+    uint64_t m_fecReorderTimeoutUs = 0;
+
+    void createEventFds();
+    void closeEventFds();
+    void processNotify();
+    void flushSendQueue();
+    void checkFecTimeout();
+    void updateFecTimer();
+    void setFecReorderWindow(int refreshRate);
 
     void sendTimeSyncLocked();
     void sendBroadcastLocked();
-    void doPeriodicWork();
+    void logRecvStatistics();
+    void logSendStatistics();
 
     void recoverConnection(std::string serverAddress, int serverPort);
 
@@ -12,6 +12,8 @@ enum DEBUG_FLAGS {
     DEBUG_FLAGS_ENABLE_SOUND_LOG = 1 << 2,
     DEBUG_FLAGS_ENABLE_SOCKET_LOG = 1 << 3,
     DEBUG_FLAGS_DISABLE_EXTRA_LATENCY_MODE = 1 << 4,
+    // Handled by Java (NalRecorder).
+    DEBUG_FLAGS_RECORD_NAL = 1 << 5,
 };
 
 
@@ -0,0 +1,137 @@
+#include <algorithm>
+#include <stdio.h>
+#include <unistd.h>
+#include <sched.h>
+#include "worker_pool.h"
+
+WorkerPool::WorkerPool(int threads, const std::vector<int> &cpus) : m_cpus(cpus) {
+    pthread_cond_init(&m_workCond, NULL);
+    pthread_cond_init(&m_idleCond, NULL);
+
+    for (int i = 0; i < threads; i++) {
+        pthread_t thread;
+        if (pthread_create(&thread, NULL, threadEntry, this) != 0) {
+            LOGE("WorkerPool: pthread_create failed. Created %d of %d threads.", i, threads);
+            break;
+        }
+        m_threads.push_back(thread);
+    }
+    LOGI("WorkerPool: Started %zu threads on %zu CPUs.", m_threads.size(), m_cpus.size());
+}
+
+WorkerPool::~WorkerPool() {
+    waitIdle();
+    {
+        MutexLock lock(m_mutex);
+        m_stopped = true;
+        pthread_cond_broadcast(&m_workCond);
+    }
+    for (pthread_t thread : m_threads) {
+        pthread_join(thread, NULL);
+    }
+    pthread_cond_destroy(&m_workCond);
+    pthread_cond_destroy(&m_idleCond);
+}
+
+int WorkerPool::getThreads() const {
+    return static_cast<int>(m_threads.size());
+}
+
+void WorkerPool::post(std::function<void()> task) {
+    if (m_threads.empty()) {
+        task();
+        return;
+    }
+    MutexLock lock(m_mutex);
+    m_tasks.push_back(std::move(task));
+    m_unfinished++;
+    pthread_cond_signal(&m_workCond);
+}
+
+void WorkerPool::waitIdle() {
+    while (true) {
+        std::function<void()> task;
+        {
+            MutexLock lock(m_mutex);
+            if (m_tasks.empty()) {
+                while (m_unfinished > 0) {
+                    m_mutex.CondWait(&m_idleCond);
+                }
+                return;
+            }
+            task = std::move(m_tasks.front());
+            m_tasks.pop_front();
+        }
+        task();
+        finish();
+    }
+}
+
+void WorkerPool::finish() {
+    MutexLock lock(m_mutex);
+    if (--m_unfinished == 0) {
+        pthread_cond_broadcast(&m_idleCond);
+    }
+}
+
+void *WorkerPool::threadEntry(void *arg) {
+    static_cast<WorkerPool *>(arg)->workerLoop();
+    return NULL;
+}
+
+void WorkerPool::workerLoop() {
+    if (!m_cpus.empty()) {
+        cpu_set_t set;
+        CPU_ZERO(&set);
+        for (int cpu : m_cpus) {
+            CPU_SET(cpu, &set);
+        }
+        if (sched_setaffinity(0, sizeof(set), &set) != 0) {
+            LOGE("WorkerPool: sched_setaffinity failed.");
+        }
+    }
+
+    while (true) {
+        std::function<void()> task;
+        {
+            MutexLock lock(m_mutex);
+            while (!m_stopped && m_tasks.empty()) {
+                m_mutex.CondWait(&m_workCond);
+            }
+            if (m_stopped) {
+                break;
+            }
+            task = std::move(m_tasks.front());
+            m_tasks.pop_front();
+        }
+        task();
+        finish();
+    }
+}
+
+std::vector<int> WorkerPool::getBigCores() {
+    int cpus = static_cast<int>(sysconf(_SC_NPROCESSORS_CONF));
+    std::vector<long> maxFreqs(static_cast<size_t>(std::max(cpus, 0)), 0);
+    long highest = 0;
+    for (int i = 0; i < cpus; i++) {
+        char path[128];
+        snprintf(path, sizeof(path), "/sys/devices/system/cpu/cpu%d/cpufreq/cpuinfo_max_freq", i);
+        FILE *fp = fopen(path, "r");
+        if (fp == NULL) {
+            continue;
+        }
+        if (fscanf(fp, "%ld", &maxFreqs[i]) != 1) {
+            maxFreqs[i] = 0;
+        }
+        fclose(fp);
+        highest = std::max(highest, maxFreqs[i]);
+    }
+
+    std::vector<int> bigCores;
+    for (int i = 0; i < cpus; i++) {
+        if (highest == 0 || maxFreqs[i] == highest) {
+            bigCores.push_back(i);
+        }
+    }
+    return bigCores;
+}
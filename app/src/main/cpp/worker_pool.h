@@ -0,0 +1,46 @@
+#ifndef ALVRCLIENT_WORKER_POOL_H
+#define ALVRCLIENT_WORKER_POOL_H
+
+#include <list>
+#include <vector>
+#include <functional>
+#include <pthread.h>
+#include "utils.h"
+
+// Fixed set of threads which run posted tasks in background.
+// Used to move CPU heavy work (FEC reconstruction) off the receive thread.
+class WorkerPool {
+public:
+    // threads: Number of worker threads.
+    // cpus: CPUs which workers are pinned to. Empty means no affinity.
+    WorkerPool(int threads, const std::vector<int> &cpus);
+    ~WorkerPool();
+
+    int getThreads() const;
+
+    void post(std::function<void()> task);
+    // Returns after all posted tasks have finished. Calling thread runs queued tasks while waiting.
+    void waitIdle();
+
+    // Returns CPUs with the highest max frequency (big cores on big.LITTLE), or all CPUs if unknown.
+    static std::vector<int> getBigCores();
+private:
+    std::vector<pthread_t> m_threads;
+    std::vector<int> m_cpus;
+
+    Mutex m_mutex;
+    pthread_cond_t m_workCond;
+    pthread_cond_t m_idleCond;
+    bool m_stopped = false;
+
+    // Guarded by m_mutex.
+    std::list<std::function<void()>> m_tasks;
+    // Number of tasks which are queued or running.
+    int m_unfinished = 0;
+
+    static void *threadEntry(void *arg);
+    void workerLoop();
+    void finish();
+};
+
+#endif //ALVRCLIENT_WORKER_POOL_H
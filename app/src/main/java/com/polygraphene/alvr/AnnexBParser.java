@@ -0,0 +1,229 @@
+package com.polygraphene.alvr;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Annex-B (start code delimited) bitstream parser for H.264 and H.265.
+// Start codes are searched a word at a time, and both 3-byte (00 00 01) and 4-byte (00 00 00 01)
+// start codes are recognized. Same logic as native annexb.cpp.
+// Instance holds result of last parse() and is not thread safe.
+public class AnnexBParser {
+    // Same values as DecoderThread.CODEC_*.
+    public static final int CODEC_H264 = 0;
+    public static final int CODEC_H265 = 1;
+
+    public static final int FRAME_UNKNOWN = 0;
+    // Starts with (VPS + )SPS + PPS.
+    public static final int FRAME_CONFIG = 1;
+    // First slice is IRAP (IDR, CRA, BLA).
+    public static final int FRAME_IDR = 2;
+    public static final int FRAME_P = 3;
+
+    public static final int MAX_NALS = 64;
+
+    // H.264 nal_unit_type
+    private static final int H264_NAL_TYPE_IDR = 5;
+    private static final int H264_NAL_TYPE_SEI = 6;
+    private static final int H264_NAL_TYPE_SPS = 7;
+    private static final int H264_NAL_TYPE_PPS = 8;
+    private static final int H264_NAL_TYPE_AUD = 9;
+
+    // H.265 nal_unit_type
+    private static final int H265_NAL_TYPE_BLA_W_LP = 16;
+    private static final int H265_NAL_TYPE_RSV_IRAP_23 = 23;
+    private static final int H265_NAL_TYPE_VPS = 32;
+    private static final int H265_NAL_TYPE_PPS = 34;
+    private static final int H265_NAL_TYPE_AUD = 35;
+    private static final int H265_NAL_TYPE_PREFIX_SEI = 39;
+    private static final int H265_NAL_TYPE_SUFFIX_SEI = 40;
+
+    // Offset of start code.
+    private final int[] mStarts = new int[MAX_NALS];
+    // Offset of NAL header (first byte after start code).
+    private final int[] mPayloads = new int[MAX_NALS];
+    // Offset of next start code or end of buffer.
+    private final int[] mEnds = new int[MAX_NALS];
+    private final int[] mTypes = new int[MAX_NALS];
+    private int mCount = 0;
+    // Result of last classify().
+    private int mParameterSetsEnd = -1;
+
+    // Wrapper of last byte[] given to parse(). NAL buffers are pooled, so this is rarely recreated.
+    private ByteBuffer mWrapped;
+
+    // Returns offset of the first byte after a start code found in [from, end), or -1.
+    // Uses absolute get, so position and limit of buf are ignored.
+    // Works with any byte order, but ByteOrder.nativeOrder() is faster.
+    public static int findStartCode(ByteBuffer buf, int from, int end) {
+        // i is position of "01" of candidate start code.
+        int i = from + 2;
+        while (i < end) {
+            if (i + 8 <= end && !hasZeroByte(buf.getLong(i))) {
+                // No zero in buf[i..i+8), so only "01" at i can complete start code.
+                if (buf.get(i) == 1 && buf.get(i - 1) == 0 && buf.get(i - 2) == 0) {
+                    return i + 1;
+                }
+                i += 8;
+                continue;
+            }
+            int b = buf.get(i) & 0xFF;
+            if (b > 1) {
+                // buf[i] can't be part of start code ending at i, i + 1 or i + 2.
+                i += 3;
+            } else if (b == 1 && buf.get(i - 1) == 0 && buf.get(i - 2) == 0) {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean hasZeroByte(long x) {
+        return ((x - 0x0101010101010101L) & ~x & 0x8080808080808080L) != 0;
+    }
+
+    private static int getNalType(int codec, int header) {
+        if (codec == CODEC_H264) {
+            return header & 0x1F;
+        }
+        return (header >> 1) & 0x3F;
+    }
+
+    // Splits buf[0..length) into NALs. Returns number of NALs found (at most MAX_NALS).
+    public int parse(ByteBuffer buf, int length, int codec) {
+        int count = 0;
+        int payload = findStartCode(buf, 0, length);
+        while (payload >= 0 && payload < length && count < MAX_NALS) {
+            addNal(buf, payload, codec, count++);
+            payload = findStartCode(buf, payload, length);
+        }
+        setCount(count, length);
+        return count;
+    }
+
+    // Stores NAL whose header is at payload as index-th NAL and closes previous one. Returns nal_unit_type.
+    private int addNal(ByteBuffer buf, int payload, int codec, int index) {
+        int start = payload - 3;
+        if (start > 0 && buf.get(start - 1) == 0) {
+            // 4-byte start code.
+            start--;
+        }
+        mStarts[index] = start;
+        mPayloads[index] = payload;
+        mTypes[index] = getNalType(codec, buf.get(payload));
+        if (index > 0) {
+            mEnds[index - 1] = start;
+        }
+        return mTypes[index];
+    }
+
+    private void setCount(int count, int length) {
+        if (count > 0) {
+            mEnds[count - 1] = length;
+        }
+        mCount = count;
+    }
+
+    public int parse(NAL nal, int codec) {
+        return parse(getBuffer(nal), nal.length, codec);
+    }
+
+    private ByteBuffer getBuffer(NAL nal) {
+        if (nal.directBuf != null) {
+            return nal.directBuf;
+        }
+        if (mWrapped == null || mWrapped.array() != nal.buf) {
+            mWrapped = ByteBuffer.wrap(nal.buf).order(ByteOrder.nativeOrder());
+        }
+        return mWrapped;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public int getStart(int i) {
+        return mStarts[i];
+    }
+
+    public int getPayload(int i) {
+        return mPayloads[i];
+    }
+
+    public int getEnd(int i) {
+        return mEnds[i];
+    }
+
+    public int getType(int i) {
+        return mTypes[i];
+    }
+
+    // Classify frame by its first NAL which is not AUD nor SEI.
+    // Start codes are searched only up to that NAL, or up to the end of leading parameter sets for FRAME_CONFIG,
+    // so slice data is not scanned. getCount() etc. return NALs examined. End of last one is set to length.
+    public int classify(ByteBuffer buf, int length, int codec) {
+        int frameType = FRAME_UNKNOWN;
+        mParameterSetsEnd = -1;
+        int count = 0;
+        int payload = findStartCode(buf, 0, length);
+        while (payload >= 0 && payload < length && count < MAX_NALS) {
+            int type = addNal(buf, payload, codec, count++);
+            if (frameType == FRAME_CONFIG) {
+                if (!isParameterSet(codec, type)) {
+                    mParameterSetsEnd = mStarts[count - 1];
+                    break;
+                }
+            } else if (isParameterSet(codec, type)) {
+                frameType = FRAME_CONFIG;
+            } else if (!isAuxiliary(codec, type)) {
+                frameType = isIRAP(codec, type) ? FRAME_IDR : FRAME_P;
+                break;
+            }
+            payload = findStartCode(buf, payload, length);
+        }
+        setCount(count, length);
+        return frameType;
+    }
+
+    public int classify(NAL nal, int codec) {
+        return classify(getBuffer(nal), nal.length, codec);
+    }
+
+    // Offset where leading parameter sets ((VPS + )SPS + PPS) end, found by last classify() which returned
+    // FRAME_CONFIG. -1 if frame has no NAL after them.
+    public int getParameterSetsEnd() {
+        return mParameterSetsEnd;
+    }
+
+    // Returns offset where leading parameter sets ((VPS + )SPS + PPS) end, or -1 if buf doesn't start with them.
+    public int findParameterSetsEnd(ByteBuffer buf, int length, int codec) {
+        if (classify(buf, length, codec) != FRAME_CONFIG) {
+            return -1;
+        }
+        return mParameterSetsEnd;
+    }
+
+    public static boolean isParameterSet(int codec, int type) {
+        if (codec == CODEC_H264) {
+            return type == H264_NAL_TYPE_SPS || type == H264_NAL_TYPE_PPS;
+        }
+        return type >= H265_NAL_TYPE_VPS && type <= H265_NAL_TYPE_PPS;
+    }
+
+    public static boolean isIRAP(int codec, int type) {
+        if (codec == CODEC_H264) {
+            return type == H264_NAL_TYPE_IDR;
+        }
+        // BLA_W_LP, BLA_W_RADL, BLA_N_LP, IDR_W_RADL, IDR_N_LP, CRA_NUT and reserved IRAP types.
+        return type >= H265_NAL_TYPE_BLA_W_LP && type <= H265_NAL_TYPE_RSV_IRAP_23;
+    }
+
+    // AUD or SEI. Skipped when classifying frame.
+    public static boolean isAuxiliary(int codec, int type) {
+        if (codec == CODEC_H264) {
+            return type == H264_NAL_TYPE_AUD || type == H264_NAL_TYPE_SEI;
+        }
+        return type == H265_NAL_TYPE_AUD || type == H265_NAL_TYPE_PREFIX_SEI || type == H265_NAL_TYPE_SUFFIX_SEI;
+    }
+}
@@ -0,0 +1,245 @@
+package com.polygraphene.alvr;
+
+// Counters of DecoderThread. Each counter is updated only on one thread (decoder thread or
+// codec callback thread) and read from any thread.
+public class DecoderStatistics {
+    // NAL queue overload: queued P-Frames are flushed and decoder waits next IDR.
+    private volatile long mOverloadCount = 0;
+    private volatile long mOverloadTotalNs = 0;
+    private volatile long mOverloadStartNs = 0;
+    private volatile long mDroppedOnOverload = 0;
+
+    // Time from NAL arrival (DecoderThread.pushNAL) to queueInputBuffer.
+    private volatile long mQueuedCount = 0;
+    private volatile long mQueueLatencyTotalNs = 0;
+    private volatile long mQueueLatencyMaxNs = 0;
+    private volatile long mQueueLatencyLastNs = 0;
+
+    void onInputQueued(long latencyNs) {
+        mQueuedCount++;
+        mQueueLatencyTotalNs += latencyNs;
+        if (latencyNs > mQueueLatencyMaxNs) {
+            mQueueLatencyMaxNs = latencyNs;
+        }
+        mQueueLatencyLastNs = latencyNs;
+    }
+
+    // Time from queueInputBuffer to onOutputBufferAvailable. Updated on codec callback thread.
+    private volatile long mDecodedCount = 0;
+    private volatile long mDecodeLatencyTotalNs = 0;
+    private volatile long mDecodeLatencyMaxNs = 0;
+
+    void onFrameDecoded(long latencyNs) {
+        mDecodedCount++;
+        mDecodeLatencyTotalNs += latencyNs;
+        if (latencyNs > mDecodeLatencyMaxNs) {
+            mDecodeLatencyMaxNs = latencyNs;
+        }
+    }
+
+    // Decoder stall detected by watchdog and recovered by flush. Count is updated on decoder thread and
+    // recovery time (stall detection -> first output after flush) on codec callback thread.
+    private volatile long mStallCount = 0;
+    private volatile long mStallRecoveredCount = 0;
+    private volatile long mStallRecoveryTotalNs = 0;
+    private volatile long mStallRecoveryMaxNs = 0;
+
+    void onStall() {
+        mStallCount++;
+    }
+
+    void onStallRecovered(long recoveryNs) {
+        mStallRecoveredCount++;
+        mStallRecoveryTotalNs += recoveryNs;
+        if (recoveryNs > mStallRecoveryMaxNs) {
+            mStallRecoveryMaxNs = recoveryNs;
+        }
+    }
+
+    // Decoder input buffers. Updated on decoder thread.
+    private volatile long mInputSplitCount = 0;
+    private volatile long mInputResizeCount = 0;
+    private volatile long mInputWaitCount = 0;
+    private volatile long mInputWaitTotalNs = 0;
+    private volatile long mInputWaitMaxNs = 0;
+
+    // NAL didn't fit into one input buffer and continues to next buffer.
+    void onInputSplit() {
+        mInputSplitCount++;
+    }
+
+    void onInputResized() {
+        mInputResizeCount++;
+    }
+
+    // Time NAL waited free input buffer.
+    void onInputWait(long waitNs) {
+        mInputWaitCount++;
+        mInputWaitTotalNs += waitNs;
+        if (waitNs > mInputWaitMaxNs) {
+            mInputWaitMaxNs = waitNs;
+        }
+    }
+
+    // Age of frame (from tracking timestamp) on render thread. -1 if age is unknown.
+    private volatile long mRenderedFrameCount = 0;
+    private volatile long mRenderedFrameAgeCount = 0;
+    private volatile long mRenderedFrameAgeTotalNs = 0;
+    private volatile long mRenderedFrameAgeMaxNs = 0;
+    private volatile long mStaleFrameCount = 0;
+    private volatile long mStaleFrameAgeCount = 0;
+    private volatile long mStaleFrameAgeTotalNs = 0;
+    private volatile long mStaleFrameAgeMaxNs = 0;
+
+    void onFrameRendered(long ageNs) {
+        mRenderedFrameCount++;
+        if (ageNs >= 0) {
+            mRenderedFrameAgeCount++;
+            mRenderedFrameAgeTotalNs += ageNs;
+            if (ageNs > mRenderedFrameAgeMaxNs) {
+                mRenderedFrameAgeMaxNs = ageNs;
+            }
+        }
+    }
+
+    void onStaleFrameDropped(long ageNs) {
+        mStaleFrameCount++;
+        if (ageNs >= 0) {
+            mStaleFrameAgeCount++;
+            mStaleFrameAgeTotalNs += ageNs;
+            if (ageNs > mStaleFrameAgeMaxNs) {
+                mStaleFrameAgeMaxNs = ageNs;
+            }
+        }
+    }
+
+    void onOverloadStart(long now, int droppedFrames) {
+        if (mOverloadStartNs == 0) {
+            mOverloadCount++;
+            mOverloadStartNs = now;
+        }
+        mDroppedOnOverload += droppedFrames;
+    }
+
+    // Returns duration of this overload in ns, or -1 if not overloaded.
+    long onOverloadEnd(long now) {
+        if (mOverloadStartNs == 0) {
+            return -1;
+        }
+        long duration = now - mOverloadStartNs;
+        mOverloadTotalNs += duration;
+        mOverloadStartNs = 0;
+        return duration;
+    }
+
+    public boolean isOverloaded() {
+        return mOverloadStartNs != 0;
+    }
+
+    public long getOverloadCount() {
+        return mOverloadCount;
+    }
+
+    // Including current overload.
+    public long getOverloadTotalNs() {
+        long start = mOverloadStartNs;
+        return mOverloadTotalNs + (start != 0 ? System.nanoTime() - start : 0);
+    }
+
+    public long getDroppedOnOverload() {
+        return mDroppedOnOverload;
+    }
+
+    public long getQueuedCount() {
+        return mQueuedCount;
+    }
+
+    public long getAverageQueueLatencyNs() {
+        long count = mQueuedCount;
+        return count == 0 ? 0 : mQueueLatencyTotalNs / count;
+    }
+
+    public long getMaxQueueLatencyNs() {
+        return mQueueLatencyMaxNs;
+    }
+
+    public long getLastQueueLatencyNs() {
+        return mQueueLatencyLastNs;
+    }
+
+    public long getDecodedCount() {
+        return mDecodedCount;
+    }
+
+    public long getAverageDecodeLatencyNs() {
+        long count = mDecodedCount;
+        return count == 0 ? 0 : mDecodeLatencyTotalNs / count;
+    }
+
+    public long getMaxDecodeLatencyNs() {
+        return mDecodeLatencyMaxNs;
+    }
+
+    public long getInputSplitCount() {
+        return mInputSplitCount;
+    }
+
+    public long getInputResizeCount() {
+        return mInputResizeCount;
+    }
+
+    public long getInputWaitCount() {
+        return mInputWaitCount;
+    }
+
+    public long getInputWaitTotalNs() {
+        return mInputWaitTotalNs;
+    }
+
+    public long getMaxInputWaitNs() {
+        return mInputWaitMaxNs;
+    }
+
+    public long getRenderedFrameCount() {
+        return mRenderedFrameCount;
+    }
+
+    public long getAverageRenderedFrameAgeNs() {
+        long count = mRenderedFrameAgeCount;
+        return count == 0 ? 0 : mRenderedFrameAgeTotalNs / count;
+    }
+
+    public long getMaxRenderedFrameAgeNs() {
+        return mRenderedFrameAgeMaxNs;
+    }
+
+    public long getStaleFrameCount() {
+        return mStaleFrameCount;
+    }
+
+    public long getAverageStaleFrameAgeNs() {
+        long count = mStaleFrameAgeCount;
+        return count == 0 ? 0 : mStaleFrameAgeTotalNs / count;
+    }
+
+    public long getMaxStaleFrameAgeNs() {
+        return mStaleFrameAgeMaxNs;
+    }
+
+    public long getStallCount() {
+        return mStallCount;
+    }
+
+    public long getStallRecoveredCount() {
+        return mStallRecoveredCount;
+    }
+
+    public long getAverageStallRecoveryNs() {
+        long count = mStallRecoveredCount;
+        return count == 0 ? 0 : mStallRecoveryTotalNs / count;
+    }
+
+    public long getMaxStallRecoveryNs() {
+        return mStallRecoveryMaxNs;
+    }
+}
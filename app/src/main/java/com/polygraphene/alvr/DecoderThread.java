@@ -3,33 +3,30 @@ package com.polygraphene.alvr;
 import android.content.Context;
 import android.graphics.SurfaceTexture;
 import android.media.MediaCodec;
-import android.media.MediaFormat;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
-import android.support.annotation.NonNull;
-import android.util.Log;
+import android.os.Build;
 import android.view.Surface;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
-public class DecoderThread extends ThreadBase implements UdpReceiverThread.NALCallback, Handler.Callback {
+public class DecoderThread extends ThreadBase implements UdpReceiverThread.NALCallback {
     private static final String TAG = "DecoderThread";
 
     private static final int CODEC_H264 = 0;
     private static final int CODEC_H265 = 1;
+    // Codec which decoder is configured with. Used only on decoder thread.
     private int mCodec = CODEC_H265;
+    // Codec requested by server. Decoder thread swaps decoder when this differs from mCodec.
+    private volatile int mRequestedCodec = CODEC_H265;
 
     private static final String VIDEO_FORMAT_H264 = "video/avc";
     private static final String VIDEO_FORMAT_H265 = "video/hevc";
     private String mFormat = VIDEO_FORMAT_H265;
 
-    private MediaCodec mDecoder = null;
-    private Surface mSurface;
+    private final VideoDecoderBackend mDecoder;
 
     private boolean mWaitNextIDR = false;
 
@@ -40,19 +37,86 @@ public class DecoderThread extends ThreadBase implements UdpReceiverThread.NALCa
 
     private static final int NAL_QUEUE_MAX = 100;
 
-    private NalQueue mNalQueue = new NalQueue();
-    private OutputFrameQueue mQueue;
+    // Let native code write NAL into direct ByteBuffer. false falls back to byte[] (GetByteArrayElements path).
+    private static final boolean USE_DIRECT_NAL_BUFFER = true;
+
+    // Derive presentationTimeUs from frameIndex instead of System.nanoTime().
+    // Output frames are mapped back to frameIndex by arithmetic and FrameMap is not used.
+    private static final boolean USE_FRAME_INDEX_PTS = true;
 
-    private static final int MESSAGE_PUSH_NAL = 1;
-    private static final int MESSAGE_INPUT_BUFFER_AVAILABLE = 2;
-    private static final int MESSAGE_OUTPUT_FRAME = 3;
+    // Cap of total NAL buffer memory.
+    private static final long NAL_BUFFER_MAX_BYTES = 16 * 1024 * 1024;
 
-    private Handler mHandler;
+    private NalQueue mNalQueue = new NalQueue(USE_DIRECT_NAL_BUFFER, NAL_BUFFER_MAX_BYTES);
+    private OutputFrameQueue mQueue;
+
+    private final DecoderStatistics mStatistics = new DecoderStatistics();
+
+    // Used only on UdpReceiverThread (pushNAL).
+    private final AnnexBParser mParser = new AnnexBParser();
+    // Last value of NalQueue.getOverflowCount() handled by checkOverload().
+    private long mHandledOverflowCount = 0;
+
+    private volatile Thread mDecodeThread;
+    // Set by producers (NAL arrival, codec input available) and cleared by decode loop before draining.
+    // Multiple events before next drain are coalesced into one wakeup.
+    private volatile boolean mWakeRequested = false;
+
+    // Stall watchdog. Decoder is regarded as stalled when it has produced no output for STALL_FRAME_INTERVALS
+    // input frame intervals (at least STALL_MIN_NS) while STALL_MIN_FRAMES frames are queued to it.
+    private static final int STALL_MIN_FRAMES = 3;
+    private static final int STALL_FRAME_INTERVALS = 10;
+    private static final long STALL_MIN_NS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final long WATCHDOG_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    // Used only on decoder thread.
+    private long mQueuedFrames = 0;
+    private long mLastFrameQueuedTime = 0;
+    // Moving average of interval of queued frames.
+    private long mFrameIntervalNs = 0;
+    // Time of configure or flush. Watchdog doesn't count time before this.
+    private long mWatchdogBaseTime = 0;
+    // Value of mOutputFrames at mWatchdogBaseTime.
+    private long mOutputFramesBase = 0;
+    // Updated on codec callback thread.
+    private volatile long mOutputFrames = 0;
+    private volatile long mLastOutputTime = 0;
+    // Time when stall was detected. Cleared by first output after flush.
+    private volatile long mStallTime = 0;
+
+    // Requested size of decoder input buffers is at least MIN_INPUT_SIZE, size hint by server (capped by
+    // MAX_INPUT_SIZE_HINT) and largest NAL seen plus headroom, rounded up to INPUT_SIZE_ALIGNMENT.
+    private static final int MIN_INPUT_SIZE = 512 * 1024;
+    private static final int MAX_INPUT_SIZE_HINT = 4 * 1024 * 1024;
+    private static final int INPUT_SIZE_ALIGNMENT = 64 * 1024;
+    // Given by onConnect().
+    private volatile int mInputSizeHint = 0;
+    // Largest NAL pushed. Written only by receiver thread.
+    private volatile int mMaxNalSize = 0;
+    // Input size requested on last configure. Used only on decoder thread.
+    private int mConfiguredInputSize = 0;
+    // Time when decoder thread started waiting free input buffer. 0 if not waiting.
+    private long mInputWaitStart = 0;
+
+    // Last (VPS + )SPS + PPS fed to decoder. Fed again after flush. Used only on decoder thread.
+    private final NAL mConfigNal = new NAL();
+    private byte[] mConfig = new byte[0];
+    private int mConfigLength = 0;
+    private boolean mRefeedConfig = false;
+
+    // NAL (head of mNalQueue or mConfigNal) which is split and partially queued to codec with
+    // BUFFER_FLAG_PARTIAL_FRAME. Codec has open access unit, so rest of it must be fed before anything else
+    // and it must not be dropped. Used only on decoder thread.
+    private NAL mPartialNal = null;
+    private long mPartialPresentationTime;
+    private int mPartialFlags;
 
     public interface DecoderCallback {
         void onPrepared();
         void onDestroy();
         void onFrameDecoded();
+        // Decoder was flushed and needs IDR to resume. Called from decoder thread.
+        void onRequestIDR();
     }
 
     private final DecoderCallback mDecoderCallback;
@@ -87,12 +151,19 @@ public class DecoderThread extends ThreadBase implements UdpReceiverThread.NALCa
             (byte) 0xc0, (byte) 0xcc, (byte) 0x90
     };
 
-    private final Queue<Integer> mAvailableInputs = new LinkedList<>();
+    // Must be power of two. Larger than input buffer count of any codec.
+    private static final int MAX_INPUT_BUFFERS = 64;
+    // Free input buffer indices. Written by codec callback thread and read by decode loop.
+    private final IntRingBuffer mAvailableInputs = new IntRingBuffer(MAX_INPUT_BUFFERS);
 
     public DecoderThread(Surface surface, Context context, DecoderCallback callback) {
-        mSurface = surface;
+        this(new MediaCodecBackend(surface, new DecoderTuner(context)), context, callback);
+    }
+
+    public DecoderThread(VideoDecoderBackend backend, Context context, DecoderCallback callback) {
+        mDecoder = backend;
         mContext = context;
-        mQueue = new OutputFrameQueue();
+        mQueue = new OutputFrameQueue(USE_FRAME_INDEX_PTS, mStatistics);
         mDecoderCallback = callback;
     }
 
@@ -101,44 +172,26 @@ public class DecoderThread extends ThreadBase implements UdpReceiverThread.NALCa
     }
 
     public void interrupt() {
+        // Thread.interrupt() in super wakes up decode loop.
         super.interrupt();
 
-        mHandler.getLooper().quitSafely();
-
         if (mQueue != null)
             mQueue.stop();
     }
 
-    @Override
-    public boolean handleMessage(Message msg) {
-        switch (msg.what) {
-            case MESSAGE_PUSH_NAL:
-                Utils.log(TAG, () -> "MESSAGE_PUSH_NAL");
-                NAL nal = (NAL) msg.obj;
-
-                detectNALType(nal);
-                mNalQueue.add(nal);
-                pushNALInternal();
-                return true;
-            case MESSAGE_INPUT_BUFFER_AVAILABLE:
-                Utils.log(TAG, () -> "MESSAGE_INPUT_BUFFER_AVAILABLE");
-                int index = msg.arg1;
-                mAvailableInputs.add(index);
-                pushNALInternal();
-                return true;
-            case MESSAGE_OUTPUT_FRAME:
-                Utils.log(TAG, () -> "MESSAGE_OUTPUT_FRAME");
-                int index2 = msg.arg1;
-                MediaCodec.BufferInfo info = (MediaCodec.BufferInfo) msg.obj;
-
-                mQueue.pushOutputBuffer(index2, info);
-                mDecoderCallback.onFrameDecoded();
-                return true;
+    // Wake up decode loop. Called from any thread.
+    private void wakeUp() {
+        if (!mWakeRequested) {
+            mWakeRequested = true;
+            Thread thread = mDecodeThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
         }
-        return false;
     }
 
     protected void run() {
+        mDecodeThread = Thread.currentThread();
         try {
             decodeLoop();
         } catch (IOException | IllegalStateException e) {
@@ -149,15 +202,7 @@ public class DecoderThread extends ThreadBase implements UdpReceiverThread.NALCa
             mQueue.stop();
 
             mDecoderCallback.onDestroy();
-            if (mDecoder != null) {
-                try {
-                    mDecoder.stop();
-                    mDecoder.release();
-                } catch (IllegalStateException e) {
-                    e.printStackTrace();
-                }
-                mDecoder = null;
-            }
+            mDecoder.release();
         }
         Utils.logi(TAG, () -> "DecoderThread stopped.");
     }
@@ -165,35 +210,161 @@ public class DecoderThread extends ThreadBase implements UdpReceiverThread.NALCa
     private void decodeLoop() throws IOException {
         mAvailableInputs.clear();
         mNalQueue.clear();
+        mPartialNal = null;
+        mHandledOverflowCount = mNalQueue.getOverflowCount();
+
+        mQueue.setBackend(mDecoder);
 
-        Looper.prepare();
-        mHandler = new Handler(this);
+        setCodec(mRequestedCodec);
+        configureDecoder();
+        // Server may change codec on next connection. Create other decoder now to make the swap fast.
+        mDecoder.prewarm(mCodec == CODEC_H264 ? VIDEO_FORMAT_H265 : VIDEO_FORMAT_H264);
 
-        MediaFormat format = MediaFormat.createVideoFormat(mFormat, DummyWidth, DummyHeight);
-        format.setString("KEY_MIME", mFormat);
+        mDecoderCallback.onPrepared();
 
+        mWaitNextIDR = true;
+
+        while (!isStopped()) {
+            // Clear before draining, so events arriving while draining cause another iteration.
+            mWakeRequested = false;
+            if (mRequestedCodec != mCodec) {
+                swapCodec();
+            }
+            checkStall();
+            while (pushNALInternal()) {
+            }
+            if (!mWakeRequested) {
+                if (getPendingFrames() > 0) {
+                    // Wake up periodically to check stall even if no NAL arrives.
+                    LockSupport.parkNanos(this, WATCHDOG_INTERVAL_NS);
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        }
+    }
+
+    // Number of frames queued to decoder but not output yet.
+    private long getPendingFrames() {
+        return mQueuedFrames - (mOutputFrames - mOutputFramesBase);
+    }
+
+    private void resetWatchdog() {
+        mWatchdogBaseTime = System.nanoTime();
+        mOutputFramesBase = mOutputFrames;
+        mQueuedFrames = 0;
+    }
+
+    private void onFrameQueued() {
+        long now = System.nanoTime();
+        if (mLastFrameQueuedTime != 0) {
+            long interval = now - mLastFrameQueuedTime;
+            mFrameIntervalNs = mFrameIntervalNs == 0 ? interval : (mFrameIntervalNs * 7 + interval) / 8;
+        }
+        mLastFrameQueuedTime = now;
+        mQueuedFrames++;
+    }
+
+    private void checkStall() {
+        long pendingFrames = getPendingFrames();
+        if (pendingFrames < STALL_MIN_FRAMES) {
+            return;
+        }
+        long now = System.nanoTime();
+        long threshold = Math.max(STALL_MIN_NS, mFrameIntervalNs * STALL_FRAME_INTERVALS);
+        long noOutputTime = now - Math.max(mLastOutputTime, mWatchdogBaseTime);
+        if (noOutputTime < threshold) {
+            return;
+        }
+        Utils.loge(TAG, () -> "Decoder stalled. No output for " + noOutputTime / 1000 + " us with " + pendingFrames
+                + " frames queued. Flushing decoder.");
+        mStatistics.onStall();
+        mStallTime = now;
+
+        // Drop references to output buffers which are invalidated by flush.
+        mQueue.stop();
+        mDecoder.flush();
+        mAvailableInputs.clear();
+        abandonPartialNal();
+        mQueue.reset();
+        resetWatchdog();
+        mDecoder.start();
+
+        // Reference frames are lost. Feed last config again and wait IDR requested to server.
+        mRefeedConfig = mConfigLength > 0;
+        mWaitNextIDR = true;
+        mDecoderCallback.onRequestIDR();
+    }
+
+    private void setCodec(int codec) {
+        mCodec = codec;
         if (mCodec == CODEC_H264) {
-            format.setByteBuffer("csd-0", ByteBuffer.wrap(DummySPS, 0, DummySPS.length));
-            format.setByteBuffer("csd-1", ByteBuffer.wrap(DummyPPS, 0, DummyPPS.length));
+            mFormat = VIDEO_FORMAT_H264;
         } else {
-            format.setByteBuffer("csd-0", ByteBuffer.wrap(DummyCSD_H265, 0, DummyCSD_H265.length));
+            mFormat = VIDEO_FORMAT_H265;
         }
-        mDecoder = MediaCodec.createDecoderByType(mFormat);
+    }
 
-        mQueue.setCodec(mDecoder);
+    private int getRequiredInputSize() {
+        int nalSize = mMaxNalSize;
+        int size = Math.max(MIN_INPUT_SIZE, Math.min(mInputSizeHint, MAX_INPUT_SIZE_HINT));
+        size = Math.max(size, nalSize + nalSize / 4);
+        return (size + INPUT_SIZE_ALIGNMENT - 1) / INPUT_SIZE_ALIGNMENT * INPUT_SIZE_ALIGNMENT;
+    }
 
-        mDecoder.setVideoScalingMode(MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT);
-        mDecoder.setCallback(new Callback());
-        mDecoder.configure(format, mSurface, null, 0);
-        mDecoder.start();
+    private void configureDecoder() throws IOException {
+        mConfiguredInputSize = getRequiredInputSize();
+        if (mCodec == CODEC_H264) {
+            mDecoder.configure(mFormat, DummyWidth, DummyHeight, ByteBuffer.wrap(DummySPS, 0, DummySPS.length),
+                    ByteBuffer.wrap(DummyPPS, 0, DummyPPS.length), mConfiguredInputSize, mBackendCallback);
+        } else {
+            mDecoder.configure(mFormat, DummyWidth, DummyHeight, ByteBuffer.wrap(DummyCSD_H265, 0, DummyCSD_H265.length),
+                    null, mConfiguredInputSize, mBackendCallback);
+        }
+
+        Utils.logi(TAG, () -> "Codec created. Type=" + mFormat + " Name=" + mDecoder.getName()
+                + " MaxInputSize=" + mConfiguredInputSize);
+        resetWatchdog();
+        mRefeedConfig = false;
+        mConfigLength = 0;
+    }
 
-        Utils.logi(TAG, () -> "Codec created. Type=" + mFormat + " Name=" + mDecoder.getCodecInfo().getName());
+    // Reconfigure decoder with larger input buffers. Called just before config NAL, so decoder restarts
+    // from config + IDR and no frame is lost.
+    private void resizeInputBuffers() throws IOException {
+        long startTime = System.nanoTime();
 
-        mDecoderCallback.onPrepared();
+        mQueue.stop();
+        mDecoder.reset();
+        mAvailableInputs.clear();
+        abandonPartialNal();
+        mQueue.reset();
+        configureDecoder();
+        mStatistics.onInputResized();
+
+        long resizeTime = System.nanoTime() - startTime;
+        Utils.logi(TAG, () -> "Decoder input buffers resized. MaxNalSize=" + mMaxNalSize
+                + " Time=" + resizeTime / 1000 + " us");
+    }
+
+    // Reconfigure decoder with mRequestedCodec on this thread. Thread, OutputFrameQueue and surface are kept.
+    private void swapCodec() throws IOException {
+        long startTime = System.nanoTime();
+
+        // Drop references to output buffers of old decoder. Frames of old codec are useless for new stream.
+        mQueue.stop();
+        mDecoder.reset();
+        mAvailableInputs.clear();
+        abandonPartialNal();
 
+        setCodec(mRequestedCodec);
+        mQueue.reset();
+        configureDecoder();
+        // NALs queued after onConnect() are for new codec. Start from next config + IDR.
         mWaitNextIDR = true;
 
-        Looper.loop();
+        long swapTime = System.nanoTime() - startTime;
+        Utils.logi(TAG, () -> "Codec swapped. Type=" + mFormat + " Time=" + swapTime / 1000 + " us");
     }
 
     // Output IDR frame in external media dir for debugging. (/sdcard/Android/media/...)
@@ -205,9 +376,9 @@ public class DecoderThread extends ThreadBase implements UdpReceiverThread.NALCa
             try {
                 String path = mContext.getExternalMediaDirs()[0].getAbsolutePath() + "/" + buf.frameIndex + ".h264";
                 FileOutputStream stream = new FileOutputStream(path);
-                stream.write(spsBuffer.buf, 0, spsBuffer.length);
-                stream.write(ppsBuffer.buf, 0, ppsBuffer.length);
-                stream.write(buf.buf, 0, buf.length);
+                writeNAL(stream, spsBuffer);
+                writeNAL(stream, ppsBuffer);
+                writeNAL(stream, buf);
                 stream.close();
             } catch (IOException e) {
                 e.printStackTrace();
@@ -215,162 +386,338 @@ public class DecoderThread extends ThreadBase implements UdpReceiverThread.NALCa
         }
     }
 
+    private void writeNAL(FileOutputStream stream, NAL nal) throws IOException {
+        if (nal.directBuf != null) {
+            ByteBuffer buffer = nal.directBuf.duplicate();
+            buffer.position(0).limit(nal.length);
+            stream.getChannel().write(buffer);
+        } else {
+            stream.write(nal.buf, 0, nal.length);
+        }
+    }
+
+    // Returns false if NAL couldn't be fed entirely. Then rest of it is fed by next call with same arguments.
     private boolean pushInputBuffer(NAL nal, long presentationTimeUs, int flags) {
-        if (presentationTimeUs != 0) {
+        if (mPartialNal != nal && presentationTimeUs != 0) {
+            // Register frame only once even if it is split over multiple calls.
             mQueue.pushInputBuffer(presentationTimeUs, nal.frameIndex);
+            mDecoder.onFrameInput(nal.frameIndex);
         }
 
         while (nal.length > 0) {
-            Integer bufferIndex = mAvailableInputs.poll();
-            if (bufferIndex == null) {
-                // Insufficient buffer
+            int bufferIndex = mAvailableInputs.poll(-1);
+            if (bufferIndex < 0) {
+                // Insufficient buffer. Rest of NAL is fed when next buffer is available.
+                mPartialNal = nal;
+                mPartialPresentationTime = presentationTimeUs;
+                mPartialFlags = flags;
+                onInputUnavailable();
                 return false;
             }
             ByteBuffer buffer = mDecoder.getInputBuffer(bufferIndex);
 
             int copyLength = Math.min(nal.length, buffer.remaining());
-            buffer.put(nal.buf, 0, copyLength);
-
-            mDecoder.queueInputBuffer(bufferIndex, 0, buffer.position(), presentationTimeUs, flags);
+            if (nal.directBuf != null) {
+                // Bulk copy from direct buffer. Position of directBuf tracks consumed bytes on splitting.
+                ByteBuffer src = nal.directBuf;
+                int limit = src.limit();
+                src.limit(src.position() + copyLength);
+                buffer.put(src);
+                src.limit(limit);
+            } else {
+                buffer.put(nal.buf, nal.offset, copyLength);
+                nal.offset += copyLength;
+            }
             nal.length -= copyLength;
 
+            int bufferFlags = flags;
             if (nal.length > 0) {
-                String name = mDecoder.getCodecInfo().getName();
-                Utils.frameLog(nal.frameIndex, () -> "Splitting input buffer for codec. NAL Size="
-                        + nal.length + " copyLength=" + copyLength + " codec=" + name);
+                // Decoder batches data until buffer without this flag. Older decoders don't support splitting.
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                    bufferFlags |= MediaCodec.BUFFER_FLAG_PARTIAL_FRAME;
+                }
+                mStatistics.onInputSplit();
+                if (Utils.sEnableLog) {
+                    String name = mDecoder.getName();
+                    Utils.frameLog(nal.frameIndex, () -> "Splitting input buffer for codec. Remaining="
+                            + nal.length + " copyLength=" + copyLength + " codec=" + name);
+                }
             }
+            mDecoder.queueInputBuffer(bufferIndex, buffer.position(), presentationTimeUs, bufferFlags);
+        }
+        mPartialNal = null;
+        if (mInputWaitStart != 0) {
+            mStatistics.onInputWait(System.nanoTime() - mInputWaitStart);
+            mInputWaitStart = 0;
         }
         return true;
     }
 
-    // Called from Main thread.
-    class Callback extends MediaCodec.Callback {
-        @Override
-        public void onInputBufferAvailable(@NonNull MediaCodec codec, final int index) {
-            Utils.log(TAG, () -> "mHandler.sendMessage MESSAGE_INPUT_BUFFER_AVAILABLE");
-            Message message = mHandler.obtainMessage(MESSAGE_INPUT_BUFFER_AVAILABLE);
-            message.arg1 = index;
-            mHandler.sendMessage(message);
+    private void onInputUnavailable() {
+        if (mInputWaitStart == 0) {
+            mInputWaitStart = System.nanoTime();
         }
+    }
 
+    // Called from decoder backend thread.
+    private final VideoDecoderBackend.Callback mBackendCallback = new VideoDecoderBackend.Callback() {
         @Override
-        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
-            Utils.log(TAG, () -> "mHandler.sendMessage MESSAGE_OUTPUT_FRAME");
-            Message message = mHandler.obtainMessage(MESSAGE_OUTPUT_FRAME);
-            message.arg1 = index;
-            message.obj = info;
-            mHandler.sendMessage(message);
+        public void onInputBufferAvailable(int index) {
+            if (!mAvailableInputs.offer(index)) {
+                Utils.loge(TAG, () -> "Too many input buffers. Ignore index=" + index);
+                return;
+            }
+            wakeUp();
         }
 
         @Override
-        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
-            Utils.loge(TAG, () -> "Codec Error: " + e.getMessage() + "\n" + e.getDiagnosticInfo());
+        public void onOutputBufferAvailable(int index, long presentationTimeUs) {
+            long now = System.nanoTime();
+            mLastOutputTime = now;
+            mOutputFrames++;
+            long stallTime = mStallTime;
+            if (stallTime != 0) {
+                mStallTime = 0;
+                long recoveryTime = now - stallTime;
+                mStatistics.onStallRecovered(recoveryTime);
+                Utils.logi(TAG, () -> "Decoder recovered from stall. RecoveryTime=" + recoveryTime / 1000 + " us"
+                        + " Stalls=" + mStatistics.getStallCount());
+            }
+            mQueue.pushOutputBuffer(index, presentationTimeUs);
+            mDecoderCallback.onFrameDecoded();
         }
 
         @Override
-        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
-            Utils.logi(TAG, () -> "New format " + mDecoder.getOutputFormat());
+        public void onError(String message) {
+            Utils.loge(TAG, () -> "Codec Error: " + message);
         }
-    }
+    };
 
-    public void onConnect(int codec, int frameQueueSize) {
-        Utils.logi(TAG, () -> "onConnect()");
+    // inputSizeHint is expected maximum size of a frame in bytes, or 0 if unknown.
+    public void onConnect(int codec, int frameQueueSize, int inputSizeHint) {
+        Utils.logi(TAG, () -> "onConnect() InputSizeHint=" + inputSizeHint);
+        mInputSizeHint = inputSizeHint;
         if (mQueue != null) {
             mQueue.reset();
+            mQueue.setQueueSize(frameQueueSize);
         }
         notifyCodecChange(codec);
     }
 
+    // Called when server changed frameQueueSize by ChangeSettings.
+    public void onChangeSettings(int frameQueueSize) {
+        if (mQueue != null) {
+            mQueue.setQueueSize(frameQueueSize);
+        }
+    }
+
+    // Select whether render thread skips frames which became stale while waiting. maxFrameAgeNs is for MAX_AGE.
+    public void setStaleFramePolicy(OutputFrameQueue.StaleFramePolicy policy, long maxFrameAgeNs,
+                                    OutputFrameQueue.FrameAgeSource source) {
+        if (mQueue != null) {
+            mQueue.setStaleFramePolicy(policy, maxFrameAgeNs, source);
+        }
+    }
+
     public void onDisconnect() {
         mQueue.stop();
     }
 
     private void notifyCodecChange(int codec) {
-        if (codec != mCodec) {
+        if (codec != mRequestedCodec) {
             Utils.logi(TAG, () -> "notifyCodecChange: Codec was changed. New Codec=" + codec);
-            stopAndWait();
-            mCodec = codec;
-            if (mCodec == CODEC_H264) {
-                mFormat = VIDEO_FORMAT_H264;
-            } else {
-                mFormat = VIDEO_FORMAT_H265;
-            }
-            mQueue.reset();
-            start();
+            // Decoder is swapped in place by decode loop.
+            mRequestedCodec = codec;
+            wakeUp();
         } else {
             Utils.logi(TAG, () -> "notifyCodecChange: Codec was not changed. Codec=" + codec);
             //mWaitNextIDR = true;
         }
     }
 
-    private void pushNALInternal() {
+    // Feed head of NAL queue to codec. Returns true if NAL was consumed.
+    private boolean pushNALInternal() throws IOException {
         if (isStopped()) {
             Utils.logi(TAG, () ->"decodeLoop Stopped. mStopped==true.");
-            return;
+            return false;
         }
-        if (mAvailableInputs.size() == 0) {
-            return;
+        if (mRequestedCodec != mCodec) {
+            // Swap decoder before feeding NALs of new codec.
+            return false;
+        }
+        if (mPartialNal == null) {
+            // Codec has no open partial access unit, so queued NALs can be dropped.
+            checkOverload();
+        }
+        if (mAvailableInputs.isEmpty()) {
+            if (mRefeedConfig || mNalQueue.peek() != null) {
+                onInputUnavailable();
+            }
+            return false;
+        }
+        if (mRefeedConfig) {
+            if (mPartialNal != mConfigNal) {
+                mConfigNal.buf = mConfig;
+                mConfigNal.directBuf = null;
+                mConfigNal.length = mConfigLength;
+                mConfigNal.offset = 0;
+            }
+            if (!pushInputBuffer(mConfigNal, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG)) {
+                return false;
+            }
+            mRefeedConfig = false;
+            return true;
         }
         NAL nal = mNalQueue.peek();
         if (nal == null) {
-            return;
+            return false;
         }
 
-        long presentationTime = System.nanoTime() / 1000;
+        long presentationTime = mQueue.getPresentationTime(nal.frameIndex, System.nanoTime());
 
         boolean consumed = false;
 
-        if (nal.type == NAL_TYPE_SPS) {
+        if (mPartialNal == nal) {
+            // Rest of split NAL. Bookkeeping and drop decision were done on its first part.
+            consumed = pushInputBuffer(nal, mPartialPresentationTime, mPartialFlags);
+        } else if (nal.type == NAL_TYPE_SPS) {
             // (VPS + )SPS + PPS
-            Utils.frameLog(nal.frameIndex, () -> "Feed codec config. Size=" + nal.length);
+            if (Utils.sEnableLog) {
+                Utils.frameLog(nal.frameIndex, () -> "Feed codec config. Size=" + nal.length);
+            }
 
-            mWaitNextIDR = false;
+            endWaitNextIDR();
 
+            if (getRequiredInputSize() > mConfiguredInputSize) {
+                // Large frames were seen. Resize now, before next IDR.
+                resizeInputBuffers();
+                return false;
+            }
+            cacheConfig(nal);
             consumed = pushInputBuffer(nal, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
         } else if (nal.type == NAL_TYPE_IDR) {
             // IDR-Frame
-            Utils.frameLog(nal.frameIndex, () -> "Feed IDR-Frame. Size=" + nal.length + " PresentationTime=" + presentationTime);
+            if (Utils.sEnableLog) {
+                Utils.frameLog(nal.frameIndex, () -> "Feed IDR-Frame. Size=" + nal.length + " PresentationTime=" + presentationTime);
+            }
 
-            LatencyCollector.DecoderInput(nal.frameIndex);
+            if (mWaitNextIDR && mConfigLength > 0) {
+                // IRAP (IDR, CRA, BLA) without in-band parameter sets. Decoder still has last config.
+                endWaitNextIDR();
+            }
 
             consumed = pushInputBuffer(nal, presentationTime, 0);
         } else {
             // PFrame
-            LatencyCollector.DecoderInput(nal.frameIndex);
-
             if (mWaitNextIDR) {
                 // Ignore P-Frame until next I-Frame
-                Utils.frameLog(nal.frameIndex, () -> "Ignoring P-Frame");
+                if (Utils.sEnableLog) {
+                    Utils.frameLog(nal.frameIndex, () -> "Ignoring P-Frame");
+                }
 
-                consumed = true;
+                mDecoder.onFrameInput(nal.frameIndex);
+                mNalQueue.remove();
+                return true;
             } else {
                 // P-Frame
-                Utils.frameLog(nal.frameIndex, () -> "Feed P-Frame. Size=" + nal.length + " PresentationTime=" + presentationTime);
+                if (Utils.sEnableLog) {
+                    Utils.frameLog(nal.frameIndex, () -> "Feed P-Frame. Size=" + nal.length + " PresentationTime=" + presentationTime);
+                }
 
                 consumed = pushInputBuffer(nal, presentationTime, 0);
             }
         }
         if (consumed) {
+            if (nal.type != NAL_TYPE_SPS) {
+                onFrameQueued();
+            }
+            long queueLatency = System.nanoTime() - nal.availableTime;
+            mStatistics.onInputQueued(queueLatency);
+            if (Utils.sEnableLog) {
+                Utils.frameLog(nal.frameIndex, () -> "NAL available -> queued to codec: " + queueLatency / 1000 + " us");
+            }
             mNalQueue.remove();
         }
+        return consumed;
     }
 
-    private void detectNALType(NAL nal) {
-        int NALType;
+    // Codec has discarded partially fed NAL by flush or reset. Rest of it is useless alone.
+    private void abandonPartialNal() {
+        if (mPartialNal != null && mPartialNal != mConfigNal) {
+            mNalQueue.remove();
+        }
+        mPartialNal = null;
+    }
 
-        if (mCodec == CODEC_H264) {
-            NALType = nal.buf[4] & 0x1F;
+    // Decoding can resume from current NAL.
+    private void endWaitNextIDR() {
+        mWaitNextIDR = false;
+        long overloadDuration = mStatistics.onOverloadEnd(System.nanoTime());
+        if (overloadDuration >= 0) {
+            Utils.logi(TAG, () -> "Recovered from NAL queue overload. Duration=" + overloadDuration / 1000 + " us"
+                    + " Count=" + mStatistics.getOverloadCount() + " Total=" + mStatistics.getOverloadTotalNs() / 1000 + " us");
+        }
+    }
+
+    private void cacheConfig(NAL nal) {
+        if (mConfig.length < nal.length) {
+            mConfig = new byte[nal.length];
+        }
+        if (nal.directBuf != null) {
+            ByteBuffer src = nal.directBuf;
+            int position = src.position();
+            src.get(mConfig, 0, nal.length);
+            src.position(position);
         } else {
-            NALType = (nal.buf[4] >> 1) & 0x3F;
+            System.arraycopy(nal.buf, 0, mConfig, 0, nal.length);
+        }
+        mConfigLength = nal.length;
+    }
+
+    // NAL queue has overflowed and receiver is dropping frames until next IDR (NALParser::onOverload).
+    // Queued P-Frames are useless without dropped reference, so flush them and wait next IDR.
+    private void checkOverload() {
+        long overflowCount = mNalQueue.getOverflowCount();
+        if (overflowCount == mHandledOverflowCount) {
+            return;
         }
-        Utils.frameLog(nal.frameIndex, () -> "Got NAL Type=" + NALType + " Length=" + nal.length + " QueueSize=" + mNalQueue.size());
+        mHandledOverflowCount = overflowCount;
 
-        if ((mCodec == CODEC_H264 && NALType == NAL_TYPE_SPS) ||
-                (mCodec == CODEC_H265 && NALType == H265_NAL_TYPE_VPS)) {
+        int dropped = 0;
+        NAL nal;
+        while ((nal = mNalQueue.peek()) != null && nal.type == NAL_TYPE_P) {
+            mNalQueue.remove();
+            dropped++;
+        }
+        mWaitNextIDR = true;
+        mStatistics.onOverloadStart(System.nanoTime(), dropped);
+
+        int finalDropped = dropped;
+        Utils.loge(TAG, () -> "NAL queue overflowed. Flushed " + finalDropped + " P-Frames and waiting next IDR.");
+    }
+
+    // Number of NALs received but not fed to codec yet.
+    public int getPendingNALCount() {
+        return mNalQueue.size();
+    }
+
+    public DecoderStatistics getStatistics() {
+        return mStatistics;
+    }
+
+    private void detectNALType(NAL nal) {
+        // Skips AUD/SEI and recognizes all IRAP types (IDR, CRA, BLA).
+        // NALs after onConnect() are classified by new codec even if decoder has not been swapped yet.
+        int frameType = mParser.classify(nal, mRequestedCodec);
+        if (Utils.sEnableLog) {
+            Utils.frameLog(nal.frameIndex, () -> "Got NAL FrameType=" + frameType + " NALs=" + mParser.getCount()
+                    + " Length=" + nal.length + " QueueSize=" + mNalQueue.size());
+        }
+
+        if (frameType == AnnexBParser.FRAME_CONFIG) {
             // (VPS + )SPS + PPS
             nal.type = NAL_TYPE_SPS;
-        } else if ((mCodec == CODEC_H264 && NALType == NAL_TYPE_IDR) ||
-                (mCodec == CODEC_H265 && NALType == H265_NAL_TYPE_IDR_W_RADL)) {
+        } else if (frameType == AnnexBParser.FRAME_IDR) {
             // IDR-Frame
             nal.type = NAL_TYPE_IDR;
         } else {
@@ -386,8 +733,15 @@ public class DecoderThread extends ThreadBase implements UdpReceiverThread.NALCa
 
     @Override
     public void pushNAL(NAL nal) {
-        Message message = mHandler.obtainMessage(MESSAGE_PUSH_NAL, nal);
-        mHandler.sendMessage(message);
+        // Called from UdpReceiverThread. mNalQueue is single-producer, so enqueue here and just wake up decoder.
+        nal.availableTime = System.nanoTime();
+        if (nal.length > mMaxNalSize) {
+            mMaxNalSize = nal.length;
+        }
+        detectNALType(nal);
+        mNalQueue.add(nal);
+
+        wakeUp();
     }
 
     public void releaseBuffer() {
@@ -402,7 +756,7 @@ public class DecoderThread extends ThreadBase implements UdpReceiverThread.NALCa
         return mQueue.clearAvailable(surfaceTexture);
     }
 
-    public boolean discartStaleFrames(SurfaceTexture surfaceTexture) {
+    public boolean discardStaleFrames(SurfaceTexture surfaceTexture) {
         return mQueue.discardStaleFrames(surfaceTexture);
     }
 }
@@ -0,0 +1,177 @@
+package com.polygraphene.alvr;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+
+/**
+ * Chooses low-latency configuration of MediaCodec for this device.
+ * Each level adds keys on top of lower level. Levels not measured yet on this codec are tried on successive
+ * codec startups and measured decode latency is saved. Once all levels are measured, fastest working level is used.
+ */
+public class DecoderTuner {
+    private static final String TAG = "DecoderTuner";
+
+    // Bare format. Same as before tuning was introduced.
+    public static final int LEVEL_NONE = 0;
+    // KEY_LOW_LATENCY, KEY_PRIORITY (realtime) and KEY_OPERATING_RATE.
+    public static final int LEVEL_STANDARD = 1;
+    // Vendor specific low-latency keys selected by codec name.
+    public static final int LEVEL_VENDOR = 2;
+    private static final int LEVEL_COUNT = 3;
+
+    // Saved latency of a level which failed on configure or produced no output.
+    private static final long LATENCY_FAILED = -1;
+    private static final long LATENCY_UNKNOWN = 0;
+
+    // Not in SDK 26.
+    private static final int VERSION_CODES_R = 30;
+    private static final String KEY_LOW_LATENCY = "low-latency";
+    private static final String FEATURE_LOW_LATENCY = "low-latency";
+
+    // Vendor keys. Unknown keys are ignored by codecs of other vendors, but we set only matching ones.
+    private static final String[][] QUALCOMM_KEYS = {
+            {"vendor.qti-ext-dec-picture-order.enable", "1"},
+            {"vendor.qti-ext-dec-low-latency.enable", "1"},
+    };
+    private static final String[][] EXYNOS_KEYS = {
+            {"vendor.rtc-ext-dec-low-latency.enable", "1"},
+    };
+    private static final String[][] HISILICON_KEYS = {
+            {"vendor.hisi-ext-low-latency-video-dec.video-scene-for-low-latency-req", "1"},
+            {"vendor.hisi-ext-low-latency-video-dec.video-scene-for-low-latency-rdy", "-1"},
+    };
+    private static final String[][] AMLOGIC_KEYS = {
+            {"vendor.low-latency.enable", "1"},
+    };
+
+    private final SharedPreferences mPref;
+
+    public DecoderTuner(Context context) {
+        mPref = context != null ? context.getSharedPreferences("decoder_tuning", Context.MODE_PRIVATE) : null;
+    }
+
+    // Returns level to be used for next configure. Untested level is preferred, from higher one.
+    public int selectLevel(String codecName, String mimeType) {
+        int best = LEVEL_NONE;
+        long bestLatency = Long.MAX_VALUE;
+        for (int level = LEVEL_COUNT - 1; level >= LEVEL_NONE; level--) {
+            if (!isApplicable(codecName, level)) {
+                continue;
+            }
+            long latency = loadLatency(codecName, mimeType, level);
+            if (latency == LATENCY_UNKNOWN) {
+                final int untestedLevel = level;
+                Utils.logi(TAG, () -> "Trying untested level. Codec=" + codecName + " Level=" + untestedLevel);
+                return level;
+            }
+            if (latency != LATENCY_FAILED && latency < bestLatency) {
+                best = level;
+                bestLatency = latency;
+            }
+        }
+        int finalBest = best;
+        long finalBestLatency = bestLatency;
+        Utils.logi(TAG, () -> "Using fastest level. Codec=" + codecName + " Level=" + finalBest
+                + " Latency=" + (finalBestLatency == Long.MAX_VALUE ? -1 : finalBestLatency / 1000) + " us");
+        return best;
+    }
+
+    // Returns next lower level which can be tried after configure with level failed, or -1.
+    public int getFallbackLevel(String codecName, int level) {
+        for (int lower = level - 1; lower >= LEVEL_NONE; lower--) {
+            if (isApplicable(codecName, lower)) {
+                return lower;
+            }
+        }
+        return -1;
+    }
+
+    public void apply(MediaFormat format, MediaCodecInfo codecInfo, String mimeType, int level) {
+        if (level >= LEVEL_STANDARD) {
+            if (Build.VERSION.SDK_INT >= VERSION_CODES_R) {
+                MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(mimeType);
+                boolean supported = capabilities != null && capabilities.isFeatureSupported(FEATURE_LOW_LATENCY);
+                Utils.logi(TAG, () -> "Low latency feature supported=" + supported);
+                if (supported) {
+                    format.setInteger(KEY_LOW_LATENCY, 1);
+                }
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                // 0 is realtime priority.
+                format.setInteger(MediaFormat.KEY_PRIORITY, 0);
+                // Decode as fast as possible instead of pacing at frame rate.
+                format.setInteger(MediaFormat.KEY_OPERATING_RATE, Short.MAX_VALUE);
+            }
+        }
+        if (level >= LEVEL_VENDOR) {
+            String[][] keys = getVendorKeys(codecInfo.getName());
+            if (keys != null) {
+                for (String[] key : keys) {
+                    format.setInteger(key[0], Integer.parseInt(key[1]));
+                }
+            }
+        }
+    }
+
+    // Called when average decode latency of level was measured.
+    public void onMeasured(String codecName, String mimeType, int level, long averageLatencyNs) {
+        Utils.logi(TAG, () -> "Measured decode latency. Codec=" + codecName + " Level=" + level
+                + " Latency=" + averageLatencyNs / 1000 + " us");
+        // Never save LATENCY_UNKNOWN or LATENCY_FAILED as latency.
+        saveLatency(codecName, mimeType, level, Math.max(averageLatencyNs, 1));
+    }
+
+    // Called when configure with level failed or codec didn't output any frame.
+    public void onFailed(String codecName, String mimeType, int level) {
+        Utils.loge(TAG, () -> "Decoder tuning level failed. Codec=" + codecName + " Level=" + level);
+        saveLatency(codecName, mimeType, level, LATENCY_FAILED);
+    }
+
+    private boolean isApplicable(String codecName, int level) {
+        if (level == LEVEL_VENDOR) {
+            return getVendorKeys(codecName) != null;
+        }
+        if (level == LEVEL_STANDARD) {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        }
+        return true;
+    }
+
+    private static String[][] getVendorKeys(String codecName) {
+        String name = codecName.toLowerCase();
+        if (name.startsWith("omx.qcom.") || name.startsWith("c2.qti.")) {
+            return QUALCOMM_KEYS;
+        } else if (name.startsWith("omx.exynos.") || name.startsWith("c2.exynos.")) {
+            return EXYNOS_KEYS;
+        } else if (name.startsWith("omx.hisi.") || name.startsWith("c2.hisi.")) {
+            return HISILICON_KEYS;
+        } else if (name.startsWith("omx.amlogic.") || name.startsWith("c2.amlogic.")) {
+            return AMLOGIC_KEYS;
+        }
+        return null;
+    }
+
+    private static String getKey(String codecName, String mimeType, int level) {
+        return codecName + "/" + mimeType + "/" + level;
+    }
+
+    private long loadLatency(String codecName, String mimeType, int level) {
+        if (mPref == null) {
+            // Nothing is saved. Use highest level every time.
+            return LATENCY_UNKNOWN;
+        }
+        return mPref.getLong(getKey(codecName, mimeType, level), LATENCY_UNKNOWN);
+    }
+
+    private void saveLatency(String codecName, String mimeType, int level, long latency) {
+        if (mPref == null) {
+            return;
+        }
+        SharedPreferences.Editor edit = mPref.edit();
+        edit.putLong(getKey(codecName, mimeType, level), latency);
+        edit.apply();
+    }
+}
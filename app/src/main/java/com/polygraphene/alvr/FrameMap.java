@@ -1,28 +1,81 @@
 package com.polygraphene.alvr;
 
-import android.util.LongSparseArray;
-
-import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 // Stores mapping of presentationTime to frameIndex for tracking frameIndex on decoding.
+// Open-addressing (linear probing) table indexed by hash of presentationTime. Holds the latest MAX_FRAMES entries.
+// No allocation and no lock.
+// put() must be called from single thread (DecoderThread). find() can be called from any thread.
 public class FrameMap {
-    private static final int MAX_FRAMES = 50;
+    private static final int MAX_FRAMES = 64;
+    // Table is 4 times larger than live entries, so that probe sequences stay short.
+    // Must be power of two.
+    private static final int TABLE_BITS = 8;
+    private static final int TABLE_SIZE = 1 << TABLE_BITS;
+    private static final int MASK = TABLE_SIZE - 1;
+    // presentationTime is never negative.
+    private static final long INVALID_KEY = Long.MIN_VALUE;
+
+    // Volatile keys guard plain values. Writer invalidates key, writes value and then publishes key.
+    // Slots are never emptied, only overwritten after they expire, so linear probe chains are never broken.
+    private final AtomicLongArray mKeys = new AtomicLongArray(TABLE_SIZE);
+    private final long[] mValues = new long[TABLE_SIZE];
+    // Value of mCount when slot was written. Entry is expired after MAX_FRAMES more put() calls.
+    private final long[] mSequences = new long[TABLE_SIZE];
+    // Longest distance from home slot of any entry ever written. Written before mCount, read after it.
+    private int mMaxProbe = 0;
+    // Number of put() calls. Written only by writer.
+    private volatile long mCount = 0;
+
+    public FrameMap() {
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            mKeys.set(i, INVALID_KEY);
+        }
+    }
 
-    private List<Long> mFrameHistory = new LinkedList<>();
-    private LongSparseArray<Long> mFrameHashMap = new LongSparseArray<>();
+    public void put(long presentationTime, long frameIndex) {
+        long count = mCount + 1;
+        int home = hash(presentationTime);
+        // At most MAX_FRAMES - 1 other entries are live, so free slot is always found.
+        int probe = 0;
+        int slot = home;
+        for (; probe < TABLE_SIZE; probe++) {
+            slot = (home + probe) & MASK;
+            long key = mKeys.get(slot);
+            if (key == presentationTime || key == INVALID_KEY || mSequences[slot] <= count - MAX_FRAMES) {
+                break;
+            }
+        }
+        mKeys.set(slot, INVALID_KEY);
+        mValues[slot] = frameIndex;
+        mSequences[slot] = count;
+        mKeys.set(slot, presentationTime);
+        if (probe > mMaxProbe) {
+            mMaxProbe = probe;
+        }
+        mCount = count;
+    }
 
-    public synchronized void put(long presentationTime, long frameIndex) {
-        mFrameHistory.add(presentationTime);
-        mFrameHashMap.put(presentationTime, frameIndex);
-        if (mFrameHistory.size() > MAX_FRAMES) {
-            Long key = mFrameHistory.remove(0);
-            mFrameHashMap.remove(key);
+    public long find(long presentationTime) {
+        long oldest = mCount - MAX_FRAMES;
+        int maxProbe = mMaxProbe;
+        int home = hash(presentationTime);
+        for (int i = 0; i <= maxProbe; i++) {
+            int slot = (home + i) & MASK;
+            if (mKeys.get(slot) == presentationTime) {
+                long value = mValues[slot];
+                long sequence = mSequences[slot];
+                // Recheck key in case writer has overwritten the slot while we read value.
+                if (mKeys.get(slot) == presentationTime && sequence > oldest) {
+                    return value;
+                }
+            }
         }
+        return -1;
     }
 
-    public synchronized long find(long presentationTime) {
-        Long f = mFrameHashMap.get(presentationTime);
-        return f != null ? f : -1;
+    // Fibonacci hashing. Spreads keys with constant stride (frame interval) over the table.
+    private static int hash(long presentationTime) {
+        return (int) ((presentationTime * 0x9E3779B97F4A7C15L) >>> (64 - TABLE_BITS));
     }
 }
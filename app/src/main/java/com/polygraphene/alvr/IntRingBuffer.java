@@ -0,0 +1,53 @@
+package com.polygraphene.alvr;
+
+// Lock-free single-producer/single-consumer ring of int. Used instead of Queue<Integer> to avoid boxing.
+// Indices are kept by SpscIndices like NalQueue, so each side reads the other side's index only when
+// ring looks full or empty.
+class IntRingBuffer {
+    private final int[] mBuffer;
+    private final int mMask;
+    private final SpscIndices mIndices;
+
+    // capacity must be power of two.
+    IntRingBuffer(int capacity) {
+        mBuffer = new int[capacity];
+        mMask = capacity - 1;
+        mIndices = new SpscIndices(capacity);
+    }
+
+    // Called from producer.
+    public boolean offer(int value) {
+        long tail = mIndices.claim();
+        if (tail < 0) {
+            return false;
+        }
+        mBuffer[(int) tail & mMask] = value;
+        mIndices.publish(tail);
+        return true;
+    }
+
+    // Called from consumer. Returns defaultValue if empty.
+    public int poll(int defaultValue) {
+        long head = mIndices.peek();
+        if (head < 0) {
+            return defaultValue;
+        }
+        int value = mBuffer[(int) head & mMask];
+        mIndices.release(head + 1);
+        return value;
+    }
+
+    // Called from consumer.
+    public void clear() {
+        mIndices.release(mIndices.getTail());
+    }
+
+    // Called from consumer.
+    public boolean isEmpty() {
+        return mIndices.peek() < 0;
+    }
+
+    public int size() {
+        return (int) (mIndices.getTail() - mIndices.getHead());
+    }
+}
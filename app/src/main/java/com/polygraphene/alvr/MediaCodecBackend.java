@@ -0,0 +1,347 @@
+package com.polygraphene.alvr;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// VideoDecoderBackend by MediaCodec in async mode, rendering to Surface.
+// Low-latency keys are selected by DecoderTuner and decode latency of first frames is measured for it.
+public class MediaCodecBackend implements VideoDecoderBackend {
+    private static final String TAG = "MediaCodecBackend";
+
+    // Frames ignored before measurement, because codecs are slow just after start.
+    private static final int MEASURE_SKIP_FRAMES = 30;
+    private static final int MEASURE_FRAMES = 120;
+    // Tuning level is treated as failed if codec outputs nothing after this number of frames.
+    private static final int NO_OUTPUT_LIMIT = 300;
+    // Max wait for callbacks posted before flush(). Callback thread only dispatches to DecoderThread, so this is
+    // exceeded only if it is hung. Old indices may be delivered after start() then, but DecoderThread doesn't hang.
+    private static final long FLUSH_WAIT_MS = 200;
+
+    private final Surface mSurface;
+    private final DecoderTuner mTuner;
+    private MediaCodec mDecoder;
+    // Created but not configured decoders for each mime type. Reused on codec change.
+    private final Map<String, MediaCodec> mIdleDecoders = new HashMap<>();
+    // Thread which receives MediaCodec callbacks on all API levels. Never main thread, because main thread may be
+    // blocked while DecoderThread waits callbacks (e.g. in flush()).
+    private HandlerThread mCallbackThread;
+    private Handler mCallbackHandler;
+    // Callback of current configure(). Deactivated on reset() to ignore late callbacks of old codec.
+    private CodecCallback mCodecCallback;
+    // Callbacks already posted before flush() have invalid indices and are ignored until start().
+    private volatile boolean mFlushing = false;
+
+    private String mCodecName;
+    private String mMimeType;
+    private int mTuningLevel;
+
+    // Decode latency measurement for mTuner.
+    private volatile boolean mMeasuring = false;
+    // presentationTimeUs -> time of queueInputBuffer.
+    private final FrameMap mInputTimes = new FrameMap();
+    // Updated on DecoderThread.
+    private long mInputFrames = 0;
+    // Updated on mCallbackThread.
+    private volatile long mOutputFrames = 0;
+    private long mLatencyTotalNs = 0;
+
+    public MediaCodecBackend(Surface surface, DecoderTuner tuner) {
+        mSurface = surface;
+        mTuner = tuner;
+    }
+
+    @Override
+    public void configure(String mimeType, int width, int height, ByteBuffer csd0, ByteBuffer csd1, int maxInputSize,
+                          Callback callback) throws IOException {
+        mDecoder = mIdleDecoders.remove(mimeType);
+        if (mDecoder == null) {
+            mDecoder = createDecoder(mimeType);
+        }
+        mCodecName = mDecoder.getCodecInfo().getName();
+        mMimeType = mimeType;
+        mTuningLevel = mTuner.selectLevel(mCodecName, mimeType);
+
+        mFlushing = false;
+        while (true) {
+            MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
+            format.setString("KEY_MIME", mimeType);
+
+            format.setByteBuffer("csd-0", csd0);
+            if (csd1 != null) {
+                format.setByteBuffer("csd-1", csd1);
+            }
+            // Default is derived from dummy width and height and often too small for IDR frames.
+            format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, maxInputSize);
+            mTuner.apply(format, mDecoder.getCodecInfo(), mimeType, mTuningLevel);
+
+            mCodecCallback = new CodecCallback(callback);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                mDecoder.setCallback(mCodecCallback, mCallbackHandler);
+            } else {
+                // Called on looper of thread which created codec, which is mCallbackThread (see createDecoder()).
+                mDecoder.setCallback(mCodecCallback);
+            }
+            try {
+                mDecoder.configure(format, mSurface, null, 0);
+                break;
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                // Some codecs reject unknown keys. Retry with lower level on new instance.
+                Utils.loge(TAG, () -> "configure failed: " + e.getMessage());
+                mTuner.onFailed(mCodecName, mimeType, mTuningLevel);
+                mTuningLevel = mTuner.getFallbackLevel(mCodecName, mTuningLevel);
+                if (mTuningLevel < 0) {
+                    throw e;
+                }
+                mDecoder.release();
+                mDecoder = createDecoder(mimeType);
+            }
+        }
+        mDecoder.setVideoScalingMode(MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT);
+        mDecoder.start();
+
+        Utils.logi(TAG, () -> "Codec configured. Name=" + mCodecName + " TuningLevel=" + mTuningLevel);
+
+        mInputFrames = 0;
+        mOutputFrames = 0;
+        mLatencyTotalNs = 0;
+        mMeasuring = true;
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mDecoder.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int size, long presentationTimeUs, int flags) {
+        if (mMeasuring && (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            mInputTimes.put(presentationTimeUs, System.nanoTime());
+            mInputFrames++;
+            if (mInputFrames >= NO_OUTPUT_LIMIT && mOutputFrames == 0) {
+                mMeasuring = false;
+                mTuner.onFailed(mCodecName, mMimeType, mTuningLevel);
+            }
+        }
+        mDecoder.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mDecoder.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void onFrameInput(long frameIndex) {
+        LatencyCollector.DecoderInput(frameIndex);
+    }
+
+    @Override
+    public void onFrameOutput(long frameIndex) {
+        LatencyCollector.DecoderOutput(frameIndex);
+    }
+
+    @Override
+    public String getName() {
+        return mDecoder.getCodecInfo().getName();
+    }
+
+    @Override
+    public void flush() {
+        mFlushing = true;
+        mDecoder.flush();
+        if (Looper.myLooper() == mCallbackThread.getLooper()) {
+            // Callbacks posted before flush run after this returns, and are ignored by mFlushing.
+            return;
+        }
+        // Codec posts no callback until start(). Wait until callbacks posted before flush are consumed,
+        // so that no old index is delivered after start().
+        CountDownLatch latch = new CountDownLatch(1);
+        mCallbackHandler.post(latch::countDown);
+        try {
+            if (!latch.await(FLUSH_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                Utils.loge(TAG, () -> "Callback thread didn't respond in " + FLUSH_WAIT_MS + " ms on flush.");
+            }
+        } catch (InterruptedException e) {
+            // DecoderThread is being stopped. Decoder is released soon, so old callbacks don't matter.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void start() {
+        mFlushing = false;
+        // Async mode requires start() after flush().
+        mDecoder.start();
+    }
+
+    @Override
+    public void prewarm(String mimeType) {
+        if (mIdleDecoders.containsKey(mimeType) || mimeType.equals(mMimeType) && mDecoder != null) {
+            return;
+        }
+        try {
+            mIdleDecoders.put(mimeType, createDecoder(mimeType));
+            Utils.logi(TAG, () -> "Prewarmed decoder. Type=" + mimeType);
+        } catch (IOException | IllegalArgumentException e) {
+            // Device may not have decoder for mimeType. Not fatal.
+            Utils.loge(TAG, () -> "Failed to prewarm decoder. Type=" + mimeType + " " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void reset() {
+        mMeasuring = false;
+        if (mDecoder == null) {
+            return;
+        }
+        mCodecCallback.deactivate();
+        try {
+            // Back to uninitialized state. Component stays allocated, so next configure() skips creation.
+            mDecoder.reset();
+            mIdleDecoders.put(mMimeType, mDecoder);
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+            mDecoder.release();
+        }
+        mDecoder = null;
+    }
+
+    @Override
+    public void release() {
+        mMeasuring = false;
+        if (mDecoder != null) {
+            mCodecCallback.deactivate();
+            try {
+                mDecoder.stop();
+                mDecoder.release();
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+            }
+            mDecoder = null;
+        }
+        for (MediaCodec decoder : mIdleDecoders.values()) {
+            decoder.release();
+        }
+        mIdleDecoders.clear();
+        if (mCallbackThread != null) {
+            mCallbackThread.quitSafely();
+            mCallbackThread = null;
+        }
+    }
+
+    // Creates codec on mCallbackThread. Before API 23, setCallback() has no Handler argument and callbacks are
+    // delivered on looper of thread which created codec (main looper if that thread has none).
+    private MediaCodec createDecoder(String mimeType) throws IOException {
+        if (mCallbackThread == null) {
+            mCallbackThread = new HandlerThread("DecoderCallback");
+            mCallbackThread.start();
+            mCallbackHandler = new Handler(mCallbackThread.getLooper());
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return MediaCodec.createDecoderByType(mimeType);
+        }
+        MediaCodec[] decoder = new MediaCodec[1];
+        IOException[] error = new IOException[1];
+        CountDownLatch latch = new CountDownLatch(1);
+        mCallbackHandler.post(() -> {
+            try {
+                decoder[0] = MediaCodec.createDecoderByType(mimeType);
+            } catch (IOException e) {
+                error[0] = e;
+            } catch (IllegalArgumentException e) {
+                error[0] = new IOException(e);
+            }
+            latch.countDown();
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while creating decoder. Type=" + mimeType);
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return decoder[0];
+    }
+
+    // Called from mCallbackThread.
+    private void measure(long presentationTimeUs) {
+        long inputTime = mInputTimes.find(presentationTimeUs);
+        if (inputTime < 0) {
+            return;
+        }
+        long outputFrames = mOutputFrames + 1;
+        mOutputFrames = outputFrames;
+        if (outputFrames <= MEASURE_SKIP_FRAMES) {
+            return;
+        }
+        mLatencyTotalNs += System.nanoTime() - inputTime;
+        if (outputFrames == MEASURE_SKIP_FRAMES + MEASURE_FRAMES) {
+            mMeasuring = false;
+            mTuner.onMeasured(mCodecName, mMimeType, mTuningLevel, mLatencyTotalNs / MEASURE_FRAMES);
+        }
+    }
+
+    // Called from mCallbackThread.
+    private class CodecCallback extends MediaCodec.Callback {
+        private final Callback mCallback;
+        // Guarded by this. Callbacks hold the lock while dispatching, so no callback is running
+        // once deactivate() returns.
+        private boolean mActive = true;
+
+        CodecCallback(Callback callback) {
+            mCallback = callback;
+        }
+
+        synchronized void deactivate() {
+            mActive = false;
+        }
+
+        @Override
+        synchronized public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            if (!mActive || mFlushing) {
+                return;
+            }
+            mCallback.onInputBufferAvailable(index);
+        }
+
+        @Override
+        synchronized public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            if (!mActive || mFlushing) {
+                return;
+            }
+            if (mMeasuring) {
+                measure(info.presentationTimeUs);
+            }
+            mCallback.onOutputBufferAvailable(index, info.presentationTimeUs);
+        }
+
+        @Override
+        synchronized public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            if (!mActive || mFlushing) {
+                return;
+            }
+            mCallback.onError(e.getMessage() + "\n" + e.getDiagnosticInfo());
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            Utils.logi(TAG, () -> "New format " + codec.getOutputFormat());
+        }
+    }
+}
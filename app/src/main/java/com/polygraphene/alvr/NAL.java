@@ -1,8 +1,28 @@
 package com.polygraphene.alvr;
 
+import java.nio.ByteBuffer;
+
 public class NAL {
     public int length;
     public long frameIndex;
+    // Either buf or directBuf holds the payload.
+    // directBuf is written by native code through GetDirectBufferAddress and avoids array pinning/copy.
     public byte[] buf;
+    public ByteBuffer directBuf;
     public int type;
+    // System.nanoTime() when NAL was pushed to decoder.
+    public long availableTime;
+
+    // Buffer owned by NalBufferPool. Backs directBuf or buf.
+    ByteBuffer pooledBuffer;
+    // Bytes of buf already fed to decoder while NAL is split into several input buffers.
+    // directBuf tracks it by position instead.
+    int offset;
+
+    public byte get(int index) {
+        if (directBuf != null) {
+            return directBuf.get(index);
+        }
+        return buf[index];
+    }
 }
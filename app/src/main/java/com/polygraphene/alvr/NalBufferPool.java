@@ -0,0 +1,173 @@
+package com.polygraphene.alvr;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Size-classed pool of NAL buffers.
+// Buffers are allocated lazily, total bytes are capped, and free buffers of a size class
+// that has not been used for a while are dropped so that GC can reclaim them.
+// acquire() must be called from single thread (producer) and release() from single thread (consumer).
+class NalBufferPool {
+    // (VPS + )SPS + PPS
+    private static final int CLASS_CONFIG = 0;
+    // P-Frame
+    private static final int CLASS_FRAME = 1;
+    // IDR-Frame or large P-Frame. One class for each power of two from 2^LARGE_MIN_BITS to 2^LARGE_MAX_BITS,
+    // so that any free buffer of a class fits any request of the class and is never thrown away as too small.
+    private static final int CLASS_LARGE = 2;
+    // 256 KB
+    private static final int LARGE_MIN_BITS = 18;
+    // 16 MB
+    private static final int LARGE_MAX_BITS = 24;
+    private static final int CLASS_COUNT = CLASS_LARGE + LARGE_MAX_BITS - LARGE_MIN_BITS + 1;
+    // Larger than any class. Allocated to request size and not pooled.
+    private static final int CLASS_NONE = -1;
+
+    private static final int CONFIG_BUFFER_SIZE = 1024;
+    private static final int FRAME_BUFFER_SIZE = 128 * 1024;
+
+    // Must be power of two. No more buffers than NalQueue slots can be in use.
+    private static final int FREE_LIST_SIZE = 128;
+
+    private final boolean mDirect;
+    private final long mMaxBytes;
+    private final long mIdleTimeoutNs;
+
+    private final FreeList[] mFreeLists = new FreeList[CLASS_COUNT];
+    // Last acquire time of each size class. Accessed only by producer.
+    private final long[] mLastUsed = new long[CLASS_COUNT];
+
+    // Bytes of all buffers owned by the pool, either free or in use.
+    private final AtomicLong mAllocatedBytes = new AtomicLong();
+
+    NalBufferPool(boolean direct, long maxBytes, long idleTimeoutNs) {
+        mDirect = direct;
+        mMaxBytes = maxBytes;
+        mIdleTimeoutNs = idleTimeoutNs;
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            mFreeLists[i] = new FreeList();
+        }
+    }
+
+    // Called from producer. Returns null when memory cap is exceeded.
+    public ByteBuffer acquire(int length) {
+        long now = System.nanoTime();
+        trimIdle(now);
+
+        int sizeClass = getSizeClass(length);
+        if (sizeClass == CLASS_NONE) {
+            return allocate(length);
+        }
+        mLastUsed[sizeClass] = now;
+
+        ByteBuffer buffer = mFreeLists[sizeClass].poll();
+        if (buffer == null) {
+            buffer = allocate(getBufferSize(sizeClass));
+        }
+        return buffer;
+    }
+
+    // Called from consumer.
+    public void release(ByteBuffer buffer) {
+        // Buffer sizes are exact class sizes, so buffer goes back to the class it was taken from.
+        int sizeClass = getSizeClass(buffer.capacity());
+        if (sizeClass == CLASS_NONE || !mFreeLists[sizeClass].offer(buffer)) {
+            discard(buffer);
+        }
+    }
+
+    // Forget buffer which is not returned to pool. Thread safe.
+    public void discard(ByteBuffer buffer) {
+        mAllocatedBytes.addAndGet(-buffer.capacity());
+    }
+
+    public long getAllocatedBytes() {
+        return mAllocatedBytes.get();
+    }
+
+    private ByteBuffer allocate(int size) {
+        if (mAllocatedBytes.get() + size > mMaxBytes) {
+            // Free buffers of all classes are unused, so drop them before giving up.
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                drain(i);
+            }
+            if (mAllocatedBytes.get() + size > mMaxBytes) {
+                Utils.log(() -> "NalBufferPool: Memory cap exceeded. Allocated=" + mAllocatedBytes.get()
+                        + " Requested=" + size + " Cap=" + mMaxBytes);
+                return null;
+            }
+        }
+        mAllocatedBytes.addAndGet(size);
+        ByteBuffer buffer = mDirect ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        // Native order makes word reads of AnnexBParser cheaper.
+        return buffer.order(ByteOrder.nativeOrder());
+    }
+
+    private void trimIdle(long now) {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            if (mLastUsed[i] != 0 && now - mLastUsed[i] > mIdleTimeoutNs) {
+                drain(i);
+            }
+        }
+    }
+
+    private void drain(int sizeClass) {
+        ByteBuffer buffer;
+        while ((buffer = mFreeLists[sizeClass].poll()) != null) {
+            discard(buffer);
+        }
+    }
+
+    private static int getSizeClass(int length) {
+        if (length <= CONFIG_BUFFER_SIZE) {
+            return CLASS_CONFIG;
+        } else if (length <= FRAME_BUFFER_SIZE) {
+            return CLASS_FRAME;
+        } else if (length > 1 << LARGE_MAX_BITS) {
+            return CLASS_NONE;
+        }
+        // Smallest power of two which is not less than length.
+        int bits = Math.max(LARGE_MIN_BITS, 32 - Integer.numberOfLeadingZeros(length - 1));
+        return CLASS_LARGE + bits - LARGE_MIN_BITS;
+    }
+
+    private static int getBufferSize(int sizeClass) {
+        switch (sizeClass) {
+            case CLASS_CONFIG:
+                return CONFIG_BUFFER_SIZE;
+            case CLASS_FRAME:
+                return FRAME_BUFFER_SIZE;
+            default:
+                return 1 << (LARGE_MIN_BITS + sizeClass - CLASS_LARGE);
+        }
+    }
+
+    // Single-producer (consumer of NalQueue) / single-consumer (producer of NalQueue) free list.
+    private static class FreeList {
+        private final ByteBuffer[] mBuffers = new ByteBuffer[FREE_LIST_SIZE];
+        private final SpscIndices mIndices = new SpscIndices(FREE_LIST_SIZE);
+
+        boolean offer(ByteBuffer buffer) {
+            long tail = mIndices.claim();
+            if (tail < 0) {
+                return false;
+            }
+            mBuffers[(int) tail & (FREE_LIST_SIZE - 1)] = buffer;
+            mIndices.publish(tail);
+            return true;
+        }
+
+        ByteBuffer poll() {
+            long head = mIndices.peek();
+            if (head < 0) {
+                return null;
+            }
+            int index = (int) head & (FREE_LIST_SIZE - 1);
+            ByteBuffer buffer = mBuffers[index];
+            mBuffers[index] = null;
+            mIndices.release(head + 1);
+            return buffer;
+        }
+    }
+}
@@ -1,53 +1,137 @@
 package com.polygraphene.alvr;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
 
+// Lock-free single-producer/single-consumer ring of NAL slots.
+// Producer (UdpReceiverThread via native NALParser): obtain() -> add()
+// Consumer (DecoderThread): peek() -> remove()
+// Payload buffers are taken from NalBufferPool on obtain() and returned on remove(), so no allocation
+// happens once the pool is warmed up.
+// With useDirectBuffer, payload is direct ByteBuffer (NAL.directBuf) instead of byte[] (NAL.buf).
 public class NalQueue {
-    private Queue<NAL> mUnusedList = new LinkedList<>();
-    private Queue<NAL> mNalQueue = new LinkedList<>();
-    private static final int SIZE = 100;
-    private static final int DEFAULT_BUFFER_SIZE = 100 * 1000;
+    // Must be power of two.
+    private static final int SIZE = 128;
+    private static final long DEFAULT_MAX_BUFFER_BYTES = 16 * 1024 * 1024;
+    private static final long BUFFER_IDLE_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(5);
+
+    private final NAL[] mSlots = new NAL[SIZE];
+    private static final int MASK = SIZE - 1;
+
+    private final SpscIndices mIndices = new SpscIndices(SIZE);
+
+    // Incremented when obtain() fails. Written only by producer.
+    private volatile long mOverflowCount = 0;
+
+    private final boolean mUseDirectBuffer;
+    private final NalBufferPool mPool;
 
     NalQueue() {
+        this(false, DEFAULT_MAX_BUFFER_BYTES);
+    }
+
+    NalQueue(boolean useDirectBuffer, long maxBufferBytes) {
+        mUseDirectBuffer = useDirectBuffer;
+        mPool = new NalBufferPool(useDirectBuffer, maxBufferBytes, BUFFER_IDLE_TIMEOUT_NS);
         for (int i = 0; i < SIZE; i++) {
-            NAL nal = new NAL();
-            nal.buf = new byte[DEFAULT_BUFFER_SIZE];
-            mUnusedList.add(nal);
+            mSlots[i] = new NAL();
         }
     }
 
-    synchronized public NAL obtain(int length) {
-        NAL nal = mUnusedList.poll();
-        if (nal == null) {
+    // Called from producer. Returned NAL must be passed to add() before next obtain().
+    // Returns null when queue is full or buffer memory cap is exceeded.
+    public NAL obtain(int length) {
+        long tail = mIndices.claim();
+        if (tail < 0) {
+            mOverflowCount++;
             return null;
         }
-        if (nal.buf.length < length) {
-            nal.buf = new byte[length];
+        NAL nal = mSlots[(int) tail & MASK];
+        if (nal.pooledBuffer != null) {
+            // Previous obtain() was not followed by add().
+            mPool.discard(nal.pooledBuffer);
+            nal.pooledBuffer = null;
+        }
+        ByteBuffer buffer = mPool.acquire(length);
+        if (buffer == null) {
+            mOverflowCount++;
+            return null;
+        }
+        nal.pooledBuffer = buffer;
+        if (mUseDirectBuffer) {
+            // Consumer reads from position to limit.
+            buffer.clear();
+            buffer.limit(length);
+            nal.directBuf = buffer;
+            nal.buf = null;
+        } else {
+            nal.buf = buffer.array();
+            nal.directBuf = null;
         }
         nal.length = length;
+        nal.offset = 0;
         return nal;
     }
 
-    synchronized public void add(NAL nal) {
-        mNalQueue.add(nal);
+    // Called from producer.
+    public void add(NAL nal) {
+        long tail = mIndices.getTail();
+        mSlots[(int) tail & MASK] = nal;
+        // Publishes NAL contents to consumer.
+        mIndices.publish(tail);
+    }
+
+    // Called from consumer.
+    public NAL peek() {
+        long head = mIndices.peek();
+        if (head < 0) {
+            return null;
+        }
+        return mSlots[(int) head & MASK];
+    }
+
+    // Called from consumer.
+    public void remove() {
+        long head = mIndices.peek();
+        if (head < 0) {
+            throw new NoSuchElementException();
+        }
+        // Buffer must be released before the slot is handed back to producer.
+        releaseBuffer(mSlots[(int) head & MASK]);
+        mIndices.release(head + 1);
     }
 
-    synchronized public NAL peek() {
-        return mNalQueue.peek();
+    // Called from consumer.
+    public void clear() {
+        long tail = mIndices.getTail();
+        for (long i = mIndices.getHead(); i < tail; i++) {
+            releaseBuffer(mSlots[(int) i & MASK]);
+        }
+        mIndices.release(tail);
     }
 
-    synchronized public void remove() {
-        NAL nal = mNalQueue.remove();
-        mUnusedList.add(nal);
+    // Consumer compares this with previously seen value to detect overflow without lock.
+    public long getOverflowCount() {
+        return mOverflowCount;
     }
 
-    synchronized public void clear() {
-        mUnusedList.addAll(mNalQueue);
-        mNalQueue.clear();
+    public long getBufferBytes() {
+        return mPool.getAllocatedBytes();
+    }
+
+    private void releaseBuffer(NAL nal) {
+        if (nal.pooledBuffer == null) {
+            // NAL was not obtained from this queue.
+            return;
+        }
+        mPool.release(nal.pooledBuffer);
+        nal.pooledBuffer = null;
+        nal.directBuf = null;
+        nal.buf = null;
     }
 
-    synchronized public int size() {
-        return mNalQueue.size();
+    public int size() {
+        return (int) (mIndices.getTail() - mIndices.getHead());
     }
 }
@@ -0,0 +1,216 @@
+package com.polygraphene.alvr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Appends every NAL pushed by UdpReceiverThread to memory-mapped log for offline replay (NalReplaySource).
+// A log consists of two files.
+//   <name>.nal: Concatenated NAL payloads.
+//   <name>.idx: Header and fixed-size entry per NAL (data offset, frameIndex, receive time, length).
+// Entry count in header is updated after each append, so log is readable even if app was killed.
+// append() must be called from single thread.
+public class NalRecorder {
+    private static final String TAG = "NalRecorder";
+
+    static final long MAGIC = 0x414c56524e414c31L; // "ALVRNAL1"
+    static final int VERSION = 1;
+
+    // magic(8) version(4) codec(4) count(8) reserved(8)
+    static final int HEADER_SIZE = 32;
+    static final int HEADER_COUNT_OFFSET = 16;
+    // dataOffset(8) frameIndex(8) receiveTimeNs(8) length(4) reserved(4)
+    static final int ENTRY_SIZE = 32;
+
+    static final String DATA_SUFFIX = ".nal";
+    static final String INDEX_SUFFIX = ".idx";
+
+    // Files are mapped and grown by these windows.
+    static final int DATA_WINDOW_SIZE = 16 * 1024 * 1024;
+    private static final int INDEX_WINDOW_SIZE = 64 * 1024 * ENTRY_SIZE;
+
+    private final RandomAccessFile mDataFile;
+    private final RandomAccessFile mIndexFile;
+    private final MappedByteBuffer mHeader;
+
+    private MappedByteBuffer mDataWindow;
+    private long mDataWindowOffset = 0;
+    private MappedByteBuffer mIndexWindow;
+    private long mIndexWindowOffset = HEADER_SIZE;
+
+    private long mDataSize = 0;
+    private long mCount = 0;
+    private boolean mClosed = false;
+
+    // Creates <dir>/<name>.nal and <dir>/<name>.idx. Existing files are overwritten.
+    public NalRecorder(File dir, String name, int codec) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create directory: " + dir);
+        }
+        mDataFile = new RandomAccessFile(new File(dir, name + DATA_SUFFIX), "rw");
+        mIndexFile = new RandomAccessFile(new File(dir, name + INDEX_SUFFIX), "rw");
+        mDataFile.setLength(0);
+        mIndexFile.setLength(0);
+
+        mHeader = mIndexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        mHeader.order(ByteOrder.LITTLE_ENDIAN);
+        mHeader.putLong(0, MAGIC);
+        mHeader.putInt(8, VERSION);
+        mHeader.putInt(12, codec);
+        mHeader.putLong(HEADER_COUNT_OFFSET, 0);
+
+        mDataWindow = mapData(0, DATA_WINDOW_SIZE);
+        mIndexWindow = mapIndex(HEADER_SIZE);
+        Utils.logi(TAG, () -> "Recording NAL to " + new File(dir, name).getAbsolutePath());
+    }
+
+    public void append(NAL nal, long receiveTimeNs) throws IOException {
+        if (mClosed) {
+            return;
+        }
+        int length = nal.length;
+        if (mDataWindow.remaining() < length) {
+            mDataWindowOffset = mDataSize;
+            mDataWindow = mapData(mDataWindowOffset, Math.max(DATA_WINDOW_SIZE, length));
+        }
+        if (nal.directBuf != null) {
+            ByteBuffer src = nal.directBuf;
+            int position = src.position();
+            int limit = src.limit();
+            src.limit(position + length);
+            mDataWindow.put(src);
+            src.limit(limit).position(position);
+        } else {
+            mDataWindow.put(nal.buf, 0, length);
+        }
+
+        if (!mIndexWindow.hasRemaining()) {
+            mIndexWindowOffset += INDEX_WINDOW_SIZE;
+            mIndexWindow = mapIndex(mIndexWindowOffset);
+        }
+        mIndexWindow.putLong(mDataSize);
+        mIndexWindow.putLong(nal.frameIndex);
+        mIndexWindow.putLong(receiveTimeNs);
+        mIndexWindow.putInt(length);
+        mIndexWindow.putInt(0);
+
+        mDataSize += length;
+        mCount++;
+        // Publish entry.
+        mHeader.putLong(HEADER_COUNT_OFFSET, mCount);
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            // Drop unused part of last windows.
+            mDataFile.setLength(mDataSize);
+            mIndexFile.setLength(HEADER_SIZE + mCount * ENTRY_SIZE);
+            mDataFile.close();
+            mIndexFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Utils.logi(TAG, () -> "Recording finished. NALs=" + mCount + " Bytes=" + mDataSize);
+    }
+
+    private MappedByteBuffer mapData(long offset, int size) throws IOException {
+        return mDataFile.getChannel().map(FileChannel.MapMode.READ_WRITE, offset, size);
+    }
+
+    private MappedByteBuffer mapIndex(long offset) throws IOException {
+        MappedByteBuffer buffer = mIndexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, offset, INDEX_WINDOW_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    // Random access to recorded log.
+    public static class Reader {
+        private final RandomAccessFile mDataFile;
+        private final long mDataFileSize;
+        private final ByteBuffer mIndex;
+        private final int mCodec;
+        private final int mCount;
+
+        private MappedByteBuffer mDataWindow;
+        private long mDataWindowOffset = -1;
+
+        public Reader(File dir, String name) throws IOException {
+            try (RandomAccessFile indexFile = new RandomAccessFile(new File(dir, name + INDEX_SUFFIX), "r")) {
+                mIndex = indexFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, indexFile.length());
+            }
+            mIndex.order(ByteOrder.LITTLE_ENDIAN);
+            if (mIndex.capacity() < HEADER_SIZE || mIndex.getLong(0) != MAGIC || mIndex.getInt(8) != VERSION) {
+                throw new IOException("Invalid NAL log: " + name);
+            }
+            mCodec = mIndex.getInt(12);
+            // Index file may be longer than entries if recorder was not closed.
+            mCount = (int) Math.min(mIndex.getLong(HEADER_COUNT_OFFSET), (mIndex.capacity() - HEADER_SIZE) / ENTRY_SIZE);
+
+            mDataFile = new RandomAccessFile(new File(dir, name + DATA_SUFFIX), "r");
+            mDataFileSize = mDataFile.length();
+        }
+
+        public int getCodec() {
+            return mCodec;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public long getFrameIndex(int i) {
+            return mIndex.getLong(HEADER_SIZE + i * ENTRY_SIZE + 8);
+        }
+
+        public long getReceiveTime(int i) {
+            return mIndex.getLong(HEADER_SIZE + i * ENTRY_SIZE + 16);
+        }
+
+        public int getLength(int i) {
+            return mIndex.getInt(HEADER_SIZE + i * ENTRY_SIZE + 24);
+        }
+
+        // Copy payload of i-th NAL into nal (buf or directBuf). nal.length must be getLength(i).
+        public void read(int i, NAL nal) throws IOException {
+            long offset = mIndex.getLong(HEADER_SIZE + i * ENTRY_SIZE);
+            int length = getLength(i);
+            if (mDataWindowOffset < 0 || offset < mDataWindowOffset
+                    || offset + length > mDataWindowOffset + mDataWindow.capacity()) {
+                mDataWindowOffset = offset;
+                long size = Math.min(Math.max(DATA_WINDOW_SIZE, length), mDataFileSize - offset);
+                mDataWindow = mDataFile.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, size);
+            }
+            int position = (int) (offset - mDataWindowOffset);
+            mDataWindow.limit(position + length).position(position);
+            if (nal.directBuf != null) {
+                // Consumer reads from position 0 like native NALParser writes.
+                nal.directBuf.clear();
+                nal.directBuf.put(mDataWindow);
+                nal.directBuf.flip();
+            } else {
+                mDataWindow.get(nal.buf, 0, length);
+            }
+            mDataWindow.clear();
+        }
+
+        public void close() {
+            try {
+                mDataFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
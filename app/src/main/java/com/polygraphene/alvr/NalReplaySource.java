@@ -0,0 +1,112 @@
+package com.polygraphene.alvr;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+// Feeds NAL log recorded by NalRecorder into DecoderThread like UdpReceiverThread does.
+// Either keeps original timing of reception or pushes as fast as decoder consumes.
+public class NalReplaySource extends ThreadBase {
+    private static final String TAG = "NalReplaySource";
+
+    // On maximum speed, keep at most this many NALs waiting in decoder, so that NAL queue never
+    // overflows (which makes decoder drop frames until next IDR).
+    private static final int MAX_PENDING_NALS = 8;
+    private static final long RETRY_INTERVAL_NS = 500 * 1000;
+
+    public interface Callback {
+        // Called on replay thread after each pass over the log.
+        void onReplayFinished(int loop, int pushedNals, long elapsedNs);
+    }
+
+    private final NalRecorder.Reader mReader;
+    private final DecoderThread mDecoderThread;
+    private final Callback mCallback;
+    private final boolean mOriginalSpeed;
+    private final boolean mLoop;
+
+    public NalReplaySource(File dir, String name, DecoderThread decoderThread, Callback callback,
+                           boolean originalSpeed, boolean loop) throws IOException {
+        mReader = new NalRecorder.Reader(dir, name);
+        mDecoderThread = decoderThread;
+        mCallback = callback;
+        mOriginalSpeed = originalSpeed;
+        mLoop = loop;
+    }
+
+    public int getCodec() {
+        return mReader.getCodec();
+    }
+
+    public void start() {
+        super.startBase();
+    }
+
+    @Override
+    protected void run() {
+        try {
+            // Frame indices keep increasing across loops, like a continued stream.
+            long frameIndexOffset = 0;
+            int loop = 0;
+            do {
+                long start = System.nanoTime();
+                int pushed = replay(frameIndexOffset);
+                long elapsed = System.nanoTime() - start;
+                if (isStopped()) {
+                    break;
+                }
+                int finalLoop = loop;
+                Utils.logi(TAG, () -> "Replay finished. Loop=" + finalLoop + " NALs=" + pushed
+                        + " Elapsed=" + elapsed / 1000 / 1000 + " ms");
+                if (mCallback != null) {
+                    mCallback.onReplayFinished(loop, pushed, elapsed);
+                }
+                int count = mReader.getCount();
+                if (count > 0) {
+                    frameIndexOffset += mReader.getFrameIndex(count - 1) - mReader.getFrameIndex(0) + 1;
+                }
+                loop++;
+            } while (mLoop && !isStopped());
+        } catch (IOException e) {
+            e.printStackTrace();
+            Utils.loge(TAG, () -> "Replay failed: " + e.getMessage());
+        } finally {
+            mReader.close();
+        }
+    }
+
+    private int replay(long frameIndexOffset) throws IOException {
+        int count = mReader.getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long firstReceiveTime = mReader.getReceiveTime(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if (mOriginalSpeed) {
+                long wait = start + (mReader.getReceiveTime(i) - firstReceiveTime) - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else {
+                while (mDecoderThread.getPendingNALCount() >= MAX_PENDING_NALS && !isStopped()) {
+                    LockSupport.parkNanos(RETRY_INTERVAL_NS);
+                }
+            }
+            if (isStopped()) {
+                return i;
+            }
+            int length = mReader.getLength(i);
+            NAL nal = mDecoderThread.obtainNAL(length);
+            if (nal == null) {
+                // Decoder handles this as overflow like on network stream.
+                continue;
+            }
+            nal.length = length;
+            nal.frameIndex = mReader.getFrameIndex(i) + frameIndexOffset;
+            mReader.read(i, nal);
+            mDecoderThread.pushNAL(nal);
+        }
+        return count;
+    }
+}
@@ -1,29 +1,68 @@
 package com.polygraphene.alvr;
 
 import android.graphics.SurfaceTexture;
-import android.media.MediaCodec;
-import android.support.annotation.NonNull;
-import android.util.Log;
-
-import java.util.LinkedList;
-import java.util.Queue;
 
+// Queue of decoded output buffers waiting to be rendered to the SurfaceTexture.
+// Backed by fixed arrays so that no allocation happens per frame. Depth can be changed at runtime
+// by frameQueueSize in ConnectionMessage / ChangeSettings.
+// Frames are rendered in decoded order and oldest frame is discarded when queue is full.
+// Render thread can skip to newer frames by StaleFramePolicy.
 public class OutputFrameQueue {
     private static final String TAG = "OutputFrameQueue";
 
-    private boolean mStopped = false;
+    // Upper limit of frameQueueSize. Codecs don't have so many output buffers anyway.
+    public static final int MAX_QUEUE_SIZE = 16;
+
+    // Whether render thread skips frames which waited too long. See discardStaleFrames().
+    public enum StaleFramePolicy {
+        // Render every frame even if it is late.
+        NEVER,
+        // Always skip to newest decoded frame.
+        NEWEST,
+        // Skip frames older than max age if newer frame is decoded. Age is from tracking timestamp of the frame.
+        MAX_AGE
+    }
 
-    private class Element {
-        public int index;
-        public long frameIndex;
+    public interface FrameAgeSource {
+        // Returns time since tracking info of frameIndex was sent in ns, or -1 if unknown.
+        long getFrameAgeNs(long frameIndex);
     }
 
-    private Queue<Element> mQueue = new LinkedList<>();
-    private Queue<Element> mUnusedList = new LinkedList<>();
-    private MediaCodec mCodec;
+    private boolean mStopped = false;
+
+    // Ring of decoded frames. mHead is oldest.
+    private final int[] mIndices = new int[MAX_QUEUE_SIZE];
+    private final long[] mFrameIndices = new long[MAX_QUEUE_SIZE];
+    private int mHead = 0;
+    private int mCount = 0;
+
+    private VideoDecoderBackend mCodec;
+    // Only used when mFrameIndexPts is false.
     private FrameMap mFrameMap = new FrameMap();
-    private final int mQueueSize = 1;
-    private Element mSurface = new Element();
+
+    // presentationTimeUs is derived from frameIndex and mapped back by arithmetic, instead of
+    // System.nanoTime() based time looked up in mFrameMap.
+    private final boolean mFrameIndexPts;
+    // Step of presentationTimeUs per frame. Codecs may round timestamps, so mapping back is rounded.
+    private static final long PTS_PER_FRAME_US = 1000;
+
+    // Time of queueInputBuffer for recent frames, indexed by frameIndex.
+    // Written by DecoderThread and read by codec callback thread. Only for statistics.
+    private static final int INPUT_TIME_SLOTS = 64;
+    private final long[] mInputFrameIndices = new long[INPUT_TIME_SLOTS];
+    private final long[] mInputTimes = new long[INPUT_TIME_SLOTS];
+
+    private final DecoderStatistics mStatistics;
+
+    private int mQueueSize = 1;
+
+    private StaleFramePolicy mStaleFramePolicy = StaleFramePolicy.NEVER;
+    private long mMaxFrameAgeNs = 0;
+    private FrameAgeSource mFrameAgeSource;
+
+    // Output buffer which is being rendered or available on surface.
+    private int mSurfaceIndex;
+    private long mSurfaceFrameIndex;
 
     private enum SurfaceState {
         Idle, Rendering, Available
@@ -31,27 +70,76 @@ public class OutputFrameQueue {
 
     SurfaceState mState = SurfaceState.Idle;
 
-    OutputFrameQueue() {
-        for (int i = 0; i < mQueueSize; i++) {
-            mUnusedList.add(new Element());
+    OutputFrameQueue(boolean frameIndexPts, DecoderStatistics statistics) {
+        mFrameIndexPts = frameIndexPts;
+        mStatistics = statistics;
+    }
+
+    public void setBackend(VideoDecoderBackend backend) {
+        mCodec = backend;
+    }
+
+    synchronized public void setStaleFramePolicy(StaleFramePolicy policy, long maxFrameAgeNs, FrameAgeSource source) {
+        Utils.logi(TAG, () -> "setStaleFramePolicy: Policy=" + policy + " MaxFrameAge=" + maxFrameAgeNs / 1000 + " us");
+        mStaleFramePolicy = policy;
+        mMaxFrameAgeNs = maxFrameAgeNs;
+        mFrameAgeSource = source;
+    }
+
+    synchronized public void setQueueSize(int queueSize) {
+        int size = Math.max(1, Math.min(queueSize, MAX_QUEUE_SIZE));
+        if (size == mQueueSize) {
+            return;
         }
+        Utils.logi(TAG, () -> "setQueueSize: QueueSize=" + size + " (requested " + queueSize + ")");
+        mQueueSize = size;
+
+        // Drop oldest frames which don't fit into new depth.
+        while (mCount > mQueueSize) {
+            releaseHead(false);
+        }
+    }
+
+    synchronized public int getQueueSize() {
+        return mQueueSize;
     }
 
-    public void setCodec(MediaCodec codec) {
-        mCodec = codec;
+    // Called from DecoderThread. Returns presentationTimeUs for the frame.
+    public long getPresentationTime(long frameIndex, long nowNs) {
+        if (mFrameIndexPts) {
+            // Avoid 0 which is used for codec config.
+            return (frameIndex + 1) * PTS_PER_FRAME_US;
+        }
+        return nowNs / 1000;
     }
 
+    // Called from DecoderThread before queueInputBuffer.
     public void pushInputBuffer(long presentationTimeUs, long frameIndex) {
-        mFrameMap.put(presentationTimeUs, frameIndex);
+        if (!mFrameIndexPts) {
+            mFrameMap.put(presentationTimeUs, frameIndex);
+        }
+        int slot = (int) frameIndex & (INPUT_TIME_SLOTS - 1);
+        mInputTimes[slot] = System.nanoTime();
+        mInputFrameIndices[slot] = frameIndex;
     }
 
-    synchronized public void pushOutputBuffer(int index, @NonNull MediaCodec.BufferInfo info) {
+    private long findFrameIndex(long presentationTimeUs) {
+        if (mFrameIndexPts) {
+            if (presentationTimeUs <= 0) {
+                return -1;
+            }
+            return (presentationTimeUs + PTS_PER_FRAME_US / 2) / PTS_PER_FRAME_US - 1;
+        }
+        return mFrameMap.find(presentationTimeUs);
+    }
+
+    synchronized public void pushOutputBuffer(int index, long presentationTimeUs) {
         if (mStopped) {
             Utils.loge(TAG, () -> "Ignore output buffer because queue has been already stopped. index=" + index);
             mCodec.releaseOutputBuffer(index, false);
             return;
         }
-        long foundFrameIndex = mFrameMap.find(info.presentationTimeUs);
+        long foundFrameIndex = findFrameIndex(presentationTimeUs);
 
         if (foundFrameIndex < 0) {
             Utils.loge(TAG, () -> "Ignore output buffer because unknown frameIndex. index=" + index);
@@ -59,19 +147,27 @@ public class OutputFrameQueue {
             return;
         }
 
-        Element elem = mUnusedList.poll();
-        if (elem == null) {
-            Log.e(TAG, "FrameQueue is full. Discard old frame.");
-
-            elem = mQueue.poll();
-            mCodec.releaseOutputBuffer(elem.index, false);
+        if (mCount >= mQueueSize) {
+            Utils.frameLog(mFrameIndices[mHead], () -> "FrameQueue is full. Discard old frame.");
+            releaseHead(false);
         }
-        elem.index = index;
-        elem.frameIndex = foundFrameIndex;
-        mQueue.add(elem);
+        int tail = (mHead + mCount) % MAX_QUEUE_SIZE;
+        mIndices[tail] = index;
+        mFrameIndices[tail] = foundFrameIndex;
+        mCount++;
 
-        LatencyCollector.DecoderOutput(foundFrameIndex);
-        Utils.frameLog(foundFrameIndex, () -> "Current queue state=" + mQueue.size() + "/" + mQueueSize + " pushed index=" + index);
+        mCodec.onFrameOutput(foundFrameIndex);
+        int slot = (int) foundFrameIndex & (INPUT_TIME_SLOTS - 1);
+        if (mInputFrameIndices[slot] == foundFrameIndex) {
+            long decodeLatency = System.nanoTime() - mInputTimes[slot];
+            mStatistics.onFrameDecoded(decodeLatency);
+            if (Utils.sEnableLog) {
+                Utils.frameLog(foundFrameIndex, () -> "Decode latency: " + decodeLatency / 1000 + " us");
+            }
+        }
+        if (Utils.sEnableLog) {
+            Utils.frameLog(foundFrameIndex, () -> "Current queue state=" + mCount + "/" + mQueueSize + " pushed index=" + index);
+        }
 
         render();
     }
@@ -86,19 +182,23 @@ public class OutputFrameQueue {
             Utils.log(TAG, () -> "Conflict with current rendering frame. Defer processing.");
             return -1;
         }
-        Element elem = mQueue.poll();
-        if (elem == null) {
+        if (mCount == 0) {
             return -1;
         }
-        mUnusedList.add(elem);
+        int index = mIndices[mHead];
+        long frameIndex = mFrameIndices[mHead];
+        mHead = (mHead + 1) % MAX_QUEUE_SIZE;
+        mCount--;
 
-        Utils.frameLog(elem.frameIndex, () -> "Calling releaseOutputBuffer(). index=" + elem.index);
+        if (Utils.sEnableLog) {
+            Utils.frameLog(frameIndex, () -> "Calling releaseOutputBuffer(). index=" + index);
+        }
 
         mState = SurfaceState.Rendering;
-        mSurface.index = elem.index;
-        mSurface.frameIndex = elem.frameIndex;
-        mCodec.releaseOutputBuffer(elem.index, true);
-        return elem.frameIndex;
+        mSurfaceIndex = index;
+        mSurfaceFrameIndex = frameIndex;
+        mCodec.releaseOutputBuffer(index, true);
+        return frameIndex;
     }
 
     synchronized public void onFrameAvailable() {
@@ -108,7 +208,7 @@ public class OutputFrameQueue {
         if (mState != SurfaceState.Rendering) {
             return;
         }
-        Utils.frameLog(mSurface.frameIndex, () -> "onFrameAvailable().");
+        Utils.frameLog(mSurfaceFrameIndex, () -> "onFrameAvailable().");
         mState = SurfaceState.Available;
     }
 
@@ -119,10 +219,18 @@ public class OutputFrameQueue {
         if (mState != SurfaceState.Available) {
             return -1;
         }
-        Utils.frameLog(mSurface.frameIndex, () -> "clearAvailable().");
-        long frameIndex = mSurface.frameIndex;
+        Utils.frameLog(mSurfaceFrameIndex, () -> "clearAvailable().");
+        long frameIndex = mSurfaceFrameIndex;
         mState = SurfaceState.Idle;
 
+        if (mFrameAgeSource != null) {
+            long age = mFrameAgeSource.getFrameAgeNs(frameIndex);
+            mStatistics.onFrameRendered(age);
+            if (Utils.sEnableLog) {
+                Utils.frameLog(frameIndex, () -> "Render frame. Age=" + age / 1000 + " us");
+            }
+        }
+
         if (surfaceTexture != null) {
             surfaceTexture.updateTexImage();
         }
@@ -133,35 +241,53 @@ public class OutputFrameQueue {
         return frameIndex;
     }
 
+    // Called from render thread before clearAvailable(). Skips stale frames by StaleFramePolicy, but never the
+    // newest decoded one. Returns true if frame on surface was discarded. Then next frame is released to surface
+    // and onFrameAvailable follows.
     synchronized public boolean discardStaleFrames(SurfaceTexture surfaceTexture) {
-        if (mStopped) {
+        if (mStopped || mStaleFramePolicy == StaleFramePolicy.NEVER) {
             return false;
         }
-        if (mQueue.size() == 0 || mState == SurfaceState.Rendering) {
+        if (mCount == 0 || mState == SurfaceState.Rendering) {
             return false;
         }
+        boolean discarded = false;
         if (mState == SurfaceState.Available) {
+            if (!checkStale(mSurfaceFrameIndex)) {
+                // Queued frames are newer than frame on surface.
+                return false;
+            }
             mState = SurfaceState.Idle;
             if (surfaceTexture != null) {
                 surfaceTexture.updateTexImage();
             }
+            discarded = true;
+        }
+        while (mCount > 1 && checkStale(mFrameIndices[mHead])) {
+            releaseHead(false);
         }
+        render();
+        return discarded;
+    }
 
-        while (true) {
-            if (mQueue.size() > 1) {
-                // Discard because this elem is not latest frame.
-                Element elem = mQueue.poll();
-                Utils.frameLog(elem.frameIndex, () -> "discardStaleFrames: releaseOutputBuffer(false)");
-                mCodec.releaseOutputBuffer(elem.index, false);
-                mUnusedList.add(elem);
-            } else {
-                // Latest frame.
-                Element elem = mQueue.peek();
-                Utils.frameLog(elem.frameIndex, () -> "discardStaleFrames: releaseOutputBuffer(true)");
-                render();
-                return true;
-            }
+    // Decides whether frameIndex is dropped. Caller guarantees newer frame is queued. Decision is recorded with age.
+    private boolean checkStale(long frameIndex) {
+        long age = mFrameAgeSource != null ? mFrameAgeSource.getFrameAgeNs(frameIndex) : -1;
+        boolean stale;
+        if (mStaleFramePolicy == StaleFramePolicy.NEWEST) {
+            stale = true;
+        } else {
+            // Frame of unknown age is kept.
+            stale = age > mMaxFrameAgeNs;
         }
+        if (stale) {
+            mStatistics.onStaleFrameDropped(age);
+        }
+        if (Utils.sEnableLog) {
+            Utils.frameLog(frameIndex, () -> (stale ? "Discard stale frame." : "Keep frame.") + " Age=" + age / 1000
+                    + " us Policy=" + mStaleFramePolicy);
+        }
+        return stale;
     }
 
     synchronized public void stop() {
@@ -170,14 +296,23 @@ public class OutputFrameQueue {
         }
         Utils.logi(TAG, () -> "Stopping.");
         mStopped = true;
-        mUnusedList.addAll(mQueue);
-        mQueue.clear();
+        clear();
     }
 
     synchronized public void reset() {
         Utils.logi(TAG, () -> "Resetting.");
         mStopped = false;
-        mUnusedList.addAll(mQueue);
-        mQueue.clear();
+        clear();
+    }
+
+    private void clear() {
+        mHead = 0;
+        mCount = 0;
+    }
+
+    private void releaseHead(boolean render) {
+        mCodec.releaseOutputBuffer(mIndices[mHead], render);
+        mHead = (mHead + 1) % MAX_QUEUE_SIZE;
+        mCount--;
     }
 }
@@ -0,0 +1,193 @@
+package com.polygraphene.alvr;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when render thread wakes to render a decoded frame.
+ * Wake is scheduled only on frame arrival (onFrameAvailable), at the latest time a render can still finish
+ * before the next vsync which is not used by previous render. So render thread sleeps while no frame arrives and
+ * newest frame is picked up at each vsync.
+ * Vsync timing is taken from predicted display time of VR runtime. All times are System.nanoTime() based,
+ * which is the same clock (CLOCK_MONOTONIC) as vrapi_GetTimeInSeconds.
+ * Not thread safe. Used only on render thread.
+ */
+public class RenderScheduler {
+    // Initial estimate of time from wake to end of submit.
+    private static final long INITIAL_RENDER_TIME_NS = TimeUnit.MILLISECONDS.toNanos(3);
+    // Added to estimated render time + wake delay.
+    private static final long BUDGET_MARGIN_NS = TimeUnit.MILLISECONDS.toNanos(1);
+    // Handler has millisecond resolution. Wake error within this is regarded as on time.
+    private static final long WAKE_TOLERANCE_NS = TimeUnit.MILLISECONDS.toNanos(1);
+    // New sample has weight 1 / (1 << EMA_SHIFT).
+    private static final int EMA_SHIFT = 3;
+
+    private long mVsyncPeriodNs = TimeUnit.SECONDS.toNanos(1) / 60;
+    // Time of any vsync. 0 if unknown, and then grid is aligned to first frame arrival.
+    private long mVsyncBaseNs = 0;
+
+    // EMA of time from wake to end of submit.
+    private long mRenderTimeNs = INITIAL_RENDER_TIME_NS;
+    // EMA of late wake.
+    private long mWakeDelayNs = 0;
+
+    // Vsync targeted by last render. Next render targets later vsync.
+    private long mLastVsyncNs = 0;
+    private boolean mScheduled = false;
+    private long mTargetVsyncNs = 0;
+    private long mWakeTimeNs = 0;
+    private long mActualWakeNs = 0;
+
+    // Statistics.
+    private long mScheduledCount = 0;
+    private long mRenderedCount = 0;
+    private long mNoFrameCount = 0;
+    private long mMissedVsyncCount = 0;
+    private long mEarlyWakeCount = 0;
+    private long mLateWakeCount = 0;
+    private long mLateWakeTotalNs = 0;
+    private long mLateWakeMaxNs = 0;
+    private long mEarlyWakeMaxNs = 0;
+
+    public void setRefreshRate(int refreshRate) {
+        if (refreshRate > 0) {
+            mVsyncPeriodNs = TimeUnit.SECONDS.toNanos(1) / refreshRate;
+        }
+    }
+
+    // predictedDisplayTimeNs: Predicted display time of next frame, or 0 if not available (not in VR mode).
+    public void setPredictedDisplayTime(long predictedDisplayTimeNs) {
+        if (predictedDisplayTimeNs > 0) {
+            mVsyncBaseNs = predictedDisplayTimeNs;
+        }
+    }
+
+    public boolean isScheduled() {
+        return mScheduled;
+    }
+
+    // Called on frame arrival. Returns wake time (System.nanoTime based), or -1 if render is already scheduled.
+    public long schedule(long nowNs) {
+        if (mScheduled) {
+            return -1;
+        }
+        long budget = getBudgetNs();
+        if (mVsyncBaseNs == 0) {
+            mVsyncBaseNs = nowNs + budget;
+        }
+        long target = nextVsync(nowNs + budget);
+        if (target <= mLastVsyncNs) {
+            // Previous render already submitted frame for this vsync. Submitting another one only blocks.
+            target = nextVsync(mLastVsyncNs + mVsyncPeriodNs / 2);
+        }
+        mTargetVsyncNs = target;
+        mWakeTimeNs = target - budget;
+        mScheduled = true;
+        mScheduledCount++;
+        return mWakeTimeNs;
+    }
+
+    // Called when render thread woke for scheduled render.
+    public void onWake(long nowNs) {
+        mActualWakeNs = nowNs;
+        long error = nowNs - mWakeTimeNs;
+        if (error > WAKE_TOLERANCE_NS) {
+            mLateWakeCount++;
+            mLateWakeTotalNs += error;
+            mLateWakeMaxNs = Math.max(mLateWakeMaxNs, error);
+        } else if (error < -WAKE_TOLERANCE_NS) {
+            mEarlyWakeCount++;
+            mEarlyWakeMaxNs = Math.max(mEarlyWakeMaxNs, -error);
+        }
+        mWakeDelayNs += (Math.max(error, 0) - mWakeDelayNs) >> EMA_SHIFT;
+    }
+
+    // Called after frame was submitted.
+    public void onRendered(long nowNs) {
+        mScheduled = false;
+        mRenderedCount++;
+        mRenderTimeNs += (nowNs - mActualWakeNs - mRenderTimeNs) >> EMA_SHIFT;
+        if (nowNs > mTargetVsyncNs) {
+            // Frame will be displayed on later vsync.
+            mMissedVsyncCount++;
+            mLastVsyncNs = nextVsync(nowNs);
+        } else {
+            mLastVsyncNs = mTargetVsyncNs;
+        }
+    }
+
+    // Called when woke but no frame was available (e.g. discarded as stale). Next schedule() waits next frame.
+    public void onNoFrame() {
+        mScheduled = false;
+        mNoFrameCount++;
+    }
+
+    // Cancels scheduled render, e.g. on disconnect.
+    public void cancel() {
+        mScheduled = false;
+    }
+
+    // Returns first vsync at or after time.
+    private long nextVsync(long time) {
+        long diff = time - mVsyncBaseNs;
+        // Math.floorDiv is API 24+.
+        long periods = diff / mVsyncPeriodNs;
+        if (periods * mVsyncPeriodNs < diff) {
+            periods++;
+        }
+        return mVsyncBaseNs + periods * mVsyncPeriodNs;
+    }
+
+    public long getBudgetNs() {
+        // Never schedule beyond one period before vsync.
+        return Math.min(mRenderTimeNs + mWakeDelayNs + BUDGET_MARGIN_NS, mVsyncPeriodNs);
+    }
+
+    public long getVsyncPeriodNs() {
+        return mVsyncPeriodNs;
+    }
+
+    public long getScheduledCount() {
+        return mScheduledCount;
+    }
+
+    public long getRenderedCount() {
+        return mRenderedCount;
+    }
+
+    public long getNoFrameCount() {
+        return mNoFrameCount;
+    }
+
+    public long getMissedVsyncCount() {
+        return mMissedVsyncCount;
+    }
+
+    public long getEarlyWakeCount() {
+        return mEarlyWakeCount;
+    }
+
+    public long getMaxEarlyWakeNs() {
+        return mEarlyWakeMaxNs;
+    }
+
+    public long getLateWakeCount() {
+        return mLateWakeCount;
+    }
+
+    public long getAverageLateWakeNs() {
+        long count = mLateWakeCount;
+        return count == 0 ? 0 : mLateWakeTotalNs / count;
+    }
+
+    public long getMaxLateWakeNs() {
+        return mLateWakeMaxNs;
+    }
+
+    public String getStatisticsString() {
+        return "Rendered=" + mRenderedCount + " NoFrame=" + mNoFrameCount + " MissedVsync=" + mMissedVsyncCount
+                + " EarlyWake=" + mEarlyWakeCount + " (max " + mEarlyWakeMaxNs / 1000 + " us)"
+                + " LateWake=" + mLateWakeCount + " (avg " + getAverageLateWakeNs() / 1000
+                + " us max " + mLateWakeMaxNs / 1000 + " us)"
+                + " Budget=" + getBudgetNs() / 1000 + " us";
+    }
+}
@@ -0,0 +1,72 @@
+package com.polygraphene.alvr;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Head and tail of single-producer/single-consumer ring of fixed capacity. Used by NalQueue, NalBufferPool and
+// IntRingBuffer.
+// Each side keeps the last seen index of the other side and reloads it only when ring looks full (producer)
+// or empty (consumer), so that the other side's cache line is touched only when needed.
+// Producer-side and consumer-side indices are kept PADDING longs apart in an array, because Java doesn't
+// guarantee field order and adjacent fields would share a cache line (false sharing).
+class SpscIndices {
+    // 128 bytes. Covers adjacent cache line prefetch too.
+    private static final int PADDING = 16;
+    // Written by producer.
+    private static final int TAIL = PADDING;
+    private static final int CACHED_HEAD = PADDING + 1;
+    // Written by consumer.
+    private static final int HEAD = PADDING * 2;
+    private static final int CACHED_TAIL = PADDING * 2 + 1;
+
+    private final AtomicLongArray mIndices = new AtomicLongArray(PADDING * 3);
+    private final int mCapacity;
+
+    SpscIndices(int capacity) {
+        mCapacity = capacity;
+    }
+
+    // Called from producer. Returns index of next free slot, or -1 when ring is full.
+    public long claim() {
+        long tail = mIndices.get(TAIL);
+        if (tail - mIndices.get(CACHED_HEAD) >= mCapacity) {
+            long head = mIndices.get(HEAD);
+            if (tail - head >= mCapacity) {
+                return -1;
+            }
+            mIndices.lazySet(CACHED_HEAD, head);
+        }
+        return tail;
+    }
+
+    // Called from producer. Makes slot returned by claim() visible to consumer.
+    // lazySet is release store: slot contents written before are visible to consumer which sees new tail.
+    public void publish(long tail) {
+        mIndices.lazySet(TAIL, tail + 1);
+    }
+
+    // Called from consumer. Returns index of oldest published slot, or -1 when ring is empty.
+    public long peek() {
+        long head = mIndices.get(HEAD);
+        if (head == mIndices.get(CACHED_TAIL)) {
+            long tail = mIndices.get(TAIL);
+            if (head == tail) {
+                return -1;
+            }
+            mIndices.lazySet(CACHED_TAIL, tail);
+        }
+        return head;
+    }
+
+    // Called from consumer. Hands slots before newHead back to producer.
+    public void release(long newHead) {
+        mIndices.lazySet(HEAD, newHead);
+    }
+
+    public long getHead() {
+        return mIndices.get(HEAD);
+    }
+
+    public long getTail() {
+        return mIndices.get(TAIL);
+    }
+}
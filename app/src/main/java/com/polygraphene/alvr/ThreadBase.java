@@ -4,7 +4,7 @@ import android.util.Log;
 
 public class ThreadBase {
     private Thread mThread;
-    private boolean mStopped = false;
+    private volatile boolean mStopped = false;
 
     protected final void startBase() {
         mThread = new MyThread();
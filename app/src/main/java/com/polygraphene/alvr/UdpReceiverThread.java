@@ -4,12 +4,17 @@ import android.app.Activity;
 import android.opengl.EGLContext;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Locale;
 
 class UdpReceiverThread extends ThreadBase implements TrackingThread.TrackingCallback {
     private static final String TAG = "UdpReceiverThread";
@@ -33,7 +38,8 @@ class UdpReceiverThread extends ThreadBase implements TrackingThread.TrackingCal
     private int mPreviousServerPort;
 
     interface Callback {
-        void onConnected(int width, int height, int codec, int frameQueueSize, int refreshRate);
+        // bufferSize is receive buffer size requested by server. Used as estimate of maximum frame size.
+        void onConnected(int width, int height, int codec, int frameQueueSize, int refreshRate, int bufferSize);
 
         void onChangeSettings(int suspend, int frameQueueSize);
 
@@ -55,6 +61,10 @@ class UdpReceiverThread extends ThreadBase implements TrackingThread.TrackingCal
 
     private NALCallback mNALCallback;
 
+    // Records received NALs when Utils.sRecordNAL is set. Accessed only on this thread.
+    private File mRecordDir;
+    private NalRecorder mRecorder;
+
     private long mNativeHandle = 0;
     private final Object mWaiter = new Object();
 
@@ -86,6 +96,16 @@ class UdpReceiverThread extends ThreadBase implements TrackingThread.TrackingCal
         }
     }
 
+    // Ask server for IDR. Called from DecoderThread after decoder was flushed.
+    public void requestIDR() {
+        synchronized (mWaiter) {
+            if (mNativeHandle == 0) {
+                return;
+            }
+            requestIDRNative(mNativeHandle);
+        }
+    }
+
     public boolean start(EGLContext mEGLContext, Activity activity, DeviceDescriptor deviceDescriptor, int cameraTexture, NALCallback nalCallback) {
         mTrackingThread = new TrackingThread();
         mTrackingThread.setCallback(this);
@@ -93,6 +113,7 @@ class UdpReceiverThread extends ThreadBase implements TrackingThread.TrackingCal
         mDeviceDescriptor = deviceDescriptor;
 
         mNALCallback = nalCallback;
+        mRecordDir = activity.getExternalFilesDir("nal");
 
         super.startBase();
 
@@ -147,6 +168,7 @@ class UdpReceiverThread extends ThreadBase implements TrackingThread.TrackingCal
 
             runLoop(mNativeHandle, mPreviousServerAddress, mPreviousServerPort);
         } finally {
+            stopRecording();
             mCallback.onShutdown(getServerAddress(mNativeHandle), getServerPort(mNativeHandle));
             closeSocket(mNativeHandle);
             mNativeHandle = 0;
@@ -214,9 +236,10 @@ class UdpReceiverThread extends ThreadBase implements TrackingThread.TrackingCal
 
     // called from native
     @SuppressWarnings("unused")
-    public void onConnected(int width, int height, int codec, int frameQueueSize, int refreshRate) {
+    public void onConnected(int width, int height, int codec, int frameQueueSize, int refreshRate, int bufferSize) {
         Utils.logi(TAG, () -> "onConnected is called.");
-        mCallback.onConnected(width, height, codec, frameQueueSize, refreshRate);
+        startRecording(codec);
+        mCallback.onConnected(width, height, codec, frameQueueSize, refreshRate, bufferSize);
         mTrackingThread.onConnect();
         mTrackingThread.changeRefreshRate(refreshRate);
     }
@@ -224,6 +247,7 @@ class UdpReceiverThread extends ThreadBase implements TrackingThread.TrackingCal
     @SuppressWarnings("unused")
     public void onDisconnected() {
         Utils.logi(TAG, () -> "onDisconnected is called.");
+        stopRecording();
         mCallback.onDisconnect();
         mTrackingThread.onDisconnect();
     }
@@ -257,9 +281,40 @@ class UdpReceiverThread extends ThreadBase implements TrackingThread.TrackingCal
 
     @SuppressWarnings("unused")
     public void pushNAL(NAL nal) {
+        if (mRecorder != null) {
+            // Must be recorded before decoder takes ownership of nal.
+            try {
+                mRecorder.append(nal, System.nanoTime());
+            } catch (IOException e) {
+                e.printStackTrace();
+                Utils.loge(TAG, () -> "Failed to record NAL. Stop recording.");
+                stopRecording();
+            }
+        }
         mNALCallback.pushNAL(nal);
     }
 
+    private void startRecording(int codec) {
+        stopRecording();
+        if (!Utils.sRecordNAL || mRecordDir == null) {
+            return;
+        }
+        String name = "nal-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        try {
+            mRecorder = new NalRecorder(mRecordDir, name, codec);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Utils.loge(TAG, () -> "Failed to start recording NAL: " + e.getMessage());
+        }
+    }
+
+    private void stopRecording() {
+        if (mRecorder != null) {
+            mRecorder.close();
+            mRecorder = null;
+        }
+    }
+
     private native long initializeSocket(int helloPort, int port, String deviceName, String[] broadcastAddrList,
                                          int[] refreshRates, int renderWidth, int renderHeight, float[] fov,
                                          int deviceType, int deviceSubType, int deviceCapabilityFlags, int controllerCapabilityFlags);
@@ -274,4 +329,5 @@ class UdpReceiverThread extends ThreadBase implements TrackingThread.TrackingCal
     private native String getServerAddress(long nativeHandle);
     private native int getServerPort(long nativeHandle);
     private native void setSinkPreparedNative(long nativeHandle, boolean prepared);
+    private native void requestIDRNative(long nativeHandle);
 }
\ No newline at end of file
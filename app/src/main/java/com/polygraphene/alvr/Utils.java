@@ -7,6 +7,12 @@ import android.util.Log;
 
 public class Utils {
     public static boolean sEnableLog = false;
+    // Record received NALs by NalRecorder.
+    public static boolean sRecordNAL = false;
+
+    // Must match DEBUG_FLAGS in utils.cpp.
+    private static final long DEBUG_FLAGS_ENABLE_FRAME_LOG = 1 << 0;
+    private static final long DEBUG_FLAGS_RECORD_NAL = 1 << 5;
 
     public static native void setFrameLogEnabled(long debugFlags);
 
@@ -53,7 +59,8 @@ public class Utils {
     }
 
     public static void setDebugFlags(long debugFlags) {
-        sEnableLog = (debugFlags & 1) != 0;
+        sEnableLog = (debugFlags & DEBUG_FLAGS_ENABLE_FRAME_LOG) != 0;
+        sRecordNAL = (debugFlags & DEBUG_FLAGS_RECORD_NAL) != 0;
         Log.i("ALVR", "DebugFlags is changed. New=" + debugFlags);
         setFrameLogEnabled(debugFlags);
     }
@@ -0,0 +1,58 @@
+package com.polygraphene.alvr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Video decoder used by DecoderThread. Decouples decode pipeline from MediaCodec and Surface, so that
+// NalQueue -> DecoderThread -> OutputFrameQueue can run with FakeDecoderBackend (unit tests) off device.
+// Buffer indices and flags follow MediaCodec (e.g. MediaCodec.BUFFER_FLAG_CODEC_CONFIG).
+public interface VideoDecoderBackend {
+    // Callbacks are called from backend's own thread.
+    interface Callback {
+        void onInputBufferAvailable(int index);
+
+        void onOutputBufferAvailable(int index, long presentationTimeUs);
+
+        void onError(String message);
+    }
+
+    // Create and start decoder. csd0/csd1 are dummy codec config for decoders which require them. csd1 may be null.
+    // maxInputSize is requested size of input buffers (KEY_MAX_INPUT_SIZE). Decoder may allocate other size.
+    void configure(String mimeType, int width, int height, ByteBuffer csd0, ByteBuffer csd1, int maxInputSize,
+                   Callback callback) throws IOException;
+
+    // Called from DecoderThread.
+    ByteBuffer getInputBuffer(int index);
+
+    // Called from DecoderThread.
+    void queueInputBuffer(int index, int size, long presentationTimeUs, int flags);
+
+    // Called from OutputFrameQueue. Frame is rendered to output surface if render is true.
+    void releaseOutputBuffer(int index, boolean render);
+
+    String getName();
+
+    // Latency tracking of frames entering and leaving decoder. MediaCodecBackend reports them to LatencyCollector.
+    // Called from DecoderThread.
+    void onFrameInput(long frameIndex);
+
+    // Called from OutputFrameQueue.
+    void onFrameOutput(long frameIndex);
+
+    // Discard all queued input and output buffers and pause decoding. All buffer indices are invalidated.
+    // No callback is called after this returns until start(). Called from DecoderThread.
+    void flush();
+
+    // Resume decoding after flush(). Every input buffer is notified by onInputBufferAvailable() again.
+    void start();
+
+    // Create decoder instance of mimeType in advance, so that later configure() with it is fast.
+    void prewarm(String mimeType);
+
+    // Stop decoder and return to the state before configure(). Decoder instance is kept for next configure().
+    // Callbacks are not called after this returns.
+    void reset();
+
+    // Stop and release decoder. Callbacks are not called after this returns.
+    void release();
+}
@@ -7,26 +7,38 @@ import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.widget.TextView;
 
+import com.polygraphene.alvr.DecoderStatistics;
 import com.polygraphene.alvr.DecoderThread;
-import com.polygraphene.alvr.NAL;
+import com.polygraphene.alvr.NalReplaySource;
 import com.polygraphene.alvr.R;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.util.LinkedList;
 
+// Replays NAL log recorded by NalRecorder (debug flag) to measure decoder offline.
+// Intent extras:
+//   "log": Name of log in getExternalFilesDir("nal") without suffix. Newest log is used if not given.
+//   "originalSpeed": true to keep timing of reception. Default is maximum speed.
 public class DecoderTestActivity extends AppCompatActivity {
 
     private static final String TAG = "DecoderTestActivity";
+    private static final int FRAME_QUEUE_SIZE = 1;
+
     private long mFrameIndex = 0;
     private long mLoop = 0;
+    private long mRenderedFrames = 0;
+    private long mLastStatTime = 0;
+    private String mReplayStat = "";
     private DecoderThread decoderThread;
+    private NalReplaySource mReplaySource;
+    private File mLogDir;
+    private String mLogName;
     private TextView textView;
 
     private DecoderThread.DecoderCallback mDecoderCallback = new DecoderThread.DecoderCallback() {
         @Override
         public void onPrepared() {
-
+            runOnUiThread(() -> startReplay());
         }
 
         @Override
@@ -36,10 +48,24 @@ public class DecoderTestActivity extends AppCompatActivity {
 
         @Override
         public void onFrameDecoded() {
+            decoderThread.releaseBuffer();
+        }
+
+        @Override
+        public void onRequestIDR() {
+            // Replayed log has periodic IDRs. Decoder just waits next one.
+        }
+    };
 
+    private NalReplaySource.Callback mReplayCallback = new NalReplaySource.Callback() {
+        @Override
+        public void onReplayFinished(int loop, int pushedNals, long elapsedNs) {
+            mLoop = loop + 1;
+            mReplayStat = String.format("Replay: %d NALs in %d ms (%.1f NAL/s)", pushedNals, elapsedNs / 1000000,
+                    pushedNals * 1e9 / elapsedNs);
+            Log.v(TAG, mReplayStat);
         }
     };
-    private LinkedList<NAL> mNalList = new LinkedList<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -52,10 +78,14 @@ public class DecoderTestActivity extends AppCompatActivity {
         surfaceView.getHolder().addCallback(new SurfaceHolder.Callback() {
             @Override
             public void surfaceCreated(final SurfaceHolder holder) {
-                try {
-                    readNALList();
-                } catch (Exception e) {
-                    e.printStackTrace();
+                mLogDir = getExternalFilesDir("nal");
+                mLogName = getIntent().getStringExtra("log");
+                if (mLogName == null) {
+                    mLogName = findNewestLog(mLogDir);
+                }
+                if (mLogName == null) {
+                    textView.setText("No NAL log in " + mLogDir);
+                    return;
                 }
 
                 decoderThread = new DecoderThread(holder.getSurface(), DecoderTestActivity.this, mDecoderCallback);
@@ -65,22 +95,20 @@ public class DecoderTestActivity extends AppCompatActivity {
                     public void run() {
                         long ret = decoderThread.clearAvailable(null);
 
-                        if(ret >= 0) {
-                            mFrameIndex++;
-                            textView.setText("Current:" + mFrameIndex + " " + mLoop);
+                        if (ret >= 0) {
+                            mFrameIndex = ret;
+                            mRenderedFrames++;
                         }
-                        Log.v("DecoderTestActivity", "Frame rendered: " + ret + "  i:" + mFrameIndex + " loop:" + mLoop);
-                        if(ret >= 4) {
-                            mLoop++;
-                            mFrameIndex = 0;
-
-                            Log.v("DecoderTestActivity", "Next loop:"+ mLoop + ". stop and wait");
-                            decoderThread.stopAndWait();
-                            Log.v("DecoderTestActivity", "Next loop:"+ mLoop + ". stop ok");
-
-                            decoderThread = new DecoderThread(holder.getSurface(), DecoderTestActivity.this, mDecoderCallback);
-                            decoderThread.start();
-                            Log.v("DecoderTestActivity", "Next loop:"+ mLoop + ". started");
+                        long now = System.nanoTime();
+                        if (now - mLastStatTime > 1000L * 1000 * 1000) {
+                            DecoderStatistics statistics = decoderThread.getStatistics();
+                            textView.setText("Frame:" + mFrameIndex + " Loop:" + mLoop
+                                    + "\nRendered: " + mRenderedFrames * 1e9 / (now - mLastStatTime) + " fps"
+                                    + "\nDecode latency: avg " + statistics.getAverageDecodeLatencyNs() / 1000
+                                    + " us max " + statistics.getMaxDecodeLatencyNs() / 1000 + " us"
+                                    + "\n" + mReplayStat);
+                            mRenderedFrames = 0;
+                            mLastStatTime = now;
                         }
                         surfaceView.postDelayed(this, 1);
                     }
@@ -94,55 +122,49 @@ public class DecoderTestActivity extends AppCompatActivity {
 
             @Override
             public void surfaceDestroyed(SurfaceHolder holder) {
-
+                if (mReplaySource != null) {
+                    mReplaySource.stopAndWait();
+                    mReplaySource = null;
+                }
+                if (decoderThread != null) {
+                    decoderThread.stopAndWait();
+                }
             }
         });
     }
 
-    void readNALList() throws Exception {
-        mNalList.clear();
-
-        FileInputStream fis = null;
+    private void startReplay() {
+        if (mReplaySource != null || decoderThread == null) {
+            return;
+        }
         try {
-            fis = new FileInputStream(DecoderTestActivity.this.getExternalFilesDir("test") + "/codectest.h265");
-
-            long frameIndex = 1;
-            NAL nal = new NAL();
-
-            byte[] buffer = new byte[87];
-            fis.read(buffer, 0, buffer.length);
-            nal.frameIndex = frameIndex;
-            nal.buf = buffer;
-            nal.length = nal.buf.length;
-
-            String s = "";
-            for(int i = 0; i < 8; i++) {
-                s += String.format("%02X ", buffer[i]);
-            }
-            Log.v(TAG, "NAL Buffer: " + s);
-
-            mNalList.add(nal);
-
-            int[] frameSizes = new int[]{1393, 193438, 56245, 36483, 32754, 37696, 38229, 44998, 30080, 32862,
-                    31067, 35536, 37509, 37098, 34429, 36402, 27596, 28715};
-
-            for (int size : frameSizes) {
-                buffer = new byte[size];
-                fis.read(buffer, 0, buffer.length);
-
-                nal = new NAL();
-                nal.frameIndex = frameIndex++;
-                nal.buf = buffer;
-                nal.length = nal.buf.length;
+            boolean originalSpeed = getIntent().getBooleanExtra("originalSpeed", false);
+            mReplaySource = new NalReplaySource(mLogDir, mLogName, decoderThread, mReplayCallback, originalSpeed, true);
+            // Swaps codec in place if log was recorded with other codec. Decoder waits first config + IDR.
+            decoderThread.onConnect(mReplaySource.getCodec(), FRAME_QUEUE_SIZE, 0);
+            mReplaySource.start();
+            Log.v(TAG, "Replay started. Log=" + mLogName + " OriginalSpeed=" + originalSpeed);
+        } catch (IOException e) {
+            e.printStackTrace();
+            textView.setText("Failed to open NAL log: " + e.getMessage());
+        }
+    }
 
-                mNalList.add(nal);
-            }
-        } finally {
-            try {
-                fis.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+    private static String findNewestLog(File dir) {
+        File[] files = dir == null ? null : dir.listFiles((d, name) -> name.endsWith(".idx"));
+        if (files == null) {
+            return null;
+        }
+        File newest = null;
+        for (File file : files) {
+            if (newest == null || file.lastModified() > newest.lastModified()) {
+                newest = file;
             }
         }
+        if (newest == null) {
+            return null;
+        }
+        String name = newest.getName();
+        return name.substring(0, name.length() - ".idx".length());
     }
 }
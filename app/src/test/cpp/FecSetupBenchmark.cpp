@@ -0,0 +1,154 @@
+// Benchmark of per-frame setup cost of FECQueue::newFrame, before and after caching reed_solomon instances
+// and zeroing only padding packets instead of whole frame buffer.
+// Frame sizes vary around typical sizes (30 - 300 KB), so shard counts change between frames like real stream.
+// Runs on host without NDK:
+//   g++ -std=c++14 -O2 -I ALVR-common -x c ALVR-common/reedsolomon/rs.c -x c++ \
+//       app/src/test/cpp/FecSetupBenchmark.cpp -o /tmp/fec_setup_benchmark && /tmp/fec_setup_benchmark
+#include <chrono>
+#include <list>
+#include <memory>
+#include <random>
+#include <vector>
+#include <stdio.h>
+#include <string.h>
+#include "packet_types.h"
+
+static const int FRAMES = 20000;
+static const int FEC_PERCENTAGE = 5;
+static const int TYPICAL_FRAME_SIZES[] = {30000, 60000, 100000, 200000, 300000};
+// Frame size varies +-SIZE_VARIATION %.
+static const int SIZE_VARIATION = 20;
+static const size_t RS_CACHE_SIZE = 8;
+
+struct Setup {
+    size_t shardPackets;
+    size_t totalDataShards;
+    size_t totalParityShards;
+    size_t totalShards;
+    size_t padding;
+
+    explicit Setup(int frameByteSize) {
+        size_t fecDataPackets = (frameByteSize + ALVR_MAX_VIDEO_BUFFER_SIZE - 1) / ALVR_MAX_VIDEO_BUFFER_SIZE;
+        shardPackets = CalculateFECShardPackets(frameByteSize, FEC_PERCENTAGE);
+        size_t blockSize = shardPackets * ALVR_MAX_VIDEO_BUFFER_SIZE;
+        totalDataShards = (frameByteSize + blockSize - 1) / blockSize;
+        totalParityShards = CalculateParityShards(totalDataShards, FEC_PERCENTAGE);
+        totalShards = totalDataShards + totalParityShards;
+        padding = (shardPackets - fecDataPackets % shardPackets) % shardPackets;
+    }
+};
+
+struct Frame {
+    std::vector<std::vector<unsigned char>> marks;
+    std::vector<char> frameBuffer;
+};
+
+static void setupMarks(Frame &frame, const Setup &s) {
+    frame.marks.resize(s.shardPackets);
+    for (size_t i = 0; i < s.shardPackets; i++) {
+        frame.marks[i].resize(s.totalShards);
+        memset(&frame.marks[i][0], 1, s.totalShards);
+    }
+    if (frame.frameBuffer.size() < s.totalShards * s.shardPackets * ALVR_MAX_VIDEO_BUFFER_SIZE) {
+        frame.frameBuffer.resize(s.totalShards * s.shardPackets * ALVR_MAX_VIDEO_BUFFER_SIZE);
+    }
+}
+
+// Previous newFrame: new reed_solomon for every frame and clear whole buffer.
+class PreviousSetup {
+public:
+    ~PreviousSetup() {
+        reed_solomon_release(m_rs);
+    }
+
+    void newFrame(Frame &frame, const Setup &s) {
+        if (m_rs != nullptr) {
+            reed_solomon_release(m_rs);
+        }
+        m_rs = reed_solomon_new(s.totalDataShards, s.totalParityShards);
+        setupMarks(frame, s);
+        memset(&frame.frameBuffer[0], 0, s.totalShards * s.shardPackets * ALVR_MAX_VIDEO_BUFFER_SIZE);
+    }
+
+private:
+    reed_solomon *m_rs = nullptr;
+};
+
+// Current newFrame: reed_solomon from LRU cache and clear only padding packets.
+class CachedSetup {
+public:
+    void newFrame(Frame &frame, const Setup &s) {
+        m_rs = get(s.totalDataShards, s.totalParityShards);
+        setupMarks(frame, s);
+        for (size_t i = 0; i < s.padding; i++) {
+            size_t packet = s.shardPackets - i - 1;
+            memset(&frame.frameBuffer[((s.totalDataShards - 1) * s.shardPackets + packet) *
+                                      ALVR_MAX_VIDEO_BUFFER_SIZE], 0, ALVR_MAX_VIDEO_BUFFER_SIZE);
+        }
+    }
+
+    size_t misses = 0;
+
+private:
+    struct Entry {
+        int dataShards;
+        int parityShards;
+        std::shared_ptr<reed_solomon> rs;
+    };
+    std::list<Entry> m_cache;
+    std::shared_ptr<reed_solomon> m_rs;
+
+    std::shared_ptr<reed_solomon> get(int dataShards, int parityShards) {
+        for (auto it = m_cache.begin(); it != m_cache.end(); ++it) {
+            if (it->dataShards == dataShards && it->parityShards == parityShards) {
+                m_cache.splice(m_cache.begin(), m_cache, it);
+                return m_cache.front().rs;
+            }
+        }
+        misses++;
+        m_cache.push_front({dataShards, parityShards,
+                            std::shared_ptr<reed_solomon>(reed_solomon_new(dataShards, parityShards),
+                                                          reed_solomon_release)});
+        if (m_cache.size() > RS_CACHE_SIZE) {
+            m_cache.pop_back();
+        }
+        return m_cache.front().rs;
+    }
+};
+
+template<typename T>
+static double measure(T &setup, const std::vector<int> &sizes) {
+    // Same number of frame slots as FECQueue::MAX_FRAMES.
+    Frame frames[4];
+    auto start = std::chrono::steady_clock::now();
+    for (size_t i = 0; i < sizes.size(); i++) {
+        setup.newFrame(frames[i % 4], Setup(sizes[i]));
+    }
+    return std::chrono::duration<double, std::micro>(std::chrono::steady_clock::now() - start).count() / sizes.size();
+}
+
+int main() {
+    reed_solomon_init();
+    std::mt19937 random(1);
+    for (int typical : TYPICAL_FRAME_SIZES) {
+        std::uniform_int_distribution<int> distribution(typical * (100 - SIZE_VARIATION) / 100,
+                                                        typical * (100 + SIZE_VARIATION) / 100);
+        std::vector<int> sizes(FRAMES);
+        for (int &size : sizes) {
+            size = distribution(random);
+        }
+
+        PreviousSetup previous;
+        CachedSetup cached;
+        // Warmup.
+        measure(previous, sizes);
+        measure(cached, sizes);
+        double previousUs = measure(previous, sizes);
+        double cachedUs = measure(cached, sizes);
+        Setup s(typical);
+        printf("%6d bytes (shards %2zu+%zu x %zu packets): previous %7.2f us/frame cached %6.2f us/frame (x%.1f) rs misses %zu\n",
+               typical, s.totalDataShards, s.totalParityShards, s.shardPackets, previousUs, cachedUs,
+               previousUs / cachedUs, cached.misses);
+    }
+    return 0;
+}
@@ -0,0 +1,120 @@
+// Benchmark of reed_solomon_reconstruct with scalar and SIMD GF(256) kernels on ALVR shard layouts.
+// Each packet column loses as many data shards as it has parity shards, which is the most expensive case
+// FECQueue::recoverPacket can still recover. Throughput is frame bytes per reconstruct time.
+// Runs on host without NDK:
+//   g++ -std=c++14 -O2 -I ALVR-common -x c ALVR-common/reedsolomon/rs.c -x c++ \
+//       app/src/test/cpp/ReedSolomonBenchmark.cpp -o /tmp/rs_benchmark && /tmp/rs_benchmark
+#include <chrono>
+#include <random>
+#include <vector>
+#include <stdio.h>
+#include <string.h>
+#include "packet_types.h"
+
+static const int FRAME_SIZES[] = {30000, 100000, 300000};
+static const int FEC_PERCENTAGES[] = {5, 10, 20};
+// Repeat until this much frame data is reconstructed.
+static const size_t BYTES_PER_MEASUREMENT = 200 * 1000 * 1000;
+
+struct Layout {
+    size_t shardPackets;
+    size_t dataShards;
+    size_t parityShards;
+    size_t totalShards;
+
+    Layout(int frameByteSize, int fecPercentage) {
+        shardPackets = CalculateFECShardPackets(frameByteSize, fecPercentage);
+        size_t blockSize = shardPackets * ALVR_MAX_VIDEO_BUFFER_SIZE;
+        dataShards = (frameByteSize + blockSize - 1) / blockSize;
+        parityShards = CalculateParityShards(dataShards, fecPercentage);
+        totalShards = dataShards + parityShards;
+    }
+
+    char *packet(std::vector<char> &buffer, size_t shard, size_t column) const {
+        return &buffer[(shard * shardPackets + column) * ALVR_MAX_VIDEO_BUFFER_SIZE];
+    }
+};
+
+static void encode(reed_solomon *rs, const Layout &layout, std::vector<char> &buffer) {
+    std::vector<unsigned char *> shards(layout.totalShards);
+    for (size_t i = 0; i < layout.totalShards; i++) {
+        shards[i] = (unsigned char *) layout.packet(buffer, i, 0);
+    }
+    reed_solomon_encode(rs, &shards[0], layout.totalShards, layout.shardPackets * ALVR_MAX_VIDEO_BUFFER_SIZE);
+}
+
+// Returns MB/s, or -1 if reconstructed frame differs from original.
+static double measure(reed_solomon *rs, const Layout &layout, int frameByteSize, const std::vector<char> &original) {
+    std::vector<char> buffer(original.size());
+    std::vector<unsigned char> marks(layout.totalShards);
+    std::vector<unsigned char *> shards(layout.totalShards);
+    size_t lost = std::min(layout.parityShards, layout.dataShards);
+    size_t iterations = BYTES_PER_MEASUREMENT / frameByteSize + 1;
+    std::mt19937 random(1);
+
+    double totalUs = 0;
+    for (size_t iteration = 0; iteration < iterations; iteration++) {
+        memcpy(&buffer[0], &original[0], buffer.size());
+        size_t firstLost = random() % (layout.dataShards - lost + 1);
+        for (size_t column = 0; column < layout.shardPackets; column++) {
+            for (size_t i = firstLost; i < firstLost + lost; i++) {
+                memset(layout.packet(buffer, i, column), 0xaa, ALVR_MAX_VIDEO_BUFFER_SIZE);
+            }
+        }
+
+        auto start = std::chrono::steady_clock::now();
+        for (size_t column = 0; column < layout.shardPackets; column++) {
+            for (size_t i = 0; i < layout.totalShards; i++) {
+                marks[i] = i >= firstLost && i < firstLost + lost;
+                shards[i] = (unsigned char *) layout.packet(buffer, i, column);
+            }
+            reed_solomon_reconstruct(rs, &shards[0], &marks[0], layout.totalShards, ALVR_MAX_VIDEO_BUFFER_SIZE);
+        }
+        totalUs += std::chrono::duration<double, std::micro>(std::chrono::steady_clock::now() - start).count();
+
+        if (iteration == 0 && memcmp(&buffer[0], &original[0], layout.dataShards * layout.shardPackets *
+                                                                ALVR_MAX_VIDEO_BUFFER_SIZE) != 0) {
+            return -1;
+        }
+    }
+    return (double) frameByteSize * iterations / totalUs;
+}
+
+int main() {
+    reed_solomon_init();
+    std::mt19937 random(1);
+    int result = 0;
+    for (int fecPercentage : FEC_PERCENTAGES) {
+        for (int frameByteSize : FRAME_SIZES) {
+            Layout layout(frameByteSize, fecPercentage);
+            reed_solomon *rs = reed_solomon_new(layout.dataShards, layout.parityShards);
+            std::vector<char> original(layout.totalShards * layout.shardPackets * ALVR_MAX_VIDEO_BUFFER_SIZE);
+            for (int i = 0; i < frameByteSize; i++) {
+                original[i] = (char) random();
+            }
+            encode(rs, layout, original);
+
+            printf("%6d bytes fec %2d%% (shards %2zu+%zu x %2zu packets):", frameByteSize, fecPercentage,
+                   layout.dataShards, layout.parityShards, layout.shardPackets);
+            double scalar = 0;
+            for (int simd = 0; simd <= 1; simd++) {
+                const char *name = reed_solomon_select_kernel(simd);
+                double mbps = measure(rs, layout, frameByteSize, original);
+                if (mbps < 0) {
+                    printf(" %s MISMATCH", name);
+                    result = 1;
+                    continue;
+                }
+                if (simd == 0) {
+                    scalar = mbps;
+                    printf(" %s %7.1f MB/s", name, mbps);
+                } else {
+                    printf(" %s %7.1f MB/s (x%.1f)", name, mbps, mbps / scalar);
+                }
+            }
+            printf("\n");
+            reed_solomon_release(rs);
+        }
+    }
+    return result;
+}
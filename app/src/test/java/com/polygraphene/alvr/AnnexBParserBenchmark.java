@@ -0,0 +1,192 @@
+package com.polygraphene.alvr;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Per-frame scan cost of AnnexBParser against the previous byte-by-byte scan (NALParser::findVPSSPS).
+ * Recorded Annex-B streams (e.g. dumps of DecoderThread debugIDRFrame) can be given by
+ * -Dalvr.bitstream=path1.h265,path2.h265 (and -Dalvr.codec=0 for H.264). Otherwise synthetic
+ * H.265 frames shaped like NVENC output are used.
+ * Functional checks are in AnnexBParserTest.
+ */
+@Ignore("Timing benchmark. Run manually.")
+public class AnnexBParserBenchmark {
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+    // Scan at least this many bytes per iteration.
+    private static final long BYTES_PER_ITERATION = 64 * 1024 * 1024;
+
+    private static final int SYNTHETIC_FRAMES = 120;
+    private static final int SYNTHETIC_IDR_INTERVAL = 60;
+    private static final int P_FRAME_SIZE = 30 * 1000;
+    private static final int IDR_FRAME_SIZE = 300 * 1000;
+
+    @Test
+    public void scanCost() throws IOException {
+        int codec = Integer.getInteger("alvr.codec", AnnexBParser.CODEC_H265);
+        List<ByteBuffer> frames = loadFrames(codec);
+        long totalBytes = 0;
+        for (ByteBuffer frame : frames) {
+            totalBytes += frame.capacity();
+        }
+        int rounds = (int) Math.max(1, BYTES_PER_ITERATION / totalBytes);
+
+        AnnexBParser parser = new AnnexBParser();
+        double legacy = Double.MAX_VALUE;
+        double parsed = Double.MAX_VALUE;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASUREMENT_ITERATIONS; i++) {
+            long sum = 0;
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (ByteBuffer frame : frames) {
+                    sum += legacyCountStartCodes(frame, frame.capacity());
+                }
+            }
+            long legacyTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (ByteBuffer frame : frames) {
+                    sum -= parser.parse(frame, frame.capacity(), codec);
+                }
+            }
+            long parserTime = System.nanoTime() - start;
+            assertEquals(0, sum);
+
+            if (i >= WARMUP_ITERATIONS) {
+                long n = (long) rounds * frames.size();
+                legacy = Math.min(legacy, (double) legacyTime / n);
+                parsed = Math.min(parsed, (double) parserTime / n);
+            }
+        }
+        System.out.println(String.format("AnnexB scan: %d frames, avg %d bytes/frame", frames.size(), totalBytes / frames.size()));
+        System.out.println(String.format("AnnexB scan byte-by-byte: %8.1f us/frame", legacy / 1000));
+        System.out.println(String.format("AnnexB scan AnnexBParser: %8.1f us/frame", parsed / 1000));
+    }
+
+    // Previous NALParser::findVPSSPS loop, counting NALs of whole frame.
+    private static int legacyCountStartCodes(ByteBuffer frame, int length) {
+        int zeroes = 0;
+        int foundNals = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = frame.get(i);
+            if (b == 0) {
+                zeroes++;
+            } else if (b == 1) {
+                if (zeroes >= 2) {
+                    foundNals++;
+                }
+                zeroes = 0;
+            } else {
+                zeroes = 0;
+            }
+        }
+        return foundNals;
+    }
+
+    private static List<ByteBuffer> loadFrames(int codec) throws IOException {
+        List<ByteBuffer> frames = new ArrayList<>();
+        String paths = System.getProperty("alvr.bitstream");
+        if (paths == null) {
+            return syntheticFrames();
+        }
+        AnnexBParser parser = new AnnexBParser();
+        for (String path : paths.split(",")) {
+            ByteBuffer stream = ByteBuffer.wrap(Files.readAllBytes(Paths.get(path)));
+            // Split stream into frames at each parameter set or slice following a slice.
+            int frameStart = 0;
+            int offset = 0;
+            boolean hasSlice = false;
+            while (offset < stream.capacity()) {
+                ByteBuffer rest = ByteBuffer.wrap(stream.array(), offset, stream.capacity() - offset).slice();
+                int count = parser.parse(rest, rest.capacity(), codec);
+                if (count == 0) {
+                    break;
+                }
+                for (int i = 0; i < count; i++) {
+                    int type = parser.getType(i);
+                    boolean isSlice = !AnnexBParser.isParameterSet(codec, type) && !AnnexBParser.isAuxiliary(codec, type);
+                    int start = offset + parser.getStart(i);
+                    if (hasSlice && start > frameStart) {
+                        frames.add(copy(stream, frameStart, start));
+                        frameStart = start;
+                        hasSlice = false;
+                    }
+                    hasSlice |= isSlice;
+                }
+                offset += parser.getEnd(count - 1);
+                if (count < AnnexBParser.MAX_NALS) {
+                    break;
+                }
+                offset = Math.max(offset - 4, frameStart + 1);
+            }
+            if (frameStart < stream.capacity()) {
+                frames.add(copy(stream, frameStart, stream.capacity()));
+            }
+        }
+        return frames;
+    }
+
+    private static ByteBuffer copy(ByteBuffer stream, int start, int end) {
+        ByteBuffer frame = ByteBuffer.allocateDirect(end - start).order(ByteOrder.nativeOrder());
+        frame.put(stream.array(), start, end - start);
+        return frame;
+    }
+
+    private static List<ByteBuffer> syntheticFrames() {
+        Random random = new Random(0);
+        List<ByteBuffer> frames = new ArrayList<>();
+        for (int i = 0; i < SYNTHETIC_FRAMES; i++) {
+            boolean idr = i % SYNTHETIC_IDR_INTERVAL == 0;
+            ByteBuffer frame = ByteBuffer.allocateDirect(idr ? IDR_FRAME_SIZE : P_FRAME_SIZE).order(ByteOrder.nativeOrder());
+            if (idr) {
+                putNal(frame, random, 32, 24);
+                putNal(frame, random, 33, 40);
+                putNal(frame, random, 34, 8);
+                putNal(frame, random, 19, frame.remaining() - 4);
+            } else {
+                putNal(frame, random, 1, frame.remaining() - 4);
+            }
+            frame.clear();
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    // Writes start code, 2-byte H.265 header and random payload with emulation prevention.
+    private static void putNal(ByteBuffer frame, Random random, int type, int size) {
+        frame.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1);
+        frame.put((byte) (type << 1)).put((byte) 1);
+        int zeroes = 0;
+        for (int i = 2; i < size; i++) {
+            // Compressed data has roughly uniform bytes.
+            byte b = (byte) random.nextInt(256);
+            if (zeroes >= 2 && (b & 0xFF) <= 3) {
+                frame.put((byte) 3);
+                zeroes = 0;
+                i++;
+                if (i >= size) {
+                    break;
+                }
+            }
+            frame.put(b);
+            zeroes = b == 0 ? zeroes + 1 : 0;
+        }
+        if (zeroes > 0) {
+            // NAL must not end with zero.
+            frame.put(frame.position() - 1, (byte) 0x80);
+        }
+    }
+}
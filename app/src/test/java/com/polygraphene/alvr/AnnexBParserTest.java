@@ -0,0 +1,112 @@
+package com.polygraphene.alvr;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class AnnexBParserTest {
+    @Test
+    public void threeByteStartCodeAndAuxiliaryNals() {
+        // AUD, VPS, SPS, PPS, SEI, CRA with mixed 3-byte and 4-byte start codes.
+        ByteBuffer frame = ByteBuffer.wrap(bytes(
+                0, 0, 1, 35 << 1, 1, 0x50,
+                0, 0, 0, 1, 32 << 1, 1, 9, 9,
+                0, 0, 1, 33 << 1, 1, 7,
+                0, 0, 1, 34 << 1, 1, 5,
+                0, 0, 1, 39 << 1, 1, 5,
+                0, 0, 0, 1, 21 << 1, 1, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3));
+        AnnexBParser parser = new AnnexBParser();
+        int codec = AnnexBParser.CODEC_H265;
+        assertEquals(6, parser.parse(frame, frame.capacity(), codec));
+        assertEquals(0, parser.getStart(0));
+        assertEquals(3, parser.getPayload(0));
+        assertEquals(6, parser.getStart(1));
+        assertEquals(10, parser.getPayload(1));
+        assertEquals(21, parser.getType(5));
+        assertEquals(frame.capacity(), parser.getEnd(5));
+
+        assertEquals(AnnexBParser.FRAME_CONFIG, parser.classify(frame, frame.capacity(), codec));
+        // Stops at first NAL after parameter sets.
+        assertEquals(5, parser.getCount());
+        assertEquals(26, parser.getParameterSetsEnd());
+        assertEquals(26, parser.findParameterSetsEnd(frame, frame.capacity(), codec));
+
+        ByteBuffer slice = ByteBuffer.wrap(frame.array(), 26, frame.capacity() - 26).slice();
+        assertEquals(AnnexBParser.FRAME_IDR, parser.classify(slice, slice.capacity(), codec));
+        assertEquals(2, parser.getCount());
+        assertEquals(-1, parser.findParameterSetsEnd(slice, slice.capacity(), codec));
+    }
+
+    @Test
+    public void irapTypes() {
+        AnnexBParser parser = new AnnexBParser();
+        int codec = AnnexBParser.CODEC_H265;
+        for (int type = 0; type < 64; type++) {
+            ByteBuffer frame = ByteBuffer.wrap(bytes(0, 0, 1, type << 1, 1, 0x10, 0x20));
+            int expected;
+            if (type >= 32 && type <= 34) {
+                expected = AnnexBParser.FRAME_CONFIG;
+            } else if (type >= 16 && type <= 23) {
+                expected = AnnexBParser.FRAME_IDR;
+            } else if (type == 35 || type == 39 || type == 40) {
+                expected = AnnexBParser.FRAME_UNKNOWN;
+            } else {
+                expected = AnnexBParser.FRAME_P;
+            }
+            assertEquals("type=" + type, expected, parser.classify(frame, frame.capacity(), codec));
+        }
+        // H.264 AUD + IDR.
+        ByteBuffer h264 = ByteBuffer.wrap(bytes(0, 0, 0, 1, 9, 0xF0, 0, 0, 1, 0x65, 0x88, 0x80));
+        assertEquals(AnnexBParser.FRAME_IDR, parser.classify(h264, h264.capacity(), AnnexBParser.CODEC_H264));
+    }
+
+    @Test
+    public void h264ParameterSetsEnd() {
+        // SPS, PPS, IDR.
+        ByteBuffer frame = ByteBuffer.wrap(bytes(
+                0, 0, 0, 1, 0x67, 0x64, 0x00, 0x1f,
+                0, 0, 0, 1, 0x68, 0xee, 0x3c, 0x80,
+                0, 0, 0, 1, 0x65, 0x88, 0x80, 0x40));
+        AnnexBParser parser = new AnnexBParser();
+        assertEquals(AnnexBParser.FRAME_CONFIG, parser.classify(frame, frame.capacity(), AnnexBParser.CODEC_H264));
+        assertEquals(16, parser.getParameterSetsEnd());
+
+        // Parameter sets without slice.
+        ByteBuffer config = ByteBuffer.wrap(frame.array(), 0, 16).slice();
+        assertEquals(AnnexBParser.FRAME_CONFIG, parser.classify(config, config.capacity(), AnnexBParser.CODEC_H264));
+        assertEquals(-1, parser.getParameterSetsEnd());
+    }
+
+    @Test
+    public void findStartCodeMatchesNaiveScan() {
+        Random random = new Random(1);
+        for (int t = 0; t < 20000; t++) {
+            int length = random.nextInt(64);
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                int r = random.nextInt(12);
+                data[i] = (byte) (r < 3 ? 0 : r < 5 ? 1 : random.nextInt(256));
+            }
+            int from = length == 0 ? 0 : random.nextInt(length + 1);
+            int expected = -1;
+            for (int i = from + 2; i < length; i++) {
+                if (data[i] == 1 && data[i - 1] == 0 && data[i - 2] == 0) {
+                    expected = i + 1;
+                    break;
+                }
+            }
+            assertEquals(expected, AnnexBParser.findStartCode(ByteBuffer.wrap(data), from, length));
+        }
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] ret = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            ret[i] = (byte) values[i];
+        }
+        return ret;
+    }
+}
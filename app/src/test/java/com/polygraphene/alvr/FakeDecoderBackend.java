@@ -0,0 +1,265 @@
+package com.polygraphene.alvr;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+// Deterministic stand-in of hardware decoder for headless tests and benchmarks.
+// Decodes queued inputs one by one on its own thread. Each frame takes decodeLatencyNs (plus seeded random
+// jitter up to latencyJitterNs) after previous frame or its queue time, whichever is later.
+// Like real codecs, decoding stalls while all output buffers are held by client.
+public class FakeDecoderBackend implements VideoDecoderBackend {
+    private final int mInputBufferCount;
+    // Used when configure() doesn't request size.
+    private final int mInputBufferSize;
+    private int mConfiguredInputBufferSize;
+    private final int mOutputBufferCount;
+    private final long mDecodeLatencyNs;
+    private final long mLatencyJitterNs;
+    private final Random mRandom;
+
+    private Callback mCallback;
+    private ByteBuffer[] mInputBuffers;
+    private boolean[] mOutputInUse;
+    private Thread mThread;
+    private Runnable mFrameRenderedListener;
+
+    // Queued input buffers in order. Guarded by this.
+    private int[] mPendingIndices;
+    private long[] mPendingPts;
+    private int[] mPendingFlags;
+    private long[] mPendingQueueTimes;
+    private int mPendingHead = 0;
+    private int mPendingCount = 0;
+    private boolean mReleased = false;
+    // Simulates hung decoder. Inputs are held and no output is produced until flush().
+    private boolean mStalled = false;
+
+    private long mQueuedInputs = 0;
+    private long mDecodedFrames = 0;
+    private long mRenderedFrames = 0;
+
+    public FakeDecoderBackend(int inputBufferCount, int inputBufferSize, int outputBufferCount,
+                              long decodeLatencyNs, long latencyJitterNs, long seed) {
+        mInputBufferCount = inputBufferCount;
+        mInputBufferSize = inputBufferSize;
+        mOutputBufferCount = outputBufferCount;
+        mDecodeLatencyNs = decodeLatencyNs;
+        mLatencyJitterNs = latencyJitterNs;
+        mRandom = new Random(seed);
+    }
+
+    // Called synchronously from releaseOutputBuffer(index, true), like SurfaceTexture.OnFrameAvailableListener.
+    public void setFrameRenderedListener(Runnable listener) {
+        mFrameRenderedListener = listener;
+    }
+
+    // Decoder stops consuming input until flush() or configure().
+    synchronized public void stall() {
+        mStalled = true;
+    }
+
+    // Decoder resumes consuming held inputs, like transient hiccup.
+    synchronized public void resume() {
+        mStalled = false;
+        notifyAll();
+    }
+
+    @Override
+    public void configure(String mimeType, int width, int height, ByteBuffer csd0, ByteBuffer csd1, int maxInputSize,
+                          Callback callback) {
+        mCallback = callback;
+        mConfiguredInputBufferSize = maxInputSize > 0 ? maxInputSize : mInputBufferSize;
+        startDecoding();
+    }
+
+    private void startDecoding() {
+        mInputBuffers = new ByteBuffer[mInputBufferCount];
+        for (int i = 0; i < mInputBufferCount; i++) {
+            mInputBuffers[i] = ByteBuffer.allocateDirect(mConfiguredInputBufferSize);
+        }
+        mOutputInUse = new boolean[mOutputBufferCount];
+        mPendingIndices = new int[mInputBufferCount];
+        mPendingPts = new long[mInputBufferCount];
+        mPendingFlags = new int[mInputBufferCount];
+        mPendingQueueTimes = new long[mInputBufferCount];
+        mPendingHead = 0;
+        mPendingCount = 0;
+        mReleased = false;
+        mStalled = false;
+
+        mThread = new Thread(this::decodeLoop, "FakeDecoder");
+        mThread.start();
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        ByteBuffer buffer = mInputBuffers[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    synchronized public void queueInputBuffer(int index, int size, long presentationTimeUs, int flags) {
+        int tail = (mPendingHead + mPendingCount) % mInputBufferCount;
+        mPendingIndices[tail] = index;
+        mPendingPts[tail] = presentationTimeUs;
+        mPendingFlags[tail] = flags;
+        mPendingQueueTimes[tail] = System.nanoTime();
+        mPendingCount++;
+        mQueuedInputs++;
+        notifyAll();
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        synchronized (this) {
+            mOutputInUse[index] = false;
+            if (render) {
+                mRenderedFrames++;
+            }
+            notifyAll();
+        }
+        if (render && mFrameRenderedListener != null) {
+            mFrameRenderedListener.run();
+        }
+    }
+
+    // Native LatencyCollector is not available off device. Tests measure latency by themselves.
+    @Override
+    public void onFrameInput(long frameIndex) {
+    }
+
+    @Override
+    public void onFrameOutput(long frameIndex) {
+    }
+
+    @Override
+    public String getName() {
+        return "fake.decoder";
+    }
+
+    @Override
+    public void flush() {
+        // Stop decoder thread. Queues are cleared by start().
+        release();
+    }
+
+    @Override
+    public void start() {
+        // New decoder thread notifies all input buffers again.
+        startDecoding();
+    }
+
+    @Override
+    public void prewarm(String mimeType) {
+    }
+
+    @Override
+    public void reset() {
+        // Decoder thread is the only state which needs stopping. Buffers are recreated by configure().
+        release();
+    }
+
+    @Override
+    public void release() {
+        synchronized (this) {
+            mReleased = true;
+            notifyAll();
+        }
+        if (mThread != null) {
+            while (mThread.isAlive()) {
+                try {
+                    mThread.join();
+                } catch (InterruptedException e) {
+                }
+            }
+            mThread = null;
+        }
+    }
+
+    synchronized public long getQueuedInputs() {
+        return mQueuedInputs;
+    }
+
+    synchronized public long getDecodedFrames() {
+        return mDecodedFrames;
+    }
+
+    synchronized public long getRenderedFrames() {
+        return mRenderedFrames;
+    }
+
+    private void decodeLoop() {
+        for (int i = 0; i < mInputBufferCount; i++) {
+            mCallback.onInputBufferAvailable(i);
+        }
+        long lastFinish = 0;
+        while (true) {
+            int index;
+            long pts;
+            int flags;
+            long queueTime;
+            synchronized (this) {
+                while (!mReleased && (mPendingCount == 0 || mStalled || needsOutput(mPendingFlags[mPendingHead]) && !hasFreeOutput())) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+                if (mReleased) {
+                    return;
+                }
+                index = mPendingIndices[mPendingHead];
+                pts = mPendingPts[mPendingHead];
+                flags = mPendingFlags[mPendingHead];
+                queueTime = mPendingQueueTimes[mPendingHead];
+                mPendingHead = (mPendingHead + 1) % mInputBufferCount;
+                mPendingCount--;
+            }
+            // Input is consumed.
+            mCallback.onInputBufferAvailable(index);
+            if (!needsOutput(flags)) {
+                continue;
+            }
+
+            long latency = mDecodeLatencyNs + (mLatencyJitterNs > 0 ? (long) (mRandom.nextDouble() * mLatencyJitterNs) : 0);
+            long finish = Math.max(queueTime, lastFinish) + latency;
+            long wait;
+            while ((wait = finish - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            lastFinish = finish;
+
+            int output;
+            synchronized (this) {
+                if (mReleased) {
+                    return;
+                }
+                output = 0;
+                while (mOutputInUse[output]) {
+                    output++;
+                }
+                mOutputInUse[output] = true;
+                mDecodedFrames++;
+            }
+            mCallback.onOutputBufferAvailable(output, pts);
+        }
+    }
+
+    // Codec config and non-final part of frame produce no output.
+    private static boolean needsOutput(int flags) {
+        return (flags & (MediaCodec.BUFFER_FLAG_CODEC_CONFIG | MediaCodec.BUFFER_FLAG_PARTIAL_FRAME)) == 0;
+    }
+
+    private boolean hasFreeOutput() {
+        for (boolean inUse : mOutputInUse) {
+            if (!inUse) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
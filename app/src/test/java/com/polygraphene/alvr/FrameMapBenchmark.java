@@ -0,0 +1,154 @@
+package com.polygraphene.alvr;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Benchmark of FrameMap against the previous synchronized LinkedList + map implementation.
+ * Reproduces the pattern driven by OutputFrameQueue at 120 fps: DecoderThread puts one entry per frame
+ * and codec callback thread looks up an entry a few frames later.
+ * Functional checks are in FrameMapTest.
+ */
+@Ignore("Timing benchmark. Run manually.")
+public class FrameMapBenchmark {
+    private static final long FRAME_INTERVAL_US = 1000 * 1000 / 120;
+    // Frames between queueInputBuffer and onOutputBufferAvailable.
+    private static final int DECODE_LAG = 3;
+
+    private static final int WARMUP_ITERATIONS = 1;
+    private static final int MEASUREMENT_ITERATIONS = 3;
+    private static final int FRAMES_PER_ITERATION = 1000 * 1000;
+    private static final int CONCURRENT_FRAMES = 200 * 1000;
+
+    private interface Map2 {
+        void put(long presentationTime, long frameIndex);
+
+        long find(long presentationTime);
+    }
+
+    private static class HashedMap implements Map2 {
+        private final FrameMap mMap = new FrameMap();
+
+        public void put(long presentationTime, long frameIndex) {
+            mMap.put(presentationTime, frameIndex);
+        }
+
+        public long find(long presentationTime) {
+            return mMap.find(presentationTime);
+        }
+    }
+
+    // Previous FrameMap implementation. HashMap stands in for LongSparseArray which is not available on JVM.
+    private static class SynchronizedMap implements Map2 {
+        private static final int MAX_FRAMES = 50;
+
+        private List<Long> mFrameHistory = new LinkedList<>();
+        private Map<Long, Long> mFrameHashMap = new HashMap<>();
+
+        public synchronized void put(long presentationTime, long frameIndex) {
+            mFrameHistory.add(presentationTime);
+            mFrameHashMap.put(presentationTime, frameIndex);
+            if (mFrameHistory.size() > MAX_FRAMES) {
+                Long key = mFrameHistory.remove(0);
+                mFrameHashMap.remove(key);
+            }
+        }
+
+        public synchronized long find(long presentationTime) {
+            Long f = mFrameHashMap.get(presentationTime);
+            return f != null ? f : -1;
+        }
+    }
+
+    private interface MapFactory {
+        Map2 create();
+    }
+
+    @Test
+    public void singleThread() {
+        runSingleThread("synchronized", SynchronizedMap::new);
+        runSingleThread("hashed", HashedMap::new);
+    }
+
+    @Test
+    public void concurrent() throws Exception {
+        runConcurrent("synchronized", SynchronizedMap::new);
+        runConcurrent("hashed", HashedMap::new);
+    }
+
+    private void runSingleThread(String name, MapFactory factory) {
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASUREMENT_ITERATIONS; i++) {
+            Map2 map = factory.create();
+            long start = System.nanoTime();
+            long checksum = 0;
+            for (int frame = 0; frame < FRAMES_PER_ITERATION; frame++) {
+                map.put(frame * FRAME_INTERVAL_US, frame);
+                if (frame >= DECODE_LAG) {
+                    checksum += map.find((frame - DECODE_LAG) * FRAME_INTERVAL_US);
+                }
+            }
+            double nsPerFrame = (double) (System.nanoTime() - start) / FRAMES_PER_ITERATION;
+            long n = FRAMES_PER_ITERATION - DECODE_LAG;
+            assertEquals(n * (n - 1) / 2, checksum);
+            if (i >= WARMUP_ITERATIONS) {
+                best = Math.min(best, nsPerFrame);
+            }
+        }
+        System.out.println(String.format("FrameMap single-thread %-12s: %6.1f ns per put+find", name, best));
+    }
+
+    private void runConcurrent(String name, MapFactory factory) throws Exception {
+        double best = Double.MAX_VALUE;
+        double bestFind = Double.MAX_VALUE;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASUREMENT_ITERATIONS; i++) {
+            Map2 map = factory.create();
+            // Written by writer after each put. Reader never looks up entries which are not put yet.
+            AtomicLong published = new AtomicLong();
+            int[] misses = new int[1];
+            // Time spent in find() on reader. Excludes waiting for writer, which dominates on few cores.
+            long[] findNs = new long[1];
+
+            Thread reader = new Thread(() -> {
+                for (int frame = 0; frame < CONCURRENT_FRAMES; frame++) {
+                    while (published.get() <= frame) {
+                        Thread.yield();
+                    }
+                    long findStart = System.nanoTime();
+                    long found = map.find(frame * FRAME_INTERVAL_US);
+                    findNs[0] += System.nanoTime() - findStart;
+                    if (found != frame) {
+                        misses[0]++;
+                    }
+                }
+            });
+            long start = System.nanoTime();
+            reader.start();
+            for (int frame = 0; frame < CONCURRENT_FRAMES; frame++) {
+                map.put(frame * FRAME_INTERVAL_US, frame);
+                published.set(frame + 1);
+                if (frame % DECODE_LAG == 0) {
+                    // Let reader catch up like codec does.
+                    Thread.yield();
+                }
+            }
+            reader.join();
+            double nsPerFrame = (double) (System.nanoTime() - start) / CONCURRENT_FRAMES;
+            assertEquals(0, misses[0]);
+            if (i >= WARMUP_ITERATIONS) {
+                best = Math.min(best, nsPerFrame);
+                bestFind = Math.min(bestFind, (double) findNs[0] / CONCURRENT_FRAMES);
+            }
+        }
+        System.out.println(String.format("FrameMap concurrent %-12s: %6.1f ns per frame, %5.1f ns per find", name, best,
+                bestFind));
+    }
+}
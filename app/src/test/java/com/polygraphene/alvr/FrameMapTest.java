@@ -0,0 +1,89 @@
+package com.polygraphene.alvr;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+public class FrameMapTest {
+    private static final long FRAME_INTERVAL_US = 1000 * 1000 / 120;
+    // Entries which FrameMap must keep.
+    private static final int LIVE_FRAMES = 64;
+    private static final int CONCURRENT_FRAMES = 100 * 1000;
+
+    @Test
+    public void evictsOldEntries() {
+        FrameMap map = new FrameMap();
+        for (int i = 0; i < 1000; i++) {
+            map.put(i * FRAME_INTERVAL_US, i);
+        }
+        assertEquals(999, map.find(999 * FRAME_INTERVAL_US));
+        assertEquals(-1, map.find(0));
+        assertEquals(-1, map.find(1));
+    }
+
+    @Test
+    public void findsLatestEntries() {
+        // Keys from frameIndex based PTS and from System.nanoTime() / 1000 with jitter.
+        Random random = new Random(1);
+        long[] keys = new long[100 * 1000];
+        long[] jitteredKeys = new long[keys.length];
+        long time = 123456789;
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = (i + 1) * FRAME_INTERVAL_US;
+            time += FRAME_INTERVAL_US - 500 + random.nextInt(1000);
+            jitteredKeys[i] = time;
+        }
+        for (long[] k : new long[][]{keys, jitteredKeys}) {
+            FrameMap map = new FrameMap();
+            for (int i = 0; i < k.length; i++) {
+                map.put(k[i], i);
+                for (int j = Math.max(0, i - LIVE_FRAMES + 1); j <= i; j++) {
+                    assertEquals(j, map.find(k[j]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void overwritesSameKey() {
+        FrameMap map = new FrameMap();
+        map.put(FRAME_INTERVAL_US, 1);
+        map.put(FRAME_INTERVAL_US, 2);
+        assertEquals(2, map.find(FRAME_INTERVAL_US));
+        assertEquals(-1, map.find(2 * FRAME_INTERVAL_US));
+    }
+
+    @Test
+    public void findsPublishedEntriesFromOtherThread() throws Exception {
+        FrameMap map = new FrameMap();
+        // Written by writer after each put. Reader never looks up entries which are not put yet.
+        AtomicLong published = new AtomicLong();
+        // Written by reader. Writer stays within live entries of reader, like codec outputs a few frames later.
+        AtomicLong consumed = new AtomicLong();
+        int[] misses = new int[1];
+        Thread reader = new Thread(() -> {
+            for (int frame = 0; frame < CONCURRENT_FRAMES; frame++) {
+                while (published.get() <= frame) {
+                    Thread.yield();
+                }
+                if (map.find(frame * FRAME_INTERVAL_US) != frame) {
+                    misses[0]++;
+                }
+                consumed.set(frame + 1);
+            }
+        });
+        reader.start();
+        for (int frame = 0; frame < CONCURRENT_FRAMES; frame++) {
+            while (frame - consumed.get() >= LIVE_FRAMES / 2) {
+                Thread.yield();
+            }
+            map.put(frame * FRAME_INTERVAL_US, frame);
+            published.set(frame + 1);
+        }
+        reader.join();
+        assertEquals(0, misses[0]);
+    }
+}
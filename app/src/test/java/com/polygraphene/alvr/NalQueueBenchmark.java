@@ -0,0 +1,244 @@
+package com.polygraphene.alvr;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * JMH-style benchmark of NalQueue against the previous synchronized LinkedList implementation.
+ * Producer pushes frames at 72-120 fps with periodic bursts of (SPS/PPS + IDR) and consumer drains them
+ * like DecoderThread does. Reports hand-off latency percentiles and raw throughput.
+ * Functional checks are in NalQueueTest.
+ */
+@Ignore("Timing benchmark. Run manually.")
+public class NalQueueBenchmark {
+    private static final int[] FPS_LIST = {72, 90, 120};
+    private static final int FRAMES_PER_RUN = 180;
+    private static final int IDR_INTERVAL = 20;
+    private static final int IDR_BURST = 3;
+    private static final int P_FRAME_SIZE = 30 * 1000;
+    private static final int IDR_FRAME_SIZE = 300 * 1000;
+    private static final int CONFIG_SIZE = 100;
+
+    private static final int WARMUP_ITERATIONS = 1;
+    private static final int MEASUREMENT_ITERATIONS = 2;
+    private static final int THROUGHPUT_OPS = 100 * 1000;
+
+    // Common view of both implementations.
+    private interface Queue2 {
+        NAL obtain(int length);
+
+        void add(NAL nal);
+
+        NAL peek();
+
+        void remove();
+    }
+
+    private static class RingQueue implements Queue2 {
+        private final NalQueue mQueue = new NalQueue();
+
+        public NAL obtain(int length) {
+            return mQueue.obtain(length);
+        }
+
+        public void add(NAL nal) {
+            mQueue.add(nal);
+        }
+
+        public NAL peek() {
+            return mQueue.peek();
+        }
+
+        public void remove() {
+            mQueue.remove();
+        }
+    }
+
+    // Previous NalQueue implementation.
+    private static class SynchronizedQueue implements Queue2 {
+        private Queue<NAL> mUnusedList = new LinkedList<>();
+        private Queue<NAL> mNalQueue = new LinkedList<>();
+
+        SynchronizedQueue() {
+            for (int i = 0; i < 100; i++) {
+                NAL nal = new NAL();
+                nal.buf = new byte[100 * 1000];
+                mUnusedList.add(nal);
+            }
+        }
+
+        synchronized public NAL obtain(int length) {
+            NAL nal = mUnusedList.poll();
+            if (nal == null) {
+                return null;
+            }
+            if (nal.buf.length < length) {
+                nal.buf = new byte[length];
+            }
+            nal.length = length;
+            return nal;
+        }
+
+        synchronized public void add(NAL nal) {
+            mNalQueue.add(nal);
+        }
+
+        synchronized public NAL peek() {
+            return mNalQueue.peek();
+        }
+
+        synchronized public void remove() {
+            NAL nal = mNalQueue.remove();
+            mUnusedList.add(nal);
+        }
+    }
+
+    private interface QueueFactory {
+        Queue2 create();
+    }
+
+    @Test
+    public void pacedFrames() throws Exception {
+        for (int fps : FPS_LIST) {
+            runPaced("synchronized", SynchronizedQueue::new, fps);
+            runPaced("spsc-ring", RingQueue::new, fps);
+        }
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        runThroughput("synchronized", SynchronizedQueue::new);
+        runThroughput("spsc-ring", RingQueue::new);
+    }
+
+    private void runPaced(String name, QueueFactory factory, int fps) throws Exception {
+        long[] latencies = null;
+        // Same queue is used through a session, so buffers allocated in warmup are reused like in steady state.
+        Queue2 queue = factory.create();
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASUREMENT_ITERATIONS; i++) {
+            long[] result = runPacedIteration(queue, fps);
+            if (i >= WARMUP_ITERATIONS) {
+                latencies = latencies == null ? result : concat(latencies, result);
+            }
+        }
+        Arrays.sort(latencies);
+        System.out.println(String.format("NalQueue paced %-12s %3d fps: hand-off p50=%6.1f us p99=%7.1f us max=%7.1f us (n=%d)",
+                name, fps, latencies[latencies.length / 2] / 1000.0,
+                latencies[latencies.length * 99 / 100] / 1000.0,
+                latencies[latencies.length - 1] / 1000.0, latencies.length));
+    }
+
+    private long[] runPacedIteration(Queue2 queue, int fps) throws Exception {
+        int nalCount = countNals();
+        long[] pushedAt = new long[nalCount];
+        long[] latencies = new long[nalCount];
+
+        Thread consumer = new Thread(() -> {
+            byte[] codecBuffer = new byte[IDR_FRAME_SIZE];
+            int consumed = 0;
+            while (consumed < nalCount) {
+                NAL nal = queue.peek();
+                if (nal == null) {
+                    Thread.yield();
+                    continue;
+                }
+                // Simulate copy into codec input buffer.
+                System.arraycopy(nal.buf, 0, codecBuffer, 0, nal.length);
+                latencies[consumed] = System.nanoTime() - pushedAt[(int) nal.frameIndex];
+                queue.remove();
+                consumed++;
+            }
+        });
+        consumer.start();
+
+        long interval = 1000L * 1000 * 1000 / fps;
+        long next = System.nanoTime();
+        int nalIndex = 0;
+        for (int frame = 0; frame < FRAMES_PER_RUN; frame++) {
+            boolean idr = frame % IDR_INTERVAL < IDR_BURST;
+            if (idr) {
+                nalIndex = push(queue, CONFIG_SIZE, nalIndex, pushedAt);
+                nalIndex = push(queue, IDR_FRAME_SIZE, nalIndex, pushedAt);
+            } else {
+                nalIndex = push(queue, P_FRAME_SIZE, nalIndex, pushedAt);
+            }
+            if (!idr || frame % IDR_INTERVAL == IDR_BURST - 1) {
+                // IDR bursts are pushed back-to-back.
+                next += interval * (idr ? IDR_BURST : 1);
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+        }
+        consumer.join();
+        assertEquals(nalCount, nalIndex);
+        return latencies;
+    }
+
+    private int push(Queue2 queue, int length, int nalIndex, long[] pushedAt) {
+        NAL nal;
+        while ((nal = queue.obtain(length)) == null) {
+            Thread.yield();
+        }
+        nal.frameIndex = nalIndex;
+        nal.buf[0] = (byte) nalIndex;
+        pushedAt[nalIndex] = System.nanoTime();
+        queue.add(nal);
+        return nalIndex + 1;
+    }
+
+    private void runThroughput(String name, QueueFactory factory) throws Exception {
+        double best = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASUREMENT_ITERATIONS; i++) {
+            Queue2 queue = factory.create();
+            Thread consumer = new Thread(() -> {
+                int consumed = 0;
+                while (consumed < THROUGHPUT_OPS) {
+                    if (queue.peek() == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    queue.remove();
+                    consumed++;
+                }
+            });
+            long start = System.nanoTime();
+            consumer.start();
+            for (int op = 0; op < THROUGHPUT_OPS; op++) {
+                NAL nal;
+                while ((nal = queue.obtain(P_FRAME_SIZE)) == null) {
+                    Thread.yield();
+                }
+                queue.add(nal);
+            }
+            consumer.join();
+            double opsPerSec = THROUGHPUT_OPS * 1e9 / (System.nanoTime() - start);
+            if (i >= WARMUP_ITERATIONS) {
+                best = Math.max(best, opsPerSec);
+            }
+        }
+        System.out.println(String.format("NalQueue throughput %-12s: %.0f ops/s", name, best));
+    }
+
+    private static int countNals() {
+        int count = 0;
+        for (int frame = 0; frame < FRAMES_PER_RUN; frame++) {
+            count += frame % IDR_INTERVAL < IDR_BURST ? 2 : 1;
+        }
+        return count;
+    }
+
+    private static long[] concat(long[] a, long[] b) {
+        long[] ret = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, ret, a.length, b.length);
+        return ret;
+    }
+}
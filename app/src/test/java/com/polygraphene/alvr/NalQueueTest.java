@@ -0,0 +1,117 @@
+package com.polygraphene.alvr;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class NalQueueTest {
+    private static final int QUEUE_SIZE = 128;
+    private static final int P_FRAME_SIZE = 30 * 1000;
+    private static final int IDR_FRAME_SIZE = 300 * 1000;
+    private static final int HAND_OFF_COUNT = 10 * 1000;
+
+    @Test
+    public void removesInAddedOrder() {
+        NalQueue queue = new NalQueue();
+        for (int i = 0; i < 3; i++) {
+            push(queue, P_FRAME_SIZE, i);
+        }
+        assertEquals(3, queue.size());
+        for (int i = 0; i < 3; i++) {
+            NAL nal = queue.peek();
+            assertEquals(i, nal.frameIndex);
+            assertEquals(P_FRAME_SIZE, nal.length);
+            assertEquals(i, nal.buf[0]);
+            queue.remove();
+        }
+        assertNull(queue.peek());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void reusesReleasedBuffers() {
+        NalQueue queue = new NalQueue(true, 16 * 1024 * 1024);
+        push(queue, IDR_FRAME_SIZE, 0);
+        push(queue, P_FRAME_SIZE, 1);
+        queue.clear();
+        long bytes = queue.getBufferBytes();
+
+        // Same size classes. Slightly larger IDR must not need new buffer either.
+        for (int i = 0; i < 100; i++) {
+            push(queue, IDR_FRAME_SIZE + i * 1000, i);
+            push(queue, P_FRAME_SIZE, i);
+            queue.remove();
+            queue.remove();
+        }
+        assertEquals(bytes, queue.getBufferBytes());
+    }
+
+    @Test
+    public void overflowsWhenFull() {
+        NalQueue queue = new NalQueue();
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            push(queue, P_FRAME_SIZE, i);
+        }
+        assertEquals(0, queue.getOverflowCount());
+        assertNull(queue.obtain(P_FRAME_SIZE));
+        assertEquals(1, queue.getOverflowCount());
+
+        queue.remove();
+        push(queue, P_FRAME_SIZE, QUEUE_SIZE);
+        assertEquals(QUEUE_SIZE, queue.size());
+    }
+
+    @Test
+    public void overflowsOnMemoryCap() {
+        NalQueue queue = new NalQueue(false, 1024 * 1024);
+        assertNull(queue.obtain(2 * 1024 * 1024));
+        assertEquals(1, queue.getOverflowCount());
+        // Failed request doesn't hold memory.
+        push(queue, IDR_FRAME_SIZE, 0);
+    }
+
+    @Test
+    public void handsOffAcrossThreadsInOrder() throws Exception {
+        NalQueue queue = new NalQueue();
+        long[] mismatches = new long[1];
+        Thread consumer = new Thread(() -> {
+            for (int i = 0; i < HAND_OFF_COUNT; ) {
+                NAL nal = queue.peek();
+                if (nal == null) {
+                    Thread.yield();
+                    continue;
+                }
+                if (nal.frameIndex != i || nal.buf[0] != (byte) i) {
+                    mismatches[0]++;
+                }
+                queue.remove();
+                i++;
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < HAND_OFF_COUNT; i++) {
+            NAL nal;
+            while ((nal = queue.obtain(i % 10 == 0 ? IDR_FRAME_SIZE : P_FRAME_SIZE)) == null) {
+                Thread.yield();
+            }
+            nal.frameIndex = i;
+            nal.buf[0] = (byte) i;
+            queue.add(nal);
+        }
+        consumer.join();
+        assertEquals(0, mismatches[0]);
+        assertEquals(0, queue.size());
+    }
+
+    private static void push(NalQueue queue, int length, long frameIndex) {
+        NAL nal = queue.obtain(length);
+        assertNotNull(nal);
+        nal.frameIndex = frameIndex;
+        if (nal.buf != null) {
+            nal.buf[0] = (byte) frameIndex;
+        }
+        queue.add(nal);
+    }
+}
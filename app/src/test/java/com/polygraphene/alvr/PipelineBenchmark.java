@@ -0,0 +1,145 @@
+package com.polygraphene.alvr;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.polygraphene.alvr.PipelineTest.CONFIG;
+import static com.polygraphene.alvr.PipelineTest.DECODE_LATENCY_NS;
+import static com.polygraphene.alvr.PipelineTest.IDR_FRAME_SIZE;
+import static com.polygraphene.alvr.PipelineTest.IDR_HEADER;
+import static com.polygraphene.alvr.PipelineTest.INPUT_BUFFER_COUNT;
+import static com.polygraphene.alvr.PipelineTest.INPUT_BUFFER_SIZE;
+import static com.polygraphene.alvr.PipelineTest.OUTPUT_BUFFER_COUNT;
+import static com.polygraphene.alvr.PipelineTest.P_FRAME_SIZE;
+import static com.polygraphene.alvr.PipelineTest.P_HEADER;
+import static com.polygraphene.alvr.PipelineTest.RENDER_POLL_NS;
+import static com.polygraphene.alvr.PipelineTest.push;
+import static com.polygraphene.alvr.PipelineTest.startDecoder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Headless load test of NAL hand-off -> DecoderThread -> OutputFrameQueue -> render, with FakeDecoderBackend
+ * standing in for MediaCodec. Producer pushes H265 frames like UdpReceiverThread at 72-120 fps and renderer
+ * latches frames like OvrThread. Reports throughput and NAL push -> render latency percentiles.
+ * Functional checks are in PipelineTest.
+ */
+@Ignore("Timing benchmark. Run manually.")
+public class PipelineBenchmark {
+    private static final int[] FPS_LIST = {72, 90, 120};
+    private static final int FRAMES_PER_RUN = 120;
+    private static final int THROUGHPUT_FRAMES = 1000;
+    private static final int IDR_INTERVAL = 60;
+    private static final long DECODE_JITTER_NS = 1000 * 1000;
+
+    private volatile boolean mRendererStopped;
+
+    private static class Result {
+        int pushed;
+        int rendered;
+        long decoded;
+        double seconds;
+        long[] latencies;
+    }
+
+    @Test
+    public void pacedFrameRates() throws Exception {
+        for (int fps : FPS_LIST) {
+            Result result = run(FRAMES_PER_RUN, 1000 * 1000 * 1000 / fps);
+            // Decoder is faster than frame interval, so every frame must be decoded.
+            assertEquals(result.pushed, result.decoded);
+            report(fps + " fps", result);
+        }
+    }
+
+    @Test
+    public void unpacedThroughput() throws Exception {
+        Result result = run(THROUGHPUT_FRAMES, 0);
+        assertEquals(result.pushed, result.decoded);
+        assertTrue(result.rendered > 0);
+        report("unpaced", result);
+    }
+
+    private Result run(int frames, long intervalNs) throws Exception {
+        FakeDecoderBackend backend = new FakeDecoderBackend(INPUT_BUFFER_COUNT, INPUT_BUFFER_SIZE, OUTPUT_BUFFER_COUNT,
+                DECODE_LATENCY_NS, DECODE_JITTER_NS, 1);
+        long[] pushTimes = new long[frames];
+        long[] latencies = new long[frames];
+        int[] rendered = new int[1];
+        DecoderThread decoderThread = startDecoder(backend, new AtomicInteger());
+
+        // Renderer latches available frame like OvrThread.render().
+        mRendererStopped = false;
+        Thread renderer = new Thread(() -> {
+            while (!mRendererStopped) {
+                long frameIndex = decoderThread.clearAvailable(null);
+                if (frameIndex >= 0 && frameIndex < frames) {
+                    latencies[rendered[0]++] = System.nanoTime() - pushTimes[(int) frameIndex];
+                }
+                LockSupport.parkNanos(RENDER_POLL_NS);
+            }
+        }, "Renderer");
+        renderer.start();
+
+        long start = System.nanoTime();
+        int pushed = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            if (intervalNs > 0) {
+                long wait;
+                while ((wait = start + frame * intervalNs - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            if (frame % IDR_INTERVAL == 0) {
+                push(decoderThread, CONFIG, CONFIG.length, frame);
+                pushTimes[frame] = System.nanoTime();
+                push(decoderThread, IDR_HEADER, IDR_FRAME_SIZE, frame);
+            } else {
+                pushTimes[frame] = System.nanoTime();
+                push(decoderThread, P_HEADER, P_FRAME_SIZE, frame);
+            }
+            pushed++;
+        }
+        // Wait until all frames are decoded and latched.
+        long deadline = System.nanoTime() + 5L * 1000 * 1000 * 1000;
+        while ((decoderThread.getPendingNALCount() > 0 || backend.getDecodedFrames() < pushed)
+                && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(1000 * 1000);
+        }
+        LockSupport.parkNanos(20 * 1000 * 1000);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        mRendererStopped = true;
+        renderer.join();
+        decoderThread.stopAndWait();
+
+        Result result = new Result();
+        result.pushed = pushed;
+        result.rendered = rendered[0];
+        result.decoded = backend.getDecodedFrames();
+        result.seconds = seconds;
+        result.latencies = Arrays.copyOf(latencies, rendered[0]);
+        return result;
+    }
+
+    private static void report(String name, Result result) {
+        long[] sorted = result.latencies.clone();
+        Arrays.sort(sorted);
+        System.out.println(String.format("Pipeline %-8s: pushed %4d decoded %4d rendered %4d, %7.1f frames/s,"
+                        + " latency p50 %6.2f ms p99 %6.2f ms max %6.2f ms",
+                name, result.pushed, result.decoded, result.rendered, result.rendered / result.seconds,
+                percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.99) / 1e6,
+                (sorted.length > 0 ? sorted[sorted.length - 1] : 0) / 1e6));
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+}
@@ -0,0 +1,336 @@
+package com.polygraphene.alvr;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Headless checks of NAL hand-off -> DecoderThread -> OutputFrameQueue -> render, with FakeDecoderBackend
+ * standing in for MediaCodec. Producer pushes H265 frames like UdpReceiverThread and renderer latches frames
+ * like OvrThread. Timing runs are in PipelineBenchmark.
+ */
+public class PipelineTest {
+    static final int P_FRAME_SIZE = 30 * 1000;
+    static final int IDR_FRAME_SIZE = 150 * 1000;
+    private static final int LARGE_IDR_FRAME_SIZE = 700 * 1000;
+
+    private static final int CODEC_H264 = 0;
+    private static final int CODEC_H265 = 1;
+    static final int INPUT_BUFFER_COUNT = 8;
+    static final int INPUT_BUFFER_SIZE = 256 * 1024;
+    static final int OUTPUT_BUFFER_COUNT = 4;
+    static final long DECODE_LATENCY_NS = 3 * 1000 * 1000;
+    static final long RENDER_POLL_NS = 100 * 1000;
+    private static final int MAX_PENDING_NALS = 8;
+    // Renderer slower than 90 fps stream, so decoded frames back up in queue.
+    private static final long SLOW_RENDER_NS = 25 * 1000 * 1000;
+    private static final int STALE_TEST_FRAMES = 90;
+    private static final int STALE_TEST_QUEUE_SIZE = 3;
+    private static final long MAX_FRAME_AGE_NS = 30 * 1000 * 1000;
+
+    // H265 NAL headers: VPS(32), SPS(33), PPS(34), IDR_W_RADL(19), TRAIL_R(1).
+    static final byte[] CONFIG = {
+            0, 0, 0, 1, 0x40, 0x01, 0x0c, 0x01,
+            0, 0, 0, 1, 0x42, 0x01, 0x01, 0x01,
+            0, 0, 0, 1, 0x44, 0x01, (byte) 0xc0, (byte) 0xf2
+    };
+    static final byte[] IDR_HEADER = {0, 0, 0, 1, 0x26, 0x01};
+    // CRA_NUT(21). IRAP without in-band parameter sets.
+    private static final byte[] CRA_HEADER = {0, 0, 0, 1, 0x2a, 0x01};
+    static final byte[] P_HEADER = {0, 0, 0, 1, 0x02, 0x01};
+    // H264 NAL headers: SPS(7), PPS(8), IDR(5), non-IDR(1).
+    private static final byte[] H264_CONFIG = {
+            0, 0, 0, 1, 0x67, 0x64, 0x00, 0x1f,
+            0, 0, 0, 1, 0x68, (byte) 0xee, 0x3c, (byte) 0x80
+    };
+    private static final byte[] H264_IDR_HEADER = {0, 0, 0, 1, 0x65, (byte) 0x88};
+    private static final byte[] H264_P_HEADER = {0, 0, 0, 1, 0x41, (byte) 0x9a};
+
+    private volatile boolean mRendererStopped;
+
+    @Test
+    public void codecSwap() throws Exception {
+        FakeDecoderBackend backend = new FakeDecoderBackend(INPUT_BUFFER_COUNT, INPUT_BUFFER_SIZE, OUTPUT_BUFFER_COUNT,
+                DECODE_LATENCY_NS, 0, 1);
+        DecoderThread decoderThread = startDecoder(backend, new AtomicInteger());
+        // Latch frames immediately, so that decoder never stalls on output buffers.
+        backend.setFrameRenderedListener(() -> {
+            decoderThread.onFrameAvailable();
+            decoderThread.clearAvailable(null);
+        });
+
+        push(decoderThread, CONFIG, CONFIG.length, 0);
+        push(decoderThread, IDR_HEADER, IDR_FRAME_SIZE, 0);
+        push(decoderThread, P_HEADER, P_FRAME_SIZE, 1);
+        waitDecoded(backend, 2);
+
+        // Decoder is reconfigured in place on decode thread. No thread restart.
+        decoderThread.onConnect(CODEC_H264, 1, 0);
+        push(decoderThread, H264_CONFIG, H264_CONFIG.length, 2);
+        push(decoderThread, H264_IDR_HEADER, IDR_FRAME_SIZE, 2);
+        push(decoderThread, H264_P_HEADER, P_FRAME_SIZE, 3);
+        waitDecoded(backend, 4);
+        decoderThread.stopAndWait();
+
+        assertEquals(4, backend.getDecodedFrames());
+    }
+
+    @Test
+    public void stallRecovery() throws Exception {
+        FakeDecoderBackend backend = new FakeDecoderBackend(INPUT_BUFFER_COUNT, INPUT_BUFFER_SIZE, OUTPUT_BUFFER_COUNT,
+                DECODE_LATENCY_NS, 0, 1);
+        AtomicInteger idrRequests = new AtomicInteger();
+        DecoderThread decoderThread = startDecoder(backend, idrRequests);
+        backend.setFrameRenderedListener(() -> {
+            decoderThread.onFrameAvailable();
+            decoderThread.clearAvailable(null);
+        });
+        DecoderStatistics statistics = decoderThread.getStatistics();
+
+        push(decoderThread, CONFIG, CONFIG.length, 0);
+        push(decoderThread, IDR_HEADER, IDR_FRAME_SIZE, 0);
+        waitDecoded(backend, 1);
+
+        // Decoder hangs. Keep streaming P-Frames at 90 fps until watchdog flushes decoder.
+        backend.stall();
+        long frame = 1;
+        long deadline = System.nanoTime() + 2L * 1000 * 1000 * 1000;
+        while (statistics.getStallCount() == 0 && System.nanoTime() < deadline) {
+            push(decoderThread, P_HEADER, P_FRAME_SIZE, frame++);
+            LockSupport.parkNanos(1000 * 1000 * 1000 / 90);
+        }
+        assertEquals(1, statistics.getStallCount());
+        assertEquals(1, idrRequests.get());
+
+        // Server responds with IDR.
+        push(decoderThread, CONFIG, CONFIG.length, frame);
+        push(decoderThread, IDR_HEADER, IDR_FRAME_SIZE, frame);
+        push(decoderThread, P_HEADER, P_FRAME_SIZE, frame + 1);
+        waitDecoded(backend, 3);
+        decoderThread.stopAndWait();
+
+        assertEquals(3, backend.getDecodedFrames());
+        assertEquals(1, statistics.getStallRecoveredCount());
+    }
+
+    @Test
+    public void overloadRecoveredByIrapWithoutConfig() throws Exception {
+        FakeDecoderBackend backend = new FakeDecoderBackend(INPUT_BUFFER_COUNT, INPUT_BUFFER_SIZE, OUTPUT_BUFFER_COUNT,
+                DECODE_LATENCY_NS, 0, 1);
+        DecoderThread decoderThread = startDecoder(backend, new AtomicInteger());
+        DecoderStatistics statistics = decoderThread.getStatistics();
+
+        push(decoderThread, CONFIG, CONFIG.length, 0);
+        push(decoderThread, IDR_HEADER, IDR_FRAME_SIZE, 0);
+        waitDecoded(backend, 1);
+
+        // Request beyond buffer memory cap fails like full queue and starts overload.
+        assertNull(decoderThread.obtainNAL(Integer.MAX_VALUE / 2));
+        // Dropped until next IRAP.
+        push(decoderThread, P_HEADER, P_FRAME_SIZE, 1);
+        // Server repeats no parameter sets. Decoder resumes from CRA with last config.
+        push(decoderThread, CRA_HEADER, IDR_FRAME_SIZE, 2);
+        push(decoderThread, P_HEADER, P_FRAME_SIZE, 3);
+        push(decoderThread, P_HEADER, P_FRAME_SIZE, 4);
+        waitDecoded(backend, 4);
+        decoderThread.stopAndWait();
+
+        assertEquals(4, backend.getDecodedFrames());
+        assertEquals(1, statistics.getOverloadCount());
+        assertFalse(statistics.isOverloaded());
+    }
+
+    @Test
+    public void largeFrameResizesInputBuffers() throws Exception {
+        FakeDecoderBackend backend = new FakeDecoderBackend(INPUT_BUFFER_COUNT, INPUT_BUFFER_SIZE, OUTPUT_BUFFER_COUNT,
+                DECODE_LATENCY_NS, 0, 1);
+        DecoderThread decoderThread = startDecoder(backend, new AtomicInteger());
+        backend.setFrameRenderedListener(() -> {
+            decoderThread.onFrameAvailable();
+            decoderThread.clearAvailable(null);
+        });
+        DecoderStatistics statistics = decoderThread.getStatistics();
+
+        // Larger than default input size and arrives after config was fed. Split with partial frame flag and
+        // decoded as one frame.
+        push(decoderThread, CONFIG, CONFIG.length, 0);
+        while (decoderThread.getPendingNALCount() > 0) {
+            LockSupport.parkNanos(100 * 1000);
+        }
+        push(decoderThread, IDR_HEADER, LARGE_IDR_FRAME_SIZE, 0);
+        push(decoderThread, P_HEADER, P_FRAME_SIZE, 1);
+        waitDecoded(backend, 2);
+        long splits = statistics.getInputSplitCount();
+        assertTrue(splits > 0);
+        assertEquals(0, statistics.getInputResizeCount());
+
+        // Decoder is resized on next config. Next IDR fits into one buffer.
+        push(decoderThread, CONFIG, CONFIG.length, 2);
+        push(decoderThread, IDR_HEADER, LARGE_IDR_FRAME_SIZE, 2);
+        push(decoderThread, P_HEADER, P_FRAME_SIZE, 3);
+        waitDecoded(backend, 4);
+        decoderThread.stopAndWait();
+
+        assertEquals(4, backend.getDecodedFrames());
+        assertEquals(1, statistics.getInputResizeCount());
+        assertEquals(splits, statistics.getInputSplitCount());
+    }
+
+    @Test
+    public void partialFrameSurvivesOverload() throws Exception {
+        FakeDecoderBackend backend = new FakeDecoderBackend(INPUT_BUFFER_COUNT, INPUT_BUFFER_SIZE, OUTPUT_BUFFER_COUNT,
+                DECODE_LATENCY_NS, 0, 1);
+        DecoderThread decoderThread = startDecoder(backend, new AtomicInteger());
+        DecoderStatistics statistics = decoderThread.getStatistics();
+
+        push(decoderThread, CONFIG, CONFIG.length, 0);
+        push(decoderThread, IDR_HEADER, IDR_FRAME_SIZE, 0);
+        waitDecoded(backend, 1);
+
+        // Decoder holds inputs, so P-Frame larger than all input buffers is left half fed.
+        backend.stall();
+        // Input buffers are at least MIN_INPUT_SIZE (512 KB) of DecoderThread.
+        push(decoderThread, P_HEADER, INPUT_BUFFER_COUNT * 1024 * 1024, 1);
+        while (statistics.getInputSplitCount() < INPUT_BUFFER_COUNT) {
+            LockSupport.parkNanos(100 * 1000);
+        }
+        // Overload while codec has open access unit. Rest of P-Frame must be fed, not dropped.
+        assertNull(decoderThread.obtainNAL(Integer.MAX_VALUE / 2));
+        push(decoderThread, CRA_HEADER, IDR_FRAME_SIZE, 2);
+        backend.resume();
+        waitDecoded(backend, 3);
+        push(decoderThread, P_HEADER, P_FRAME_SIZE, 3);
+        waitDecoded(backend, 4);
+        decoderThread.stopAndWait();
+
+        assertEquals(4, backend.getDecodedFrames());
+        assertEquals(1, statistics.getOverloadCount());
+        assertFalse(statistics.isOverloaded());
+    }
+
+    @Test
+    public void staleFramesSkippedBehindSlowRender() throws Exception {
+        long neverAge = 0;
+        for (OutputFrameQueue.StaleFramePolicy policy : OutputFrameQueue.StaleFramePolicy.values()) {
+            FakeDecoderBackend backend = new FakeDecoderBackend(INPUT_BUFFER_COUNT, INPUT_BUFFER_SIZE,
+                    OUTPUT_BUFFER_COUNT, DECODE_LATENCY_NS, 0, 1);
+            DecoderThread decoderThread = startDecoder(backend, new AtomicInteger());
+            DecoderStatistics statistics = decoderThread.getStatistics();
+            decoderThread.onChangeSettings(STALE_TEST_QUEUE_SIZE);
+            // Push time stands in for tracking timestamp.
+            long[] pushTimes = new long[STALE_TEST_FRAMES];
+            decoderThread.setStaleFramePolicy(policy, MAX_FRAME_AGE_NS,
+                    frameIndex -> frameIndex < STALE_TEST_FRAMES ? System.nanoTime() - pushTimes[(int) frameIndex] : -1);
+
+            mRendererStopped = false;
+            Thread renderer = new Thread(() -> {
+                while (!mRendererStopped) {
+                    if (!decoderThread.discardStaleFrames(null) && decoderThread.clearAvailable(null) >= 0) {
+                        LockSupport.parkNanos(SLOW_RENDER_NS);
+                    } else {
+                        LockSupport.parkNanos(RENDER_POLL_NS);
+                    }
+                }
+            }, "Renderer");
+            renderer.start();
+
+            long start = System.nanoTime();
+            for (int frame = 0; frame < STALE_TEST_FRAMES; frame++) {
+                long wait;
+                while ((wait = start + frame * 1000L * 1000 * 1000 / 90 - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                pushTimes[frame] = System.nanoTime();
+                if (frame == 0) {
+                    push(decoderThread, CONFIG, CONFIG.length, frame);
+                    push(decoderThread, IDR_HEADER, IDR_FRAME_SIZE, frame);
+                } else {
+                    push(decoderThread, P_HEADER, P_FRAME_SIZE, frame);
+                }
+            }
+            LockSupport.parkNanos(100 * 1000 * 1000);
+            mRendererStopped = true;
+            renderer.join();
+            decoderThread.stopAndWait();
+
+            assertTrue(statistics.getRenderedFrameCount() > 0);
+            if (policy == OutputFrameQueue.StaleFramePolicy.NEVER) {
+                assertEquals(0, statistics.getStaleFrameCount());
+                neverAge = statistics.getAverageRenderedFrameAgeNs();
+            } else {
+                assertTrue(statistics.getStaleFrameCount() > 0);
+                assertTrue(statistics.getAverageRenderedFrameAgeNs() < neverAge);
+            }
+        }
+    }
+
+    static void waitDecoded(FakeDecoderBackend backend, long frames) {
+        long deadline = System.nanoTime() + 5L * 1000 * 1000 * 1000;
+        while (backend.getDecodedFrames() < frames && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(100 * 1000);
+        }
+    }
+
+    static DecoderThread startDecoder(FakeDecoderBackend backend, AtomicInteger idrRequests)
+            throws InterruptedException {
+        Object prepared = new Object();
+        boolean[] isPrepared = new boolean[1];
+
+        DecoderThread decoderThread = new DecoderThread(backend, null, new DecoderThread.DecoderCallback() {
+            @Override
+            public void onPrepared() {
+                synchronized (prepared) {
+                    isPrepared[0] = true;
+                    prepared.notifyAll();
+                }
+            }
+
+            @Override
+            public void onDestroy() {
+            }
+
+            @Override
+            public void onFrameDecoded() {
+            }
+
+            @Override
+            public void onRequestIDR() {
+                idrRequests.incrementAndGet();
+            }
+        });
+        backend.setFrameRenderedListener(decoderThread::onFrameAvailable);
+        decoderThread.start();
+        decoderThread.onConnect(CODEC_H265, 1, 0);
+        synchronized (prepared) {
+            while (!isPrepared[0]) {
+                prepared.wait();
+            }
+        }
+        return decoderThread;
+    }
+
+    static void push(DecoderThread decoderThread, byte[] header, int length, long frameIndex) {
+        // Throttle like NalReplaySource. Failed obtainNAL() is treated as overload and drops P-Frames.
+        while (decoderThread.getPendingNALCount() >= MAX_PENDING_NALS) {
+            LockSupport.parkNanos(100 * 1000);
+        }
+        NAL nal = decoderThread.obtainNAL(length);
+        nal.frameIndex = frameIndex;
+        if (nal.directBuf != null) {
+            ByteBuffer buffer = nal.directBuf;
+            buffer.position(0);
+            buffer.put(header, 0, Math.min(header.length, length));
+            buffer.position(0);
+        } else {
+            System.arraycopy(header, 0, nal.buf, 0, Math.min(header.length, length));
+        }
+        decoderThread.pushNAL(nal);
+    }
+}
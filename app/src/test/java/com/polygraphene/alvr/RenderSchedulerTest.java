@@ -0,0 +1,344 @@
+package com.polygraphene.alvr;
+
+import org.junit.Test;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Simulation of OvrThread render loop with virtual clock. Compares previous fixed postDelayed polling
+ * (5 ms after render, 50 ms while idle, throttled to 1/refresh - 5 ms) against RenderScheduler.
+ * Frames arrive with network jitter and render takes a few ms. Handler wakes late by up to WAKE_JITTER_NS.
+ * Compares wakeups, displayed frames and latency from frame arrival to vsync it is displayed on.
+ * Clock and jitter are simulated with fixed seed, so results don't depend on host.
+ */
+public class RenderSchedulerTest {
+    private static final long PERIOD_90HZ_NS = TimeUnit.SECONDS.toNanos(1) / 90;
+
+    private static final int[] REFRESH_RATES = {72, 90, 120};
+    // Frame rate of server relative to refresh rate. Server may run faster than display when settings differ.
+    private static final double[] SOURCE_RATE_RATIOS = {1.0, 1.25};
+    private static final long DURATION_NS = TimeUnit.SECONDS.toNanos(10);
+    private static final long ARRIVAL_JITTER_NS = TimeUnit.MILLISECONDS.toNanos(4);
+    private static final long RENDER_MIN_NS = TimeUnit.MICROSECONDS.toNanos(1500);
+    private static final long RENDER_JITTER_NS = TimeUnit.MICROSECONDS.toNanos(1000);
+    private static final long WAKE_JITTER_NS = TimeUnit.MICROSECONDS.toNanos(300);
+    // Time from releaseOutputBuffer to onFrameAvailable.
+    private static final long RELEASE_DELAY_NS = TimeUnit.MICROSECONDS.toNanos(500);
+    // Server stops sending for a while, like on scene loading.
+    private static final long PAUSE_START_NS = TimeUnit.SECONDS.toNanos(4);
+    private static final long PAUSE_END_NS = TimeUnit.SECONDS.toNanos(6);
+
+    private static final int EVENT_ARRIVAL = 0;
+    private static final int EVENT_FRAME_AVAILABLE = 1;
+    private static final int EVENT_RENDER = 2;
+    private static final int EVENT_IDLE = 3;
+
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long seq;
+        final int type;
+
+        Event(long time, long seq, int type) {
+            this.time = time;
+            this.seq = seq;
+            this.type = type;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            if (time != o.time) {
+                return Long.compare(time, o.time);
+            }
+            return Long.compare(seq, o.seq);
+        }
+    }
+
+    private static class Result {
+        long wakeups;
+        long displayed;
+        long latencyTotalNs;
+        long latencyMaxNs;
+        long idleWakeups;
+
+        long averageLatencyUs() {
+            return displayed == 0 ? 0 : latencyTotalNs / displayed / 1000;
+        }
+    }
+
+    // Handler, surface (one frame on SurfaceTexture + depth-1 frame queue) and display.
+    private abstract static class Simulation {
+        final long mPeriod;
+        final long mSourcePeriod;
+        final Random mRandom = new Random(1);
+        final PriorityQueue<Event> mEvents = new PriorityQueue<>();
+        long mSeq = 0;
+        long mNow = 0;
+        final Result mResult = new Result();
+
+        // Arrival time of frame on surface, or -1.
+        long mSurfaceFrame = -1;
+        boolean mSurfaceAvailable = false;
+        long mQueuedFrame = -1;
+        long mLastDisplayedVsync = -1;
+
+        Simulation(int refreshRate, double sourceRateRatio) {
+            mPeriod = TimeUnit.SECONDS.toNanos(1) / refreshRate;
+            mSourcePeriod = (long) (mPeriod / sourceRateRatio);
+        }
+
+        void post(int type, long delayMs) {
+            long lateness = (long) (mRandom.nextDouble() * WAKE_JITTER_NS);
+            mEvents.add(new Event(mNow + TimeUnit.MILLISECONDS.toNanos(delayMs) + lateness, mSeq++, type));
+        }
+
+        void removeCallbacks(int type) {
+            mEvents.removeIf(e -> e.type == type);
+        }
+
+        long nextVsync(long time) {
+            return (time + mPeriod - 1) / mPeriod * mPeriod;
+        }
+
+        Result run() {
+            for (long t = 0; t < DURATION_NS; t += mSourcePeriod) {
+                if (t >= PAUSE_START_NS && t < PAUSE_END_NS) {
+                    continue;
+                }
+                mEvents.add(new Event(t + (long) (mRandom.nextDouble() * ARRIVAL_JITTER_NS), mSeq++, EVENT_ARRIVAL));
+            }
+            start();
+            while (!mEvents.isEmpty()) {
+                Event event = mEvents.poll();
+                if (event.time > DURATION_NS) {
+                    break;
+                }
+                mNow = Math.max(mNow, event.time);
+                switch (event.type) {
+                    case EVENT_ARRIVAL:
+                        mQueuedFrame = event.time;
+                        releaseQueued();
+                        break;
+                    case EVENT_FRAME_AVAILABLE:
+                        mSurfaceAvailable = true;
+                        onFrameAvailable();
+                        break;
+                    case EVENT_RENDER:
+                        mResult.wakeups++;
+                        onRender();
+                        break;
+                    case EVENT_IDLE:
+                        mResult.wakeups++;
+                        mResult.idleWakeups++;
+                        onIdle();
+                        break;
+                }
+            }
+            return mResult;
+        }
+
+        private void releaseQueued() {
+            if (mSurfaceFrame >= 0 || mQueuedFrame < 0) {
+                return;
+            }
+            mSurfaceFrame = mQueuedFrame;
+            mQueuedFrame = -1;
+            mEvents.add(new Event(mNow + RELEASE_DELAY_NS, mSeq++, EVENT_FRAME_AVAILABLE));
+        }
+
+        // Same as DecoderThread.clearAvailable. Returns arrival time of frame or -1.
+        long clearAvailable() {
+            if (!mSurfaceAvailable) {
+                return -1;
+            }
+            long frame = mSurfaceFrame;
+            mSurfaceFrame = -1;
+            mSurfaceAvailable = false;
+            releaseQueued();
+            return frame;
+        }
+
+        // Renders frame and advances clock. Frame is displayed on first free vsync after submit.
+        // Like vrapi_SubmitFrame2 with SwapInterval 1, submit blocks while previous frame waits its vsync.
+        void renderFrame(long frame) {
+            mNow += RENDER_MIN_NS + (long) (mRandom.nextDouble() * RENDER_JITTER_NS);
+            long vsync = nextVsync(mNow);
+            if (vsync <= mLastDisplayedVsync) {
+                mNow = mLastDisplayedVsync;
+                vsync = mLastDisplayedVsync + mPeriod;
+            }
+            mLastDisplayedVsync = vsync;
+            long latency = vsync - frame;
+            mResult.displayed++;
+            mResult.latencyTotalNs += latency;
+            mResult.latencyMaxNs = Math.max(mResult.latencyMaxNs, latency);
+        }
+
+        abstract void start();
+
+        abstract void onFrameAvailable();
+
+        abstract void onRender();
+
+        abstract void onIdle();
+    }
+
+    // Previous OvrThread.render.
+    private static class PollingSimulation extends Simulation {
+        private long mPreviousRender = 0;
+
+        PollingSimulation(int refreshRate, double sourceRateRatio) {
+            super(refreshRate, sourceRateRatio);
+        }
+
+        @Override
+        void start() {
+            post(EVENT_RENDER, 0);
+        }
+
+        @Override
+        void onFrameAvailable() {
+            removeCallbacks(EVENT_IDLE);
+            post(EVENT_RENDER, 0);
+        }
+
+        @Override
+        void onRender() {
+            long threshold = mPeriod - TimeUnit.MILLISECONDS.toNanos(5);
+            long next = TimeUnit.NANOSECONDS.toMillis(threshold - (mNow - mPreviousRender));
+            if (next > 0) {
+                post(EVENT_RENDER, next);
+                return;
+            }
+            long frame = clearAvailable();
+            if (frame >= 0) {
+                renderFrame(frame);
+                mPreviousRender = mNow;
+                post(EVENT_RENDER, 5);
+            } else {
+                removeCallbacks(EVENT_IDLE);
+                post(EVENT_IDLE, 50);
+            }
+        }
+
+        @Override
+        void onIdle() {
+            onRender();
+        }
+    }
+
+    // Current OvrThread.scheduleRender / renderFrame.
+    private static class ScheduledSimulation extends Simulation {
+        private final RenderScheduler mScheduler = new RenderScheduler();
+
+        ScheduledSimulation(int refreshRate, double sourceRateRatio) {
+            super(refreshRate, sourceRateRatio);
+            mScheduler.setRefreshRate(refreshRate);
+        }
+
+        @Override
+        void start() {
+        }
+
+        @Override
+        void onFrameAvailable() {
+            // Display time of next frame is on vsync grid.
+            mScheduler.setPredictedDisplayTime(nextVsync(mNow) + mPeriod);
+            long wakeTime = mScheduler.schedule(mNow);
+            if (wakeTime < 0) {
+                return;
+            }
+            post(EVENT_RENDER, TimeUnit.NANOSECONDS.toMillis(Math.max(wakeTime - mNow, 0)));
+        }
+
+        @Override
+        void onRender() {
+            mScheduler.onWake(mNow);
+            long frame = clearAvailable();
+            if (frame >= 0) {
+                renderFrame(frame);
+                mScheduler.onRendered(mNow);
+            } else {
+                mScheduler.onNoFrame();
+            }
+        }
+
+        @Override
+        void onIdle() {
+        }
+    }
+
+    @Test
+    public void schedulesBeforeVsyncByBudget() {
+        RenderScheduler scheduler = new RenderScheduler();
+        scheduler.setRefreshRate(90);
+        long vsync = TimeUnit.SECONDS.toNanos(10);
+        scheduler.setPredictedDisplayTime(vsync);
+        long budget = scheduler.getBudgetNs();
+
+        // Frame arrives early enough for next vsync.
+        long now = vsync - PERIOD_90HZ_NS / 2 - budget;
+        long wake = scheduler.schedule(now);
+        assertEquals(vsync - budget, wake);
+        assertTrue(scheduler.isScheduled());
+        // Already scheduled.
+        assertEquals(-1, scheduler.schedule(now + 1));
+
+        // Frame arriving after wake time targets the following vsync.
+        scheduler.onNoFrame();
+        assertEquals(vsync + PERIOD_90HZ_NS - budget, scheduler.schedule(wake + 1));
+    }
+
+    @Test
+    public void nextRenderTargetsLaterVsync() {
+        RenderScheduler scheduler = new RenderScheduler();
+        scheduler.setRefreshRate(90);
+        long vsync = TimeUnit.SECONDS.toNanos(10);
+        scheduler.setPredictedDisplayTime(vsync);
+        long budget = scheduler.getBudgetNs();
+
+        long wake = scheduler.schedule(vsync - PERIOD_90HZ_NS);
+        scheduler.onWake(wake);
+        scheduler.onRendered(wake + budget / 2);
+        // Next frame arrives before the vsync, but vsync is already used by previous render.
+        long next = scheduler.schedule(wake + budget / 2);
+        assertEquals(vsync + PERIOD_90HZ_NS - scheduler.getBudgetNs(), next);
+        assertEquals(0, scheduler.getMissedVsyncCount());
+    }
+
+    @Test
+    public void budgetNeverExceedsPeriod() {
+        RenderScheduler scheduler = new RenderScheduler();
+        scheduler.setRefreshRate(90);
+        long now = TimeUnit.SECONDS.toNanos(10);
+        for (int i = 0; i < 100; i++) {
+            long wake = scheduler.schedule(now);
+            // Render takes two periods.
+            scheduler.onWake(wake);
+            now = wake + 2 * PERIOD_90HZ_NS;
+            scheduler.onRendered(now);
+        }
+        assertEquals(PERIOD_90HZ_NS, scheduler.getBudgetNs());
+        assertTrue(scheduler.getMissedVsyncCount() > 0);
+    }
+
+    @Test
+    public void scheduledRenderWakesLessThanPolling() {
+        for (double ratio : SOURCE_RATE_RATIOS) {
+            for (int refreshRate : REFRESH_RATES) {
+                Result polling = new PollingSimulation(refreshRate, ratio).run();
+                Result scheduled = new ScheduledSimulation(refreshRate, ratio).run();
+
+                String name = refreshRate + " Hz source x" + ratio;
+                assertTrue(name, scheduled.wakeups < polling.wakeups);
+                assertEquals(name, 0, scheduled.idleWakeups);
+                assertTrue(name, scheduled.displayed >= polling.displayed * 95 / 100);
+                assertTrue(name, scheduled.averageLatencyUs() <= polling.averageLatencyUs());
+            }
+        }
+    }
+}